@@ -47,27 +47,41 @@ const WebSocketComponent = ({id}: {
     setClient(stompClient);
     // Connect to the STOMP server
     setIsConnected(true);
+    // Version of the last frame received after the server brought this client up to date, sent when reconnecting so
+    // the server only resends the devices that changed in the meantime.
+    let lastVersion: string | undefined;
+    let synced = false;
     stompClient.onConnect = (frame) => {
+      synced = false;
       console.log('Connected: ' + frame);
       // Subscribe to a topic provided by the server
       console.log(isConnected)
       console.log(client)
       stompClient.subscribe('/topic/locations', (message) => {
         // Called when the client receives a message from the subscribed topic
-        let parsedMessage: { _id: { timestamp: number; date: string }; clientId: string; latitude: string; longitude: string } = JSON.parse(message.body);
-        let locationJSON: LocationPayload = {
+        // The server batches every location that changed since its last broadcast tick into one array.
+        let parsedMessages: Array<{ _id: { timestamp: number; date: string }; clientId: string; latitude: number | string; longitude: number | string }> = JSON.parse(message.body);
+        console.log('Message received: ' + message.body);
+        // The reply to registerClient is marked with 'location-resync', frames before it may predate this connection.
+        synced = synced || message.headers['location-resync'] !== undefined;
+        if (synced && message.headers['location-version']) {
+          lastVersion = message.headers['location-version'];
+        }
+        const newLocations = locationMap;
+        const locationJSONs: Array<LocationPayload> = parsedMessages.map((parsedMessage) => ({
           clientId: parsedMessage.clientId,
-          latitude: parseFloat(parsedMessage.latitude),
-          longitude: parseFloat(parsedMessage.longitude)
-        };
-      console.log('Message received: ' + message.body);
-      const newLocations = locationMap;
-      newLocations.set(locationJSON.clientId, locationJSON);
-      setLocationMap(newLocations)
-      setCurrentLocations(currentLocations => [...currentLocations, locationJSON]);
+          latitude: Number(parsedMessage.latitude),
+          longitude: Number(parsedMessage.longitude)
+        }));
+        locationJSONs.forEach((locationJSON) => newLocations.set(locationJSON.clientId, locationJSON));
+        setLocationMap(newLocations)
+        setCurrentLocations(currentLocations => [...currentLocations, ...locationJSONs]);
       });
 
-      stompClient.publish({ destination: '/app/registerClient' })
+      stompClient.publish({
+        destination: '/app/registerClient',
+        headers: lastVersion ? { 'location-version': lastVersion } : {}
+      })
     };
 
 
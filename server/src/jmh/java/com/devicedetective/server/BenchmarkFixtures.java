@@ -0,0 +1,112 @@
+package com.devicedetective.server;
+
+import com.mongodb.client.MongoClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Wires the server components by hand for benchmarks, backed by InMemoryMongo and a broker channel that only counts
+ * the frames it receives. No Spring context is started, so a benchmark only measures the code path it calls.
+ * Everything is passed through constructors, as Spring would, so the fixtures break at compile time when a
+ * dependency is added.
+ */
+final class BenchmarkFixtures {
+
+    final InMemoryMongo mongo = new InMemoryMongo(100_000);
+    final MongoClient mongoClient = mongo.client();
+    final LatestLocationStore store = new LatestLocationStore(1_000_000);
+    final LiveSpatialIndex spatialIndex = new LiveSpatialIndex(0.01);
+    final LocationMetrics metrics = new LocationMetrics(new SimpleMeterRegistry());
+    final LocationJournal journal;
+    final LocationService locationService;
+    final TopicSubscriptionTracker subscriptionTracker = new TopicSubscriptionTracker();
+    final ClientRegistry clientRegistry = new ClientRegistry(spatialIndex, 300_000);
+    final GeofenceIndex geofenceIndex = new GeofenceIndex(0.05);
+    final SlowConsumerGuard slowConsumerGuard = new SlowConsumerGuard(64);
+    final LocationChangeLog changeLog = new LocationChangeLog(65536);
+    final LongAdder sentFrames = new LongAdder();
+    final SimpMessagingTemplate messagingTemplate;
+    final LocationBroadcaster broadcaster;
+    final GeofenceMonitor geofenceMonitor;
+    final WebSocketController controller;
+
+    /**
+     * Wires the components with direct inserts into InMemoryMongo.
+     */
+    BenchmarkFixtures() {
+        this(null);
+    }
+
+    /**
+     * Wires the components, optionally saving through a started journal.
+     *
+     * @param journalDirectory Directory of an enabled LocationJournal, or null to insert directly.
+     */
+    BenchmarkFixtures(Path journalDirectory) {
+        journal = journalDirectory == null
+                ? new LocationJournal(mongoClient, metrics, false, "collection", "journal", 1, 1, 1, 1)
+                : new LocationJournal(mongoClient, metrics, true, "collection", journalDirectory.toString(),
+                        65536, 64, 500, 1000);
+        try {
+            journal.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        locationService = new LocationService(mongoClient, store,
+                new LocationWriteBehind(mongoClient, metrics, false, 1, 1, 1, "block"), journal, spatialIndex,
+                metrics, new LoopbackLocationEventBus(UUID.randomUUID().toString()));
+
+        MessageChannel brokerChannel = (message, timeout) -> {
+            sentFrames.increment();
+            return true;
+        };
+        messagingTemplate = new SimpMessagingTemplate(brokerChannel);
+        messagingTemplate.setMessageConverter(new MappingJackson2MessageConverter());
+        broadcaster = new LocationBroadcaster(locationService, messagingTemplate, subscriptionTracker, metrics,
+                slowConsumerGuard, changeLog, brokerChannel);
+
+        geofenceMonitor = new GeofenceMonitor(geofenceIndex, messagingTemplate, subscriptionTracker, clientRegistry);
+
+        // Every benchmarked update goes through the full save and broadcast path.
+        controller = new WebSocketController(locationService, clientRegistry, broadcaster, changeLog,
+                new MovementFilter(false, 0, 0), geofenceMonitor, new InboundRateLimiter(false, 1, 1, 1, 1));
+    }
+
+    /**
+     * Registers a subscription on a destination as if a browser had sent a SUBSCRIBE frame.
+     */
+    void subscribe(String destination) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        headers.setDestination(destination);
+        headers.setSessionId("benchmark");
+        headers.setSubscriptionId(destination);
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+        subscriptionTracker.onSubscribe(new SessionSubscribeEvent(this, message));
+    }
+
+    /**
+     * Creates a location with a random clientId around the given index.
+     */
+    static Location location(int index) {
+        Location location = new Location();
+        location.setClientId(UUID.nameUUIDFromBytes(Integer.toString(index).getBytes()).toString());
+        location.setLatitude(40.2 + (index % 1000) * 0.0001);
+        location.setLongitude(-77.2 + (index / 1000) * 0.0001);
+        location.setTimestamp(1_700_000_000_000L + index);
+        return location;
+    }
+}
@@ -0,0 +1,79 @@
+package com.devicedetective.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the sync path with 10, 1k and 100k cached clients: handling one "/syncLocations" message, one broadcast
+ * tick after a sync, and the frame sent on "/registerClient", either a full snapshot or the delta of a session that
+ * missed one change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastFanOutBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    @Param({"10", "1000", "100000"})
+    public int clientCount;
+
+    private BenchmarkFixtures fixtures;
+    private Location[] locations;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fixtures = new BenchmarkFixtures();
+        fixtures.subscribe(LocationBroadcaster.LOCATIONS_TOPIC);
+        locations = new Location[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            locations[i] = BenchmarkFixtures.location(i);
+            fixtures.controller.handleLocationUpdates(locations[i], SESSION_ID);
+        }
+        fixtures.broadcaster.tick();
+    }
+
+    @Benchmark
+    public void handleLocationUpdates() {
+        fixtures.controller.handleLocationUpdates(nextLocation(), SESSION_ID);
+    }
+
+    @Benchmark
+    public void syncAndTick() {
+        fixtures.controller.handleLocationUpdates(nextLocation(), SESSION_ID);
+        fixtures.broadcaster.tick();
+    }
+
+    @Benchmark
+    public void registerWithoutVersion() {
+        fixtures.controller.registerNewClient(null, SESSION_ID);
+    }
+
+    @Benchmark
+    public void registerWithVersion() {
+        String version = fixtures.changeLog.token(fixtures.changeLog.current());
+        fixtures.controller.handleLocationUpdates(nextLocation(), SESSION_ID);
+        fixtures.controller.registerNewClient(version, SESSION_ID);
+    }
+
+    private Location nextLocation() {
+        next = next + 1 == clientCount ? 0 : next + 1;
+        return locations[next];
+    }
+}
@@ -0,0 +1,54 @@
+package com.devicedetective.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the ClientRegistry update WebSocketController performs for every inbound location as the number of known
+ * clients grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientCacheBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    @Param({"10", "1000", "100000"})
+    public int clientCount;
+
+    private ClientRegistry clientRegistry;
+    private String[] clientIds;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        clientRegistry = new BenchmarkFixtures().clientRegistry;
+        clientIds = new String[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clientIds[i] = BenchmarkFixtures.location(i).getClientId();
+            clientRegistry.touch(clientIds[i], SESSION_ID);
+        }
+    }
+
+    @Benchmark
+    public void cacheKnownClient() {
+        next = next + 1 == clientCount ? 0 : next + 1;
+        clientRegistry.touch(clientIds[next], SESSION_ID);
+    }
+}
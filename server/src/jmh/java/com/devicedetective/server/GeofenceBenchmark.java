@@ -0,0 +1,103 @@
+package com.devicedetective.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the geofence check done for every inbound location with 10, 1k and 100k registered fences: evaluating a
+ * position against the GeofenceIndex, the same positions tested against every fence as a linear baseline, and a full
+ * "/syncLocations" message including the check. Fences are circles of 50 to 500 m and small polygons spread over a
+ * 2 by 2 degree area around the simulated devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeofenceBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+    private static final int DEVICE_COUNT = 10_000;
+
+    @Param({"10", "1000", "100000"})
+    public int fenceCount;
+
+    private BenchmarkFixtures fixtures;
+    private final List<Geofence> fences = new ArrayList<>();
+    private Location[] locations;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fixtures = new BenchmarkFixtures();
+        Random random = new Random(42);
+        for (int i = 0; i < fenceCount; i++) {
+            double latitude = 39.5 + random.nextDouble() * 2;
+            double longitude = -78 + random.nextDouble() * 2;
+            Geofence fence;
+            if (i % 2 == 0) {
+                fence = Geofence.circle("fence-" + i, null, latitude, longitude, 50 + random.nextDouble() * 450);
+            } else {
+                double size = 0.001 + random.nextDouble() * 0.004;
+                fence = Geofence.polygon("fence-" + i, null,
+                        new double[] {latitude, latitude + size, latitude + size, latitude},
+                        new double[] {longitude, longitude, longitude + size, longitude + size});
+            }
+            fences.add(fence);
+            fixtures.geofenceIndex.register(fence);
+        }
+        locations = new Location[DEVICE_COUNT];
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            Location location = BenchmarkFixtures.location(i);
+            location.setLatitude(39.5 + random.nextDouble() * 2);
+            location.setLongitude(-78 + random.nextDouble() * 2);
+            locations[i] = location;
+        }
+    }
+
+    @Benchmark
+    public void evaluateIndexed(Blackhole blackhole) {
+        Location location = nextLocation();
+        blackhole.consume(fixtures.geofenceIndex.evaluate(location.getClientId(), location.getGroupId(),
+                location.getLatitude(), location.getLongitude()));
+    }
+
+    @Benchmark
+    public void evaluateLinear(Blackhole blackhole) {
+        Location location = nextLocation();
+        int inside = 0;
+        for (Geofence fence : fences) {
+            if (fence.contains(location.getLatitude(), location.getLongitude())) {
+                inside++;
+            }
+        }
+        blackhole.consume(inside);
+    }
+
+    @Benchmark
+    public void handleLocationUpdates() {
+        fixtures.controller.handleLocationUpdates(nextLocation(), SESSION_ID);
+    }
+
+    private Location nextLocation() {
+        next = next + 1 == DEVICE_COUNT ? 0 : next + 1;
+        return locations[next];
+    }
+}
@@ -0,0 +1,467 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.WebSocketContainer;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Load and soak test harness for the STOMP endpoints. It starts the server in-process with MongoDB replaced by
+ * InMemoryMongo (or targets a running server with --url), opens one STOMP session per simulated device and drives
+ * "/app/sendLocation" and "/app/syncLocations" at a configurable rate and movement pattern. A few watcher sessions
+ * subscribe to "/topic/locations" like the dashboard does.
+ *
+ * The report covers end-to-end update-to-subscriber latency percentiles, updates that were coalesced or never
+ * delivered, heap and GC behaviour and, in ramp mode, the largest number of sessions per core that stayed within the
+ * latency objective. Run it from the server directory with:
+ *
+ * <pre>
+ * ./mvnw -Pbenchmarks test-compile exec:exec@loadtest -Dloadtest.args="--sessions=2000 --rate=1 --duration=60"
+ * </pre>
+ *
+ * Options, all in the form --name=value:
+ * <ul>
+ *   <li>sessions: number of simulated devices (default 1000)</li>
+ *   <li>rate: updates per second per device (default 1)</li>
+ *   <li>duration: seconds to measure once all sessions are connected (default 60)</li>
+ *   <li>movement: stationary, random_walk or commute (default random_walk)</li>
+ *   <li>sync-ratio: fraction of updates sent to /app/syncLocations (default 0.2)</li>
+ *   <li>group-size: devices per owner group, 0 for none (default 100)</li>
+ *   <li>watchers: sessions subscribed to /topic/locations (default 5)</li>
+ *   <li>transport: sockjs for "/ws" or native for "/ws-native" (default sockjs)</li>
+ *   <li>url: base URL of a running server instead of starting one, e.g. http://host:8080</li>
+ *   <li>ramp-step: add this many sessions per step until the objective is missed (default 0, no ramp)</li>
+ *   <li>step-seconds: length of a ramp step (default 30)</li>
+ *   <li>slo-ms: p99 latency objective of a ramp step (default 1000)</li>
+ *   <li>connect-concurrency: handshakes in flight at once (default 100)</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    /**
+     * Largest STOMP frame the clients accept. Watchers receive every changed location of a tick in one frame.
+     */
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Time to wait after the last update for in-flight frames before counting undelivered updates.
+     */
+    private static final long DRAIN_MILLIS = 5000;
+
+    private final Options options;
+    private final String url;
+    private final ConfigurableApplicationContext server;
+    private final Stats stats = new Stats();
+    private final List<SimulatedDevice> devices = new ArrayList<>();
+    private final List<Watcher> watchers = new ArrayList<>();
+    private final Queue<ScheduledFuture<?>> senders = new ConcurrentLinkedQueue<>();
+    private final WebSocketStompClient stompClient;
+    private final ScheduledExecutorService scheduler;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+
+    private LoadGenerator(Options options, String url, ConfigurableApplicationContext server) {
+        this.options = options;
+        this.url = url;
+        this.server = server;
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        container.setDefaultMaxTextMessageBufferSize(MAX_FRAME_BYTES);
+        container.setDefaultMaxBinaryMessageBufferSize(MAX_FRAME_BYTES);
+        WebSocketClient webSocketClient = new StandardWebSocketClient(container);
+        if (options.sockJs) {
+            webSocketClient = new SockJsClient(List.of(new WebSocketTransport(webSocketClient)));
+        }
+        this.stompClient = new WebSocketStompClient(webSocketClient);
+        this.stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+        this.stompClient.setInboundMessageSizeLimit(MAX_FRAME_BYTES);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        ConfigurableApplicationContext server = null;
+        String baseUrl = options.url;
+        if (baseUrl == null) {
+            server = startServer();
+            baseUrl = "http://localhost:" + server.getEnvironment().getProperty("local.server.port");
+        }
+        String url = options.sockJs ? baseUrl + "/ws" : baseUrl.replaceFirst("^http", "ws") + "/ws-native";
+        try {
+            new LoadGenerator(options, url, server).run();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        // The WebSocket client container keeps non-daemon threads around.
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server on a random port with the MongoDB client replaced by InMemoryMongo.
+     */
+    private static ConfigurableApplicationContext startServer() {
+        InMemoryMongo mongo = new InMemoryMongo(100_000);
+        return new SpringApplicationBuilder(ServerApplication.class)
+                // Registered before the auto-configuration runs, so that no real MongoClient is created.
+                .initializers(context -> context.getBeanFactory().registerSingleton("mongoClient", mongo.client()))
+                .properties("server.port=0",
+                        "spring.autoconfigure.exclude="
+                                + "org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration")
+                .run();
+    }
+
+    private void run() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long started = System.nanoTime();
+        scheduler.scheduleAtFixedRate(this::sampleHeap, 0, 1, TimeUnit.SECONDS);
+
+        System.out.printf("Load test against %s with %d cores%n", url, cores);
+        for (int i = 0; i < options.watchers; i++) {
+            Watcher watcher = new Watcher();
+            stompClient.connectAsync(url, watcher).exceptionally(error -> {
+                stats.connectFailures.increment();
+                return null;
+            });
+            watchers.add(watcher);
+        }
+
+        System.out.printf("%9s %10s %10s %8s %8s %8s %8s %8s %8s%n",
+                "sessions", "sent/s", "frames/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "heap MB");
+        int target = options.rampStep > 0 ? Math.min(options.rampStep, options.sessions) : options.sessions;
+        int lastPassing = 0;
+        while (true) {
+            connect(target);
+            long stepSeconds = options.rampStep > 0 ? options.stepSeconds : options.durationSeconds;
+            Window window = measure(stepSeconds);
+            boolean passed = window.p99 <= options.sloMillis && window.errors == 0 && stats.connectFailures.sum() == 0;
+            if (passed) {
+                lastPassing = target;
+            }
+            if (!passed || options.rampStep == 0 || target >= options.sessions) {
+                break;
+            }
+            target = Math.min(target + options.rampStep, options.sessions);
+        }
+
+        senders.forEach(sender -> sender.cancel(false));
+        Thread.sleep(DRAIN_MILLIS);
+        long lostFinalUpdates = devices.stream().filter(SimulatedDevice::isLastUpdateMissing).count();
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        long gcMillis = gcMillis() - gcMillisBefore;
+
+        System.out.println();
+        System.out.println("== Report ==");
+        System.out.printf("Sessions: %d devices, %d watchers, %d connect failures, %d transport/STOMP errors%n",
+                devices.size(), watchers.size(), stats.connectFailures.sum(), stats.errors.sum());
+        System.out.printf("Updates: %d sent, %d send failures, %d delivered to their device, %d coalesced by ticks, "
+                        + "%d devices missing their final update%n",
+                stats.sent.sum(), stats.sendFailures.sum(), stats.delivered.sum(),
+                Math.max(0, stats.sent.sum() - stats.delivered.sum()), lostFinalUpdates);
+        printLatency("Device latency", stats.totalDeviceLatency);
+        printLatency("Watcher latency", stats.totalWatcherLatency);
+        System.out.printf("Heap: peak %d MB, now %d MB of %d MB max%n", peakHeapBytes.get() >> 20,
+                memory.getHeapMemoryUsage().getUsed() >> 20, memory.getHeapMemoryUsage().getMax() >> 20);
+        System.out.printf("GC: %d collections, %d ms total (%.1f%% of %.0f s)%n", gcCount() - gcCountBefore,
+                gcMillis, 100.0 * gcMillis / (elapsedSeconds * 1000), elapsedSeconds);
+        if (options.rampStep > 0) {
+            // In-process runs share the cores between server and generator, so this is a lower bound.
+            System.out.printf("Max sustainable sessions: %d (%.0f per core, p99 <= %d ms)%n",
+                    lastPassing, (double) lastPassing / cores, options.sloMillis);
+        }
+        if (server != null) {
+            printServerMetrics(server.getBean(MeterRegistry.class));
+        }
+
+        devices.forEach(SimulatedDevice::disconnect);
+        watchers.forEach(Watcher::disconnect);
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Connects devices until the target is reached, with a bounded number of handshakes in flight, and starts their
+     * update schedules at random offsets so the load is spread evenly.
+     */
+    private void connect(int target) throws InterruptedException {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        Semaphore inFlight = new Semaphore(options.connectConcurrency);
+        while (devices.size() < target) {
+            String groupId = options.groupSize > 0 ? "group-" + devices.size() / options.groupSize : null;
+            SimulatedDevice device = new SimulatedDevice(groupId, options.movement, options.syncRatio, stats);
+            devices.add(device);
+            inFlight.acquire();
+            device.connect(stompClient, url).whenComplete((session, error) -> {
+                inFlight.release();
+                if (error != null) {
+                    stats.connectFailures.increment();
+                    return;
+                }
+                long offset = ThreadLocalRandom.current().nextLong(periodNanos);
+                senders.add(scheduler.scheduleAtFixedRate(device::sendUpdate, offset, periodNanos,
+                        TimeUnit.NANOSECONDS));
+            });
+        }
+        // Wait for the remaining handshakes.
+        inFlight.acquire(options.connectConcurrency);
+        inFlight.release(options.connectConcurrency);
+    }
+
+    /**
+     * Runs the load for a while and prints one line with the rates and latencies of that window.
+     */
+    private Window measure(long seconds) throws InterruptedException {
+        stats.startWindow();
+        long sent = stats.sent.sum();
+        long frames = stats.frames.sum();
+        long errors = stats.errors.sum() + stats.sendFailures.sum();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+
+        LatencyHistogram latency = stats.deviceLatency;
+        Window window = new Window(latency.percentile(0.99),
+                stats.errors.sum() + stats.sendFailures.sum() - errors);
+        System.out.printf("%9d %10.0f %10.0f %8d %8d %8d %8d %8d %8d%n", devices.size(),
+                (stats.sent.sum() - sent) / (double) seconds, (stats.frames.sum() - frames) / (double) seconds,
+                latency.percentile(0.5), window.p99, latency.percentile(0.999), latency.max(), window.errors,
+                memory.getHeapMemoryUsage().getUsed() >> 20);
+        return window;
+    }
+
+    private void sampleHeap() {
+        peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    private static void printLatency(String label, LatencyHistogram latency) {
+        System.out.printf(Locale.ROOT, "%s: %d samples, p50 %d ms, p90 %d ms, p99 %d ms, p99.9 %d ms, max %d ms%n",
+                label, latency.count(), latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+                latency.percentile(0.999), latency.max());
+    }
+
+    /**
+     * Prints the server's own handler timings, available when it runs in-process.
+     */
+    private static void printServerMetrics(MeterRegistry registry) {
+        for (Timer timer : registry.find("devicedetective.stomp.handler").timers()) {
+            System.out.printf(Locale.ROOT, "Server handler %s: %d messages, mean %.2f ms, max %.2f ms%n",
+                    timer.getId().getTag("destination"), timer.count(), timer.mean(TimeUnit.MILLISECONDS),
+                    timer.max(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    /**
+     * Result of one measurement window.
+     */
+    private record Window(long p99, long errors) {
+    }
+
+    /**
+     * Counters and latency histograms shared by all sessions. The window histograms are replaced at the start of
+     * every measurement window, the total histograms cover the whole run.
+     */
+    static final class Stats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder sendFailures = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder frames = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder connectFailures = new LongAdder();
+        final LatencyHistogram totalDeviceLatency = new LatencyHistogram();
+        final LatencyHistogram totalWatcherLatency = new LatencyHistogram();
+        volatile LatencyHistogram deviceLatency = new LatencyHistogram();
+
+        void startWindow() {
+            deviceLatency = new LatencyHistogram();
+        }
+
+        /**
+         * Records a device's own update arriving back on its per-device topic.
+         */
+        void recordDelivery(long latencyMillis) {
+            delivered.increment();
+            deviceLatency.record(latencyMillis);
+            totalDeviceLatency.record(latencyMillis);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with one millisecond buckets up to one minute.
+     */
+    static final class LatencyHistogram {
+        private static final int MAX_MILLIS = 60_000;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(MAX_MILLIS + 1);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            long clamped = Math.max(0, Math.min(millis, MAX_MILLIS));
+            buckets.incrementAndGet((int) clamped);
+            count.increment();
+            max.accumulateAndGet(clamped, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double quantile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i <= MAX_MILLIS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i;
+                }
+            }
+            return MAX_MILLIS;
+        }
+    }
+
+    /**
+     * A dashboard-like session that receives every broadcast frame on "/topic/locations".
+     */
+    private final class Watcher extends StompSessionHandlerAdapter {
+        private volatile StompSession session;
+
+        @Override
+        public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+            this.session = session;
+            session.subscribe(LocationBroadcaster.LOCATIONS_TOPIC, new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return Location[].class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    long now = System.currentTimeMillis();
+                    stats.frames.increment();
+                    for (Location location : (Location[]) payload) {
+                        if (location.getTimestamp() > 0) {
+                            stats.totalWatcherLatency.record(now - location.getTimestamp());
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void handleException(StompSession session, StompCommand command, StompHeaders headers,
+                                    byte[] payload, Throwable exception) {
+            stats.errors.increment();
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            stats.errors.increment();
+        }
+
+        void disconnect() {
+            StompSession current = session;
+            if (current != null && current.isConnected()) {
+                current.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Command line options.
+     */
+    private static final class Options {
+        int sessions = 1000;
+        double rate = 1;
+        long durationSeconds = 60;
+        SimulatedDevice.Movement movement = SimulatedDevice.Movement.RANDOM_WALK;
+        double syncRatio = 0.2;
+        int groupSize = 100;
+        int watchers = 5;
+        boolean sockJs = true;
+        String url;
+        int rampStep;
+        long stepSeconds = 30;
+        long sloMillis = 1000;
+        int connectConcurrency = 100;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "sessions" -> options.sessions = Integer.parseInt(value);
+                    case "rate" -> options.rate = Double.parseDouble(value);
+                    case "duration" -> options.durationSeconds = Long.parseLong(value);
+                    case "movement" -> options.movement =
+                            SimulatedDevice.Movement.valueOf(value.trim().toUpperCase(Locale.ROOT));
+                    case "sync-ratio" -> options.syncRatio = Double.parseDouble(value);
+                    case "group-size" -> options.groupSize = Integer.parseInt(value);
+                    case "watchers" -> options.watchers = Integer.parseInt(value);
+                    case "transport" -> options.sockJs = !"native".equalsIgnoreCase(value);
+                    case "url" -> options.url = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+                    case "ramp-step" -> options.rampStep = Integer.parseInt(value);
+                    case "step-seconds" -> options.stepSeconds = Long.parseLong(value);
+                    case "slo-ms" -> options.sloMillis = Long.parseLong(value);
+                    case "connect-concurrency" -> options.connectConcurrency = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
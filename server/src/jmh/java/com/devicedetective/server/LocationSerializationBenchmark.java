@@ -0,0 +1,73 @@
+package com.devicedetective.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures encoding and decoding of a single location in the JSON and binary wire formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationSerializationBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Location location;
+    private Document document;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures();
+        location = BenchmarkFixtures.location(42);
+        fixtures.locationService.saveLocation(location);
+        document = fixtures.store.get(location.getClientId());
+        json = objectMapper.writeValueAsBytes(location);
+        binary = LocationBinaryCodec.encode(List.of(location));
+    }
+
+    @Benchmark
+    public byte[] writeLocationJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(location);
+    }
+
+    @Benchmark
+    public byte[] writeDocumentJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(List.of(document));
+    }
+
+    @Benchmark
+    public Location readLocationJson() throws IOException {
+        return objectMapper.readValue(json, Location.class);
+    }
+
+    @Benchmark
+    public byte[] writeLocationBinary() {
+        return LocationBinaryCodec.encode(List.of(location));
+    }
+
+    @Benchmark
+    public List<Location> readLocationBinary() {
+        return LocationBinaryCodec.decode(binary);
+    }
+}
@@ -0,0 +1,92 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Measures LocationService writes and latest-location lookups against the InMemoryMongo stand-in, so the numbers
+ * reflect the service's own overhead rather than database latency. With "journal" set, saves are appended to a
+ * LocationJournal in a temporary directory and replayed in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationServiceBenchmark {
+
+    @Param({"1000"})
+    public int clientCount;
+
+    @Param({"false", "true"})
+    public boolean journal;
+
+    private BenchmarkFixtures fixtures;
+    private Path journalDirectory;
+    private Location[] locations;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        journalDirectory = journal ? Files.createTempDirectory("journal") : null;
+        fixtures = new BenchmarkFixtures(journalDirectory);
+        locations = new Location[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            locations[i] = BenchmarkFixtures.location(i);
+            fixtures.locationService.saveLocation(locations[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        if (journalDirectory == null) {
+            return;
+        }
+        fixtures.journal.stop();
+        try (Stream<Path> files = Files.walk(journalDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveLocation() {
+        fixtures.locationService.saveLocation(nextLocation());
+    }
+
+    @Benchmark
+    public Document findLatestLocation() {
+        return fixtures.locationService.findLatestLocation(nextLocation().getClientId());
+    }
+
+    @Benchmark
+    public Document findLocationByClientId() {
+        return fixtures.locationService.findLocationByClientId(nextLocation().getClientId());
+    }
+
+    private Location nextLocation() {
+        next = next + 1 == clientCount ? 0 : next + 1;
+        return locations[next];
+    }
+}
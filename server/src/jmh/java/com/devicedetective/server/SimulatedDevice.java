@@ -0,0 +1,196 @@
+package com.devicedetective.server;
+
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * One simulated device of the LoadGenerator. It opens its own STOMP session, subscribes to its per-device topic and
+ * reports a moving position to "/app/sendLocation" or "/app/syncLocations". Every location carries the time it was
+ * sent, so the frame that comes back on "/topic/locations/{clientId}" gives the end-to-end update-to-subscriber
+ * latency.
+ */
+final class SimulatedDevice extends StompSessionHandlerAdapter {
+
+    /**
+     * How a device moves between two updates.
+     */
+    enum Movement {
+        /**
+         * Reports the same position every time.
+         */
+        STATIONARY,
+        /**
+         * Takes a random step of up to about 10 m per update.
+         */
+        RANDOM_WALK,
+        /**
+         * Drives back and forth along a straight line at about 15 m per update.
+         */
+        COMMUTE
+    }
+
+    private static final double RANDOM_STEP_DEGREES = 0.0001;
+    private static final double COMMUTE_STEP_DEGREES = 0.00015;
+    private static final int COMMUTE_STEPS = 2000;
+
+    private final String clientId = UUID.randomUUID().toString();
+    private final String groupId;
+    private final Movement movement;
+    private final double syncRatio;
+    private final LoadGenerator.Stats stats;
+
+    private double latitude;
+    private double longitude;
+    private int step;
+    private long lastSentTimestamp;
+
+    private volatile StompSession session;
+    private volatile long lastReceivedTimestamp;
+
+    /**
+     * Creates a device at a random position in a roughly 10 km square.
+     *
+     * @param groupId The owner group reported with every location, or null.
+     * @param movement How the device moves.
+     * @param syncRatio Fraction of updates sent to "/app/syncLocations" instead of "/app/sendLocation".
+     * @param stats Shared counters and latency histograms.
+     */
+    SimulatedDevice(String groupId, Movement movement, double syncRatio, LoadGenerator.Stats stats) {
+        this.groupId = groupId;
+        this.movement = movement;
+        this.syncRatio = syncRatio;
+        this.stats = stats;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        this.latitude = 40.2 + random.nextDouble(0.1);
+        this.longitude = -77.2 + random.nextDouble(0.1);
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Connects the device's STOMP session. The device subscribes to its topic and registers as soon as the session is connected.
+     *
+     * @param client The shared STOMP client.
+     * @param url The endpoint URL.
+     * @return The connected session.
+     */
+    CompletableFuture<StompSession> connect(WebSocketStompClient client, String url) {
+        return client.connectAsync(url, this);
+    }
+
+    @Override
+    public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+        this.session = session;
+        session.subscribe(LocationBroadcaster.DEVICE_TOPIC_PREFIX + clientId, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return Location[].class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                onLocations((Location[]) payload);
+            }
+        });
+        // The browser client registers once after connecting, which schedules a snapshot of every live client.
+        session.send("/app/registerClient", "");
+    }
+
+    /**
+     * Moves the device and reports its new position. Called by the scheduler at the configured rate, never
+     * concurrently for the same device.
+     */
+    void sendUpdate() {
+        StompSession current = session;
+        if (current == null || !current.isConnected()) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        move(random);
+        // Strictly increasing per device, so the last received timestamp tells whether the last update arrived.
+        long timestamp = Math.max(System.currentTimeMillis(), lastSentTimestamp + 1);
+        Location location = new Location();
+        location.setClientId(clientId);
+        location.setGroupId(groupId);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setTimestamp(timestamp);
+        String destination = random.nextDouble() < syncRatio ? "/app/syncLocations" : "/app/sendLocation";
+        try {
+            current.send(destination, location);
+            lastSentTimestamp = timestamp;
+            stats.sent.increment();
+        } catch (RuntimeException e) {
+            stats.sendFailures.increment();
+        }
+    }
+
+    /**
+     * Checks whether the last update sent by this device was delivered back to it.
+     *
+     * @return true if an update was sent and the latest one has not been received.
+     */
+    boolean isLastUpdateMissing() {
+        return lastSentTimestamp > 0 && lastReceivedTimestamp < lastSentTimestamp;
+    }
+
+    void disconnect() {
+        StompSession current = session;
+        if (current != null && current.isConnected()) {
+            current.disconnect();
+        }
+    }
+
+    @Override
+    public void handleException(StompSession session, StompCommand command, StompHeaders headers, byte[] payload,
+                                Throwable exception) {
+        stats.errors.increment();
+    }
+
+    @Override
+    public void handleTransportError(StompSession session, Throwable exception) {
+        stats.errors.increment();
+    }
+
+    private void onLocations(Location[] locations) {
+        long now = System.currentTimeMillis();
+        stats.frames.increment();
+        for (Location location : locations) {
+            if (clientId.equals(location.getClientId()) && location.getTimestamp() > 0) {
+                stats.recordDelivery(now - location.getTimestamp());
+                if (location.getTimestamp() > lastReceivedTimestamp) {
+                    lastReceivedTimestamp = location.getTimestamp();
+                }
+            }
+        }
+    }
+
+    private void move(ThreadLocalRandom random) {
+        switch (movement) {
+            case STATIONARY -> {
+            }
+            case RANDOM_WALK -> {
+                latitude += random.nextDouble(-RANDOM_STEP_DEGREES, RANDOM_STEP_DEGREES);
+                longitude += random.nextDouble(-RANDOM_STEP_DEGREES, RANDOM_STEP_DEGREES);
+            }
+            case COMMUTE -> {
+                double direction = (step / COMMUTE_STEPS) % 2 == 0 ? 1 : -1;
+                latitude += direction * COMMUTE_STEP_DEGREES;
+                longitude += direction * COMMUTE_STEP_DEGREES;
+                step++;
+            }
+        }
+    }
+}
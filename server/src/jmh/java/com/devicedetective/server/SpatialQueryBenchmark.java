@@ -0,0 +1,62 @@
+package com.devicedetective.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures "/api/locations/nearby" queries against the LiveSpatialIndex with 10k and 50k live devices spread over a
+ * 2 by 2 degree area, at the default cell size of 0.01 degrees. Each call queries around the position of another
+ * device, with a radius of 1 or 10 km.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialQueryBenchmark {
+
+    @Param({"10000", "50000"})
+    public int deviceCount;
+
+    @Param({"1000", "10000"})
+    public double radiusMeters;
+
+    private LiveSpatialIndex index;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        index = new LiveSpatialIndex(0.01);
+        latitudes = new double[deviceCount];
+        longitudes = new double[deviceCount];
+        Random random = new Random(42);
+        for (int i = 0; i < deviceCount; i++) {
+            latitudes[i] = 39.5 + random.nextDouble() * 2;
+            longitudes[i] = -78 + random.nextDouble() * 2;
+            index.update("client" + i, latitudes[i], longitudes[i]);
+        }
+    }
+
+    @Benchmark
+    public List<LiveSpatialIndex.Match> findNearby() {
+        next = next + 1 == deviceCount ? 0 : next + 1;
+        return index.findNearby(latitudes[next], longitudes[next], radiusMeters);
+    }
+}
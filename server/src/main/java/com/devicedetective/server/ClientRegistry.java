@@ -0,0 +1,228 @@
+package com.devicedetective.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Thread-safe registry of the clients that are currently reporting their location. It replaces a plain list of client
+ * IDs with O(1) membership checks and keeps it limited to live devices:
+ * a client is bound to the STOMP session it last reported from and is removed when that session disconnects,
+ * and clients that have not reported for "devicedetective.registry.ttl-ms" are evicted by a periodic sweep.
+ */
+@Component
+public class ClientRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ClientRegistry.class);
+
+    /**
+     * Registered clients by clientId.
+     */
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Client IDs reported from each open STOMP session.
+     */
+    private final Map<String, Set<String>> sessionClients = new ConcurrentHashMap<>();
+
+    /**
+     * IDs of the currently connected STOMP sessions.
+     */
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+    private final LiveSpatialIndex liveSpatialIndex;
+    private final long ttlMillis;
+
+    /**
+     * Constructs the registry.
+     *
+     * @param liveSpatialIndex The live position index, from which evicted clients are removed.
+     * @param ttlMillis Time after the last report at which a client is considered gone.
+     */
+    public ClientRegistry(LiveSpatialIndex liveSpatialIndex,
+                          @Value("${devicedetective.registry.ttl-ms:300000}") long ttlMillis) {
+        this.liveSpatialIndex = liveSpatialIndex;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Records that a client reported its location, registering it if it is new.
+     *
+     * @param clientId The reporting client.
+     * @param sessionId The STOMP session the report arrived on, or null if unknown.
+     * @return true if the client was not registered before.
+     */
+    public boolean touch(String clientId, String sessionId) {
+        return touch(clientId, sessionId, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that a client reported its location at a given time, registering it if it is new. A client that was
+     * seen more recently keeps its later time, so it is evicted no earlier than that report allows.
+     *
+     * @param clientId The reporting client.
+     * @param sessionId The STOMP session the report arrived on, or null if unknown.
+     * @param seenAt Time of the report in epoch milliseconds, e.g. the "ts" of a location loaded from MongoDB.
+     * @return true if the client was not registered before.
+     */
+    public boolean touch(String clientId, String sessionId, long seenAt) {
+        Client client = clients.get(clientId);
+        if (client != null && (sessionId == null || sessionId.equals(client.sessionId))) {
+            // Common case of a known client on its usual session, no need to lock the entry.
+            if (seenAt > client.lastSeen) {
+                client.lastSeen = seenAt;
+            }
+            return false;
+        }
+        boolean[] added = new boolean[1];
+        clients.compute(clientId, (key, existing) -> {
+            if (existing == null) {
+                added[0] = true;
+                existing = new Client();
+            }
+            existing.lastSeen = Math.max(existing.lastSeen, seenAt);
+            if (sessionId != null && !sessionId.equals(existing.sessionId)) {
+                if (existing.sessionId != null) {
+                    unbind(existing.sessionId, clientId);
+                }
+                existing.sessionId = sessionId;
+                sessionClients.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(clientId);
+            }
+            return existing;
+        });
+        return added[0];
+    }
+
+    /**
+     * Checks whether a client is registered.
+     *
+     * @param clientId The client ID to check.
+     * @return true if the client is registered.
+     */
+    public boolean contains(String clientId) {
+        return clients.containsKey(clientId);
+    }
+
+    /**
+     * Returns a live view of the registered client IDs.
+     *
+     * @return The registered client IDs, safe to iterate while clients are added or removed.
+     */
+    public Collection<String> clientIds() {
+        return Collections.unmodifiableSet(clients.keySet());
+    }
+
+    /**
+     * Removes a client from the registry and the live position index.
+     *
+     * @param clientId The client to remove.
+     */
+    public void remove(String clientId) {
+        Client removed = clients.remove(clientId);
+        if (removed != null) {
+            if (removed.sessionId != null) {
+                unbind(removed.sessionId, clientId);
+            }
+            liveSpatialIndex.remove(clientId);
+        }
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Tracks a newly connected STOMP session.
+     *
+     * @param event The connect event published when a client sends a CONNECT frame.
+     */
+    @EventListener
+    public void onConnect(SessionConnectEvent event) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        if (sessionId != null) {
+            sessions.add(sessionId);
+        }
+    }
+
+    /**
+     * Removes the clients that were last reported from a session that has now closed.
+     *
+     * @param event The disconnect event published when a session ends.
+     */
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        sessions.remove(event.getSessionId());
+        Set<String> clientIds = sessionClients.remove(event.getSessionId());
+        if (clientIds == null) {
+            return;
+        }
+        for (String clientId : clientIds) {
+            boolean[] removed = new boolean[1];
+            // The device may already have reconnected on another session, so the binding is checked and the client
+            // removed in one step, while touch cannot rebind it.
+            clients.computeIfPresent(clientId, (key, client) -> {
+                if (!event.getSessionId().equals(client.sessionId)) {
+                    return client;
+                }
+                removed[0] = true;
+                return null;
+            });
+            if (removed[0]) {
+                liveSpatialIndex.remove(clientId);
+            }
+        }
+    }
+
+    /**
+     * Evicts the clients that have not reported within the TTL.
+     */
+    @Scheduled(fixedDelayString = "${devicedetective.registry.sweep-ms:10000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        int evicted = 0;
+        for (Map.Entry<String, Client> entry : clients.entrySet()) {
+            if (entry.getValue().lastSeen < cutoff && clients.remove(entry.getKey(), entry.getValue())) {
+                Client client = entry.getValue();
+                if (client.sessionId != null) {
+                    unbind(client.sessionId, entry.getKey());
+                }
+                liveSpatialIndex.remove(entry.getKey());
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            logger.debug("Evicted {} idle clients", evicted);
+        }
+    }
+
+    private void unbind(String sessionId, String clientId) {
+        sessionClients.computeIfPresent(sessionId, (key, clientIds) -> {
+            clientIds.remove(clientId);
+            return clientIds.isEmpty() ? null : clientIds;
+        });
+    }
+
+    /**
+     * Per-client state. The session binding is only changed inside compute on the clients map.
+     */
+    private static final class Client {
+        private volatile String sessionId;
+        private volatile long lastSeen;
+    }
+}
@@ -1,19 +1,38 @@
 package com.devicedetective.server;
 
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -46,6 +65,34 @@ public class DatabaseController {
      */
     private final MongoOperations mongoOp;
 
+    /**
+     * Maximum number of documents returned by a single streaming history request.
+     */
+    static final int MAX_STREAM_LIMIT = 10000;
+
+    /**
+     * Number of documents fetched from MongoDB per cursor round trip while streaming.
+     */
+    private static final int STREAM_BATCH_SIZE = 500;
+
+    /**
+     * Number of documents fetched from MongoDB per cursor round trip while exporting.
+     */
+    private static final int EXPORT_BATCH_SIZE = 1000;
+
+    /**
+     * Parses and writes bulk imports in batches.
+     */
+    @Autowired
+    private LocationImportService importService;
+
+    /**
+     * JSON output settings for streamed documents, using plain JSON numbers and dates where possible.
+     */
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+            .outputMode(JsonMode.RELAXED)
+            .build();
+
 
     /**
      * Constructor to MongoOperations, simplifying the operations like insert, delete, and query.
@@ -82,6 +129,8 @@ public class DatabaseController {
     /**
      * HTTP GET method to retrieve all documents from the 'devicedetective' collection that match the given clientId.
      * Maps to "/api/{clientId}" and returns all documents from the 'devicedetective' collection.
+     * The whole result is held in memory, use "/api/data/{clientId}/stream" or "/api/data/export" for clients with a
+     * long history.
      *
      * @return A list of Documents or an error message if no data is found.
      */
@@ -103,9 +152,199 @@ public class DatabaseController {
         return documents;
     }
 
+    /**
+     * HTTP GET method to stream the location history of a client. Maps to "/api/data/{clientId}/stream".
+     * Documents are written to the response as the cursor yields them, so memory per request stays constant no
+     * matter how much history the client has. Results are ordered by "ts" and then by "_id" to break ties, so the
+     * {clientId: 1, ts: 1, _id: 1} index serves the filter, the time range and the sort, and imported locations, whose
+     * "_id" was created long after their "ts", appear at their place in time.
+     *
+     * To page through the history, pass the "ts" in epoch milliseconds and the "_id" of the last document received as
+     * "after", e.g. "1700000000000:65a1b2c3d4e5f60718293a4b", on the next request. Both fields are always included in
+     * the results, even when "fields" leaves them out.
+     *
+     * @param clientId The client whose history to stream.
+     * @param after Cursor "{ts}:{_id}" of the last document of the previous page, exclusive.
+     * @param from Start of the time range of "ts" in epoch milliseconds, inclusive.
+     * @param to End of the time range of "ts" in epoch milliseconds, exclusive.
+     * @param fields Comma separated list of fields to include, all fields if omitted.
+     * @param limit Maximum number of documents to return, capped at MAX_STREAM_LIMIT.
+     * @param format "ndjson" for one JSON document per line (default) or "json" for a chunked JSON array.
+     * @return A streaming response body that writes the documents.
+     */
+    @GetMapping("/data/{clientId}/stream")
+    public ResponseEntity<StreamingResponseBody> streamDataByClientId(
+            @PathVariable String clientId,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) Long from,
+            @RequestParam(required = false) Long to,
+            @RequestParam(required = false) List<String> fields,
+            @RequestParam(defaultValue = "" + MAX_STREAM_LIMIT) int limit,
+            @RequestParam(defaultValue = "ndjson") String format) {
+        List<Bson> filters = new ArrayList<>();
+        filters.add(Filters.eq("clientId", clientId));
+        if (after != null) {
+            Bson position = afterCursor(after);
+            if (position == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            filters.add(position);
+        }
+        if (from != null) {
+            filters.add(Filters.gte(LocationService.TIMESTAMP_FIELD, new Date(from)));
+        }
+        if (to != null) {
+            filters.add(Filters.lt(LocationService.TIMESTAMP_FIELD, new Date(to)));
+        }
+
+        MongoDatabase database = mongoClient.getDatabase("test");
+        MongoCollection<Document> collection = database.getCollection("devicedetective");
+        FindIterable<Document> found = collection.find(Filters.and(filters))
+                .sort(Sorts.ascending(LocationService.TIMESTAMP_FIELD, "_id"))
+                .limit(Math.max(1, Math.min(limit, MAX_STREAM_LIMIT)))
+                .batchSize(STREAM_BATCH_SIZE);
+        if (fields != null && !fields.isEmpty()) {
+            // The cursor for the next page needs "ts", "_id" is included by default.
+            Set<String> included = new LinkedHashSet<>(fields);
+            included.add(LocationService.TIMESTAMP_FIELD);
+            found = found.projection(Projections.include(new ArrayList<>(included)));
+        }
+
+        boolean jsonArray = "json".equalsIgnoreCase(format);
+        FindIterable<Document> query = found;
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            boolean first = true;
+            if (jsonArray) {
+                writer.write('[');
+            }
+            try (MongoCursor<Document> cursor = query.iterator()) {
+                while (cursor.hasNext()) {
+                    if (jsonArray && !first) {
+                        writer.write(',');
+                    }
+                    writer.write(cursor.next().toJson(JSON_SETTINGS));
+                    if (!jsonArray) {
+                        writer.write('\n');
+                    }
+                    first = false;
+                }
+            }
+            if (jsonArray) {
+                writer.write(']');
+            }
+            writer.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(jsonArray ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    /**
+     * Parses a paging cursor of the form "{ts}:{_id}" into a filter for the documents after it in ("ts", "_id") order.
+     *
+     * @param after The cursor.
+     * @return The filter, or null if the cursor is malformed.
+     */
+    private static Bson afterCursor(String after) {
+        int separator = after.indexOf(':');
+        if (separator < 0 || !ObjectId.isValid(after.substring(separator + 1))) {
+            return null;
+        }
+        Date ts;
+        try {
+            ts = new Date(Long.parseLong(after.substring(0, separator)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ObjectId id = new ObjectId(after.substring(separator + 1));
+        return Filters.or(
+                Filters.gt(LocationService.TIMESTAMP_FIELD, ts),
+                Filters.and(Filters.eq(LocationService.TIMESTAMP_FIELD, ts), Filters.gt("_id", id)));
+    }
+
+    /**
+     * HTTP GET method to export location documents as gzip-compressed NDJSON. Maps to "/api/data/export".
+     * Documents are compressed and written as the cursor yields them, so an export of the whole collection runs in
+     * constant memory. The output can be imported again through "/api/data/import".
+     *
+     * @param clientId Only export the locations of this client if given, ordered by time.
+     * @param from Start of the time range of "ts" in epoch milliseconds, inclusive.
+     * @param to End of the time range of "ts" in epoch milliseconds, exclusive.
+     * @return A streaming response body with the file "devicedetective.ndjson.gz".
+     */
+    @GetMapping("/data/export")
+    public ResponseEntity<StreamingResponseBody> exportData(@RequestParam(required = false) String clientId,
+                                                            @RequestParam(required = false) Long from,
+                                                            @RequestParam(required = false) Long to) {
+        List<Bson> filters = new ArrayList<>();
+        if (clientId != null) {
+            filters.add(Filters.eq("clientId", clientId));
+        }
+        if (from != null) {
+            filters.add(Filters.gte(LocationService.TIMESTAMP_FIELD, new Date(from)));
+        }
+        if (to != null) {
+            filters.add(Filters.lt(LocationService.TIMESTAMP_FIELD, new Date(to)));
+        }
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        // With a clientId the {clientId: 1, ts: -1} index serves the sort, otherwise the "_id" index does.
+        FindIterable<Document> query = collection.find(filters.isEmpty() ? new Document() : Filters.and(filters))
+                .sort(clientId != null ? Sorts.ascending(LocationService.TIMESTAMP_FIELD) : Sorts.ascending("_id"))
+                .batchSize(EXPORT_BATCH_SIZE);
+
+        StreamingResponseBody body = outputStream -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(outputStream, 64 * 1024);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 64 * 1024);
+            try (MongoCursor<Document> cursor = query.iterator()) {
+                while (cursor.hasNext()) {
+                    writer.write(cursor.next().toJson(JSON_SETTINGS));
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+            gzip.finish();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/gzip"))
+                .header("Content-Disposition", "attachment; filename=\"devicedetective.ndjson.gz\"")
+                .body(body);
+    }
+
+    /**
+     * HTTP POST method to bulk import location documents. Maps to "/api/data/import".
+     * The body is read as a stream of NDJSON, one document per line as written by "/api/data/export", or CSV with a
+     * header line, e.g. "clientId,ts,latitude,longitude". It may be gzip-compressed. Records are written in unordered
+     * batches, a record that fails is reported and skipped.
+     *
+     * @param body The request body.
+     * @param format "ndjson" or "csv", taken from the content type ("text/csv" for CSV) if omitted.
+     * @param contentType The content type of the body.
+     * @return A report with the number of inserted and failed records and the first errors with their line numbers.
+     */
+    @PostMapping("/data/import")
+    public ResponseEntity<Document> importData(InputStream body,
+                                               @RequestParam(required = false) String format,
+                                               @RequestHeader(value = "Content-Type", required = false)
+                                               String contentType) throws IOException {
+        LocationImportReader.Format importFormat;
+        if (format != null) {
+            try {
+                importFormat = LocationImportReader.Format.valueOf(format.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(new Document("error", "Unknown format: " + format));
+            }
+        } else {
+            importFormat = contentType != null && contentType.startsWith("text/csv")
+                    ? LocationImportReader.Format.CSV : LocationImportReader.Format.NDJSON;
+        }
+        return ResponseEntity.ok(importService.importLocations(body, importFormat));
+    }
+
     /**
      * HTTP POST method to add a new document to the 'devicedetective' collection.
-     * Maps to "/api/add" and adds the document.
+     * Maps to "/api/add" and adds the document. Use "/api/data/import" to add many documents at once.
      *
      * @param document A JSON body of the document to add.
      */
@@ -0,0 +1,256 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * An immutable geofence, either a circle around a point or a polygon. A fence with a groupId only applies to the
+ * devices of that group, a fence without one applies to every device.
+ *
+ * Besides the exact containment test every fence carries its latitude/longitude bounding box, which the GeofenceIndex
+ * uses to find the candidate fences of a position. Polygons are tested in plain latitude/longitude degrees and must
+ * not cross the antimeridian.
+ */
+public final class Geofence {
+
+    /**
+     * Maximum number of vertices of a polygon fence.
+     */
+    static final int MAX_VERTICES = 1000;
+
+    private final String id;
+    private final String groupId;
+
+    /**
+     * Centre and radius of a circle, NaN for a polygon.
+     */
+    private final double latitude;
+    private final double longitude;
+    private final double radiusMeters;
+
+    /**
+     * Vertices of a polygon, null for a circle.
+     */
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double maxLatitude;
+    private final double maxLongitude;
+
+    private Geofence(String id, String groupId, double latitude, double longitude, double radiusMeters,
+                     double[] latitudes, double[] longitudes,
+                     double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        this.id = id;
+        this.groupId = groupId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radiusMeters = radiusMeters;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.minLatitude = minLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLatitude = maxLatitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    /**
+     * Creates a circular fence.
+     *
+     * @param id The fence ID.
+     * @param groupId The group the fence applies to, or null for all devices.
+     * @param latitude Latitude of the centre in degrees.
+     * @param longitude Longitude of the centre in degrees.
+     * @param radiusMeters Radius in metres.
+     * @return The fence.
+     */
+    public static Geofence circle(String id, String groupId, double latitude, double longitude, double radiusMeters) {
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)) {
+            throw new IllegalArgumentException("Circle centre out of range");
+        }
+        if (!(radiusMeters > 0)) {
+            throw new IllegalArgumentException("Circle radius must be positive");
+        }
+        double latDelta = Math.toDegrees(radiusMeters / LiveSpatialIndex.EARTH_RADIUS_METERS);
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        // A circle reaching over a pole contains points of every longitude, and near the poles the longitude span of
+        // the radius covers the whole globe anyway.
+        boolean coversPole = latitude + latDelta >= 90 || latitude - latDelta <= -90;
+        double lngDelta = coversPole || cosLat < 1e-9 ? 180 : Math.min(180, latDelta / cosLat);
+        return new Geofence(id, groupId, latitude, longitude, radiusMeters, null, null,
+                Math.max(-90, latitude - latDelta), longitude - lngDelta,
+                Math.min(90, latitude + latDelta), longitude + lngDelta);
+    }
+
+    /**
+     * Creates a polygon fence. The polygon is closed implicitly, the last vertex need not repeat the first.
+     *
+     * @param id The fence ID.
+     * @param groupId The group the fence applies to, or null for all devices.
+     * @param latitudes Latitudes of the vertices in degrees.
+     * @param longitudes Longitudes of the vertices in degrees.
+     * @return The fence.
+     */
+    public static Geofence polygon(String id, String groupId, double[] latitudes, double[] longitudes) {
+        if (latitudes.length != longitudes.length || latitudes.length < 3 || latitudes.length > MAX_VERTICES) {
+            throw new IllegalArgumentException("A polygon needs between 3 and " + MAX_VERTICES + " vertices");
+        }
+        double minLatitude = 90;
+        double minLongitude = 180;
+        double maxLatitude = -90;
+        double maxLongitude = -180;
+        for (int i = 0; i < latitudes.length; i++) {
+            if (!(Math.abs(latitudes[i]) <= 90) || !(Math.abs(longitudes[i]) <= 180)) {
+                throw new IllegalArgumentException("Polygon vertex out of range");
+            }
+            minLatitude = Math.min(minLatitude, latitudes[i]);
+            minLongitude = Math.min(minLongitude, longitudes[i]);
+            maxLatitude = Math.max(maxLatitude, latitudes[i]);
+            maxLongitude = Math.max(maxLongitude, longitudes[i]);
+        }
+        return new Geofence(id, groupId, Double.NaN, Double.NaN, Double.NaN, latitudes.clone(), longitudes.clone(),
+                minLatitude, minLongitude, maxLatitude, maxLongitude);
+    }
+
+    /**
+     * Reads a fence from its JSON form:
+     * {"type": "circle", "latitude": .., "longitude": .., "radius": ..} or
+     * {"type": "polygon", "points": [[lat, lng], ...]}, both with an optional "id" and "groupId".
+     * A random ID is assigned if none is given.
+     *
+     * @param document The fence definition.
+     * @return The fence.
+     * @throws IllegalArgumentException if the definition is incomplete or invalid.
+     */
+    public static Geofence fromDocument(Document document) {
+        String id = document.get("id") instanceof String value && !value.isBlank()
+                ? value : UUID.randomUUID().toString();
+        String groupId = document.get("groupId") instanceof String value ? value : null;
+        String type = document.get("type") instanceof String value ? value : "";
+        switch (type) {
+            case "circle":
+                return circle(id, groupId, number(document.get("latitude")), number(document.get("longitude")),
+                        number(document.get("radius")));
+            case "polygon":
+                if (!(document.get("points") instanceof List<?> points)) {
+                    throw new IllegalArgumentException("A polygon needs \"points\"");
+                }
+                double[] latitudes = new double[points.size()];
+                double[] longitudes = new double[points.size()];
+                for (int i = 0; i < points.size(); i++) {
+                    if (!(points.get(i) instanceof List<?> point) || point.size() != 2) {
+                        throw new IllegalArgumentException("Polygon points must be [latitude, longitude] pairs");
+                    }
+                    latitudes[i] = number(point.get(0));
+                    longitudes[i] = number(point.get(1));
+                }
+                return polygon(id, groupId, latitudes, longitudes);
+            default:
+                throw new IllegalArgumentException("Unknown geofence type \"" + type + "\"");
+        }
+    }
+
+    /**
+     * Returns the JSON form of the fence, as read by fromDocument.
+     */
+    public Document toDocument() {
+        Document document = new Document("id", id).append("groupId", groupId);
+        if (latitudes == null) {
+            return document.append("type", "circle")
+                    .append("latitude", latitude)
+                    .append("longitude", longitude)
+                    .append("radius", radiusMeters);
+        }
+        List<List<Double>> points = new ArrayList<>(latitudes.length);
+        for (int i = 0; i < latitudes.length; i++) {
+            points.add(List.of(latitudes[i], longitudes[i]));
+        }
+        return document.append("type", "polygon").append("points", points);
+    }
+
+    /**
+     * Checks whether a position lies inside the fence.
+     *
+     * @param pointLatitude Latitude in degrees.
+     * @param pointLongitude Longitude in degrees.
+     * @return true if the position is inside or on the border.
+     */
+    public boolean contains(double pointLatitude, double pointLongitude) {
+        // Cheap bounding box test first. The box of a circle crossing the antimeridian extends beyond +-180, so its
+        // longitudes are left to the distance check.
+        if (pointLatitude < minLatitude || pointLatitude > maxLatitude) {
+            return false;
+        }
+        if (minLongitude >= -180 && maxLongitude <= 180
+                && (pointLongitude < minLongitude || pointLongitude > maxLongitude)) {
+            return false;
+        }
+        if (latitudes == null) {
+            return LiveSpatialIndex.distanceMeters(latitude, longitude, pointLatitude, pointLongitude) <= radiusMeters;
+        }
+        // Even-odd ray casting towards increasing longitude.
+        boolean inside = false;
+        for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+            if ((latitudes[i] > pointLatitude) != (latitudes[j] > pointLatitude)) {
+                double crossing = longitudes[i] + (pointLatitude - latitudes[i])
+                        * (longitudes[j] - longitudes[i]) / (latitudes[j] - latitudes[i]);
+                if (pointLongitude < crossing) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Checks whether the fence applies to devices of a group.
+     *
+     * @param deviceGroupId The group of the device, may be null.
+     * @return true if the fence has no group or the same group.
+     */
+    public boolean appliesTo(String deviceGroupId) {
+        return groupId == null || groupId.equals(deviceGroupId);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    /**
+     * Returns the western edge of the bounding box, below -180 for a circle crossing the antimeridian.
+     */
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    /**
+     * Returns the eastern edge of the bounding box, above 180 for a circle crossing the antimeridian.
+     */
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        throw new IllegalArgumentException("Expected a number but got " + value);
+    }
+}
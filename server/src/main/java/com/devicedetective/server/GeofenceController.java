@@ -0,0 +1,81 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * REST controller for registering geofences. Devices entering or leaving a fence are reported by the GeofenceMonitor
+ * on "/topic/geofences/{groupId}", or "/topic/geofences" for fences without a group.
+ * Fences are held in memory by the server instance they were registered with.
+ */
+@RestController
+@RequestMapping("/api/geofences")
+public class GeofenceController {
+
+    private final GeofenceIndex geofenceIndex;
+
+    public GeofenceController(GeofenceIndex geofenceIndex) {
+        this.geofenceIndex = geofenceIndex;
+    }
+
+    /**
+     * HTTP POST method registering a fence, replacing a fence with the same ID. Maps to "/api/geofences".
+     * The body is either {"type": "circle", "latitude": .., "longitude": .., "radius": ..} with the radius in metres
+     * or {"type": "polygon", "points": [[lat, lng], ...]}, both with an optional "id" and "groupId".
+     *
+     * @param definition The fence definition.
+     * @return The registered fence including its ID, or 400 with an "error" if the definition is invalid.
+     */
+    @PostMapping
+    public ResponseEntity<Document> registerGeofence(@RequestBody Document definition) {
+        Geofence fence;
+        try {
+            fence = Geofence.fromDocument(definition);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new Document("error", e.getMessage()));
+        }
+        geofenceIndex.register(fence);
+        return ResponseEntity.ok(fence.toDocument());
+    }
+
+    /**
+     * HTTP GET method listing the registered fences. Maps to "/api/geofences", optionally with "?groupId=".
+     *
+     * @param groupId Only list the fences of this group if given.
+     * @return The fences.
+     */
+    @GetMapping
+    public List<Document> listGeofences(@RequestParam(required = false) String groupId) {
+        List<Document> documents = new ArrayList<>();
+        for (Geofence fence : geofenceIndex.getFences()) {
+            if (groupId == null || groupId.equals(fence.getGroupId())) {
+                documents.add(fence.toDocument());
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * HTTP DELETE method removing a fence. Maps to "/api/geofences/{id}".
+     *
+     * @param id The fence ID.
+     * @return The removed fence, or 404 if there was none.
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Document> removeGeofence(@PathVariable String id) {
+        Geofence removed = geofenceIndex.remove(id);
+        return removed == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(removed.toDocument());
+    }
+}
@@ -0,0 +1,272 @@
+package com.devicedetective.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * In-memory index of the registered geofences and of the fences every device is currently inside, evaluated for
+ * each received location.
+ *
+ * The bounding box of every fence is rasterized onto a grid of "devicedetective.geofence.cell-degrees" cells, so a
+ * position only has to be tested against the few fences whose box covers its cell, however many fences are
+ * registered. Fences whose box spans more than MAX_CELLS_PER_FENCE cells are kept in a short list that is tested for
+ * every position instead of filling the grid. Cells hold immutable arrays that are replaced on registration, as
+ * fences change rarely and are read on every update.
+ *
+ * A device is only tracked while it is inside at least one fence, so devices far from any fence cost a cell lookup
+ * and a map lookup per update.
+ */
+@Component
+public class GeofenceIndex {
+
+    /**
+     * Largest number of grid cells a fence is added to, larger fences are tested for every position.
+     */
+    static final int MAX_CELLS_PER_FENCE = 4096;
+
+    private static final Geofence[] NO_FENCES = new Geofence[0];
+
+    /**
+     * Registered fences by ID.
+     */
+    private final Map<String, Geofence> fences = new ConcurrentHashMap<>();
+
+    /**
+     * Fences whose bounding box overlaps each grid cell.
+     */
+    private final Map<Long, Geofence[]> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Fences too large for the grid.
+     */
+    private volatile Geofence[] largeFences = NO_FENCES;
+
+    /**
+     * IDs of the fences each device was inside at its last evaluated position.
+     */
+    private final Map<String, Set<String>> inside = new ConcurrentHashMap<>();
+
+    private final double cellDegrees;
+    private final int columnCount;
+
+    /**
+     * Constructs the index with the configured cell size.
+     *
+     * @param cellDegrees Edge length of a grid cell in degrees, in the order of the typical fence size.
+     */
+    public GeofenceIndex(@Value("${devicedetective.geofence.cell-degrees:0.05}") double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 180) {
+            throw new IllegalArgumentException("devicedetective.geofence.cell-degrees must be in (0, 180]");
+        }
+        this.cellDegrees = cellDegrees;
+        this.columnCount = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    /**
+     * Registers a fence, replacing a fence with the same ID.
+     *
+     * @param fence The fence to add.
+     */
+    public synchronized void register(Geofence fence) {
+        remove(fence.getId());
+        fences.put(fence.getId(), fence);
+        List<Long> covered = coveredCells(fence);
+        if (covered == null) {
+            largeFences = append(largeFences, fence);
+            return;
+        }
+        for (long cell : covered) {
+            cells.merge(cell, new Geofence[] {fence}, GeofenceIndex::append);
+        }
+    }
+
+    /**
+     * Removes a fence. Devices inside it do not get an exit event.
+     *
+     * @param fenceId The ID of the fence to remove.
+     * @return The removed fence, or null if there was none.
+     */
+    public synchronized Geofence remove(String fenceId) {
+        Geofence fence = fences.remove(fenceId);
+        if (fence == null) {
+            return null;
+        }
+        List<Long> covered = coveredCells(fence);
+        if (covered == null) {
+            largeFences = without(largeFences, fence);
+        } else {
+            for (long cell : covered) {
+                cells.computeIfPresent(cell, (key, cellFences) -> {
+                    Geofence[] remaining = without(cellFences, fence);
+                    return remaining.length == 0 ? null : remaining;
+                });
+            }
+        }
+        return fence;
+    }
+
+    /**
+     * Returns a registered fence.
+     *
+     * @param fenceId The fence ID.
+     * @return The fence, or null if there is none.
+     */
+    public Geofence get(String fenceId) {
+        return fences.get(fenceId);
+    }
+
+    /**
+     * Returns the registered fences.
+     */
+    public Collection<Geofence> getFences() {
+        return fences.values();
+    }
+
+    /**
+     * Updates the fences a device is inside with its new position.
+     *
+     * @param clientId The device.
+     * @param groupId The group of the device, only fences of that group or of no group apply.
+     * @param latitude The new latitude in degrees.
+     * @param longitude The new longitude in degrees.
+     * @return The fences the device entered or left with this position, empty in the common case.
+     */
+    public List<Transition> evaluate(String clientId, String groupId, double latitude, double longitude) {
+        Geofence[] cellFences = cells.getOrDefault(cellOf(latitude, longitude), NO_FENCES);
+        Geofence[] large = largeFences;
+        if (cellFences.length == 0 && large.length == 0 && !inside.containsKey(clientId)) {
+            return List.of();
+        }
+        Set<String> now = new HashSet<>();
+        collectContaining(cellFences, groupId, latitude, longitude, now);
+        collectContaining(large, groupId, latitude, longitude, now);
+        if (now.isEmpty() && !inside.containsKey(clientId)) {
+            return List.of();
+        }
+
+        List<Transition> transitions = new ArrayList<>();
+        // Applied inside compute so concurrent updates of the same device see each other's state.
+        inside.compute(clientId, (key, previous) -> {
+            transitions.clear();
+            for (String fenceId : now) {
+                if (previous == null || !previous.contains(fenceId)) {
+                    transitions.add(new Transition(fences.get(fenceId), true));
+                }
+            }
+            if (previous != null) {
+                for (String fenceId : previous) {
+                    Geofence fence = fences.get(fenceId);
+                    // A fence removed in the meantime is dropped silently.
+                    if (fence != null && !now.contains(fenceId)) {
+                        transitions.add(new Transition(fence, false));
+                    }
+                }
+            }
+            return now.isEmpty() ? null : now;
+        });
+        transitions.removeIf(transition -> transition.fence() == null);
+        return transitions;
+    }
+
+    /**
+     * Forgets the fence state of a device, e.g. when it is no longer live. Its next position is evaluated as if it was
+     * outside every fence before.
+     *
+     * @param clientId The device to forget.
+     */
+    public void forget(String clientId) {
+        inside.remove(clientId);
+    }
+
+    public int size() {
+        return fences.size();
+    }
+
+    /**
+     * Returns a live view of the devices currently inside at least one fence.
+     */
+    public Set<String> trackedDevices() {
+        return inside.keySet();
+    }
+
+    private static void collectContaining(Geofence[] candidates, String groupId, double latitude, double longitude,
+                                          Set<String> result) {
+        for (Geofence fence : candidates) {
+            if (fence.appliesTo(groupId) && fence.contains(latitude, longitude)) {
+                result.add(fence.getId());
+            }
+        }
+    }
+
+    /**
+     * Lists the grid cells overlapping the bounding box of a fence.
+     *
+     * @return The cell keys, or null if there are more than MAX_CELLS_PER_FENCE.
+     */
+    private List<Long> coveredCells(Geofence fence) {
+        int minRow = row(fence.getMinLatitude());
+        int maxRow = row(fence.getMaxLatitude());
+        int minColumn = column(fence.getMinLongitude());
+        int maxColumn = column(fence.getMaxLongitude());
+        long spannedCells = (long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1);
+        if (maxColumn - minColumn + 1 >= columnCount || spannedCells > MAX_CELLS_PER_FENCE) {
+            return null;
+        }
+        List<Long> covered = new ArrayList<>((int) spannedCells);
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                covered.add(key(row, Math.floorMod(column, columnCount)));
+            }
+        }
+        return covered;
+    }
+
+    private long cellOf(double latitude, double longitude) {
+        return key(row(latitude), Math.floorMod(column(longitude), columnCount));
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / cellDegrees);
+    }
+
+    private int column(double longitude) {
+        return (int) Math.floor((longitude + 180) / cellDegrees);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    private static Geofence[] append(Geofence[] fences, Geofence[] added) {
+        Geofence[] result = Arrays.copyOf(fences, fences.length + added.length);
+        System.arraycopy(added, 0, result, fences.length, added.length);
+        return result;
+    }
+
+    private static Geofence[] append(Geofence[] fences, Geofence added) {
+        return append(fences, new Geofence[] {added});
+    }
+
+    private static Geofence[] without(Geofence[] fences, Geofence removed) {
+        return Arrays.stream(fences).filter(fence -> fence != removed).toArray(Geofence[]::new);
+    }
+
+    /**
+     * A device entering or leaving a fence.
+     *
+     * @param fence The fence.
+     * @param entered true if the device entered the fence, false if it left.
+     */
+    public record Transition(Geofence fence, boolean entered) {
+    }
+}
@@ -0,0 +1,96 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Evaluates every received location against the GeofenceIndex and sends an event when a device enters or leaves a
+ * fence. Events of a fence with a groupId go to "/topic/geofences/{groupId}", events of a fence without a group to
+ * "/topic/geofences". Each event carries the fence ID, the clientId, "enter" or "exit" as "event", the position that
+ * triggered it and the server time in "ts".
+ *
+ * Events are rare compared to location updates, so they are sent right away rather than batched per broadcast tick.
+ */
+@Component
+public class GeofenceMonitor {
+
+    /**
+     * Destination of the events of fences without a group, followed by "/{groupId}" for fences with one.
+     */
+    static final String GEOFENCE_TOPIC = "/topic/geofences";
+
+    private final GeofenceIndex geofenceIndex;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final TopicSubscriptionTracker subscriptionTracker;
+    private final ClientRegistry clientRegistry;
+
+    private final LongAdder entered = new LongAdder();
+    private final LongAdder exited = new LongAdder();
+
+    /**
+     * Constructs the monitor.
+     *
+     * @param geofenceIndex The registered fences and the fences each device is inside.
+     * @param messagingTemplate The template used to send the events.
+     * @param subscriptionTracker Tracks which destinations have subscribers.
+     * @param clientRegistry The registry of live clients, used to forget devices that went away.
+     */
+    public GeofenceMonitor(GeofenceIndex geofenceIndex, SimpMessagingTemplate messagingTemplate,
+                           TopicSubscriptionTracker subscriptionTracker, ClientRegistry clientRegistry) {
+        this.geofenceIndex = geofenceIndex;
+        this.messagingTemplate = messagingTemplate;
+        this.subscriptionTracker = subscriptionTracker;
+        this.clientRegistry = clientRegistry;
+    }
+
+    /**
+     * Evaluates a received location and sends the resulting enter and exit events.
+     *
+     * @param location The received location. Locations without valid coordinates are ignored.
+     */
+    public void check(Location location) {
+        double[] coordinates = LocationService.coordinatesOf(location);
+        if (location.getClientId() == null || coordinates == null) {
+            return;
+        }
+        List<GeofenceIndex.Transition> transitions = geofenceIndex.evaluate(location.getClientId(),
+                location.getGroupId(), coordinates[0], coordinates[1]);
+        for (GeofenceIndex.Transition transition : transitions) {
+            (transition.entered() ? entered : exited).increment();
+            Geofence fence = transition.fence();
+            String destination = fence.getGroupId() == null
+                    ? GEOFENCE_TOPIC : GEOFENCE_TOPIC + "/" + fence.getGroupId();
+            if (subscriptionTracker.hasSubscribers(destination)) {
+                messagingTemplate.convertAndSend(destination, new Document("fenceId", fence.getId())
+                        .append("clientId", location.getClientId())
+                        .append("event", transition.entered() ? "enter" : "exit")
+                        .append("latitude", coordinates[0])
+                        .append("longitude", coordinates[1])
+                        .append(LocationService.TIMESTAMP_FIELD, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Forgets the fence state of devices that are no longer in the client registry, so that a device returning
+     * inside a fence gets a fresh enter event.
+     */
+    @Scheduled(fixedDelayString = "${devicedetective.registry.sweep-ms:10000}")
+    public void evictGone() {
+        geofenceIndex.trackedDevices().removeIf(clientId -> !clientRegistry.contains(clientId));
+    }
+
+    public long getEntered() {
+        return entered.sum();
+    }
+
+    public long getExited() {
+        return exited.sum();
+    }
+}
@@ -0,0 +1,52 @@
+package com.devicedetective.server;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+
+
+/**
+ * Interceptor on the client inbound channel that times how long each message spends in the @MessageMapping handlers
+ * and reports it to LocationMetrics per destination. Both callbacks run on the thread that handles the message, so
+ * the start time is kept in a thread local.
+ */
+public class HandlerTimingInterceptor implements ExecutorChannelInterceptor {
+
+    private final LocationMetrics metrics;
+    private final ThreadLocal<long[]> startNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Constructs the interceptor.
+     *
+     * @param metrics The metrics the handling times are recorded to.
+     */
+    public HandlerTimingInterceptor(LocationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        if (handler instanceof SimpAnnotationMethodMessageHandler) {
+            startNanos.get()[0] = System.nanoTime();
+        }
+        return message;
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        if (!(handler instanceof SimpAnnotationMethodMessageHandler)) {
+            // The broker and user destination handlers see every message too, only application handlers are timed.
+            return;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        // SUBSCRIBE frames reach the same handler, their per-device destinations would only add tags.
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        if (destination != null && type == SimpMessageType.MESSAGE) {
+            metrics.recordHandler(destination, System.nanoTime() - startNanos.get()[0]);
+        }
+    }
+}
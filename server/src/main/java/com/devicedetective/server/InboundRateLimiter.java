@@ -0,0 +1,123 @@
+package com.devicedetective.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Token-bucket limits on the messages clients send, so a buggy or malicious client cannot flood the handlers with
+ * MongoDB writes and broadcasts.
+ *
+ * Two limits apply. As an interceptor on the client inbound channel, every STOMP session may send
+ * "devicedetective.ratelimit.session-per-second" messages with bursts of "session-burst". Excess messages are
+ * dropped before they are queued for a handler thread. Since one session may report for several devices, the
+ * handlers additionally limit each clientId to "client-per-second" with bursts of "client-burst" through allowClient.
+ * Dropped messages are counted and logged at most once per sweep.
+ */
+@Component
+public class InboundRateLimiter implements ChannelInterceptor {
+    private static final Logger logger = LoggerFactory.getLogger(InboundRateLimiter.class);
+
+    private final boolean enabled;
+    private final TokenBucketLimiter sessionLimiter;
+    private final TokenBucketLimiter clientLimiter;
+
+    private final LongAdder rejectedSessionMessages = new LongAdder();
+    private final LongAdder rejectedClientMessages = new LongAdder();
+    private long loggedRejections;
+
+    /**
+     * Constructs the limiter from the "devicedetective.ratelimit" settings.
+     *
+     * @param enabled Whether messages are limited at all.
+     * @param sessionPerSecond Sustained messages per second of a STOMP session.
+     * @param sessionBurst Messages a STOMP session may send at once.
+     * @param clientPerSecond Sustained location reports per second of a clientId.
+     * @param clientBurst Location reports a clientId may send at once.
+     */
+    public InboundRateLimiter(@Value("${devicedetective.ratelimit.enabled:true}") boolean enabled,
+                              @Value("${devicedetective.ratelimit.session-per-second:50}") double sessionPerSecond,
+                              @Value("${devicedetective.ratelimit.session-burst:100}") double sessionBurst,
+                              @Value("${devicedetective.ratelimit.client-per-second:5}") double clientPerSecond,
+                              @Value("${devicedetective.ratelimit.client-burst:10}") double clientBurst) {
+        this.enabled = enabled;
+        this.sessionLimiter = new TokenBucketLimiter(sessionPerSecond, sessionBurst);
+        this.clientLimiter = new TokenBucketLimiter(clientPerSecond, clientBurst);
+    }
+
+    /**
+     * Drops the messages of sessions over their rate. Returning null stops the message before it reaches the channel
+     * executor.
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (!enabled || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+            return message;
+        }
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (sessionId == null || sessionLimiter.tryAcquire(sessionId)) {
+            return message;
+        }
+        rejectedSessionMessages.increment();
+        return null;
+    }
+
+    /**
+     * Checks whether a client may report another location.
+     *
+     * @param clientId The reporting client, may be null.
+     * @return true if the report should be handled, false to drop it.
+     */
+    public boolean allowClient(String clientId) {
+        if (!enabled || clientId == null || clientLimiter.tryAcquire(clientId)) {
+            return true;
+        }
+        rejectedClientMessages.increment();
+        return false;
+    }
+
+    /**
+     * Forgets the bucket of a closed session.
+     *
+     * @param event The disconnect event published when a session closes.
+     */
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        sessionLimiter.remove(event.getSessionId());
+    }
+
+    /**
+     * Drops the buckets of sessions and clients that stayed within their rate, and logs the rejections since the
+     * previous sweep.
+     */
+    @Scheduled(fixedDelayString = "${devicedetective.registry.sweep-ms:10000}")
+    public void sweep() {
+        sessionLimiter.evictIdle();
+        clientLimiter.evictIdle();
+        long rejected = getRejectedSessionMessages() + getRejectedClientMessages();
+        if (rejected > loggedRejections) {
+            logger.warn("Dropped {} messages over the inbound rate limits", rejected - loggedRejections);
+            loggedRejections = rejected;
+        }
+    }
+
+    public long getRejectedSessionMessages() {
+        return rejectedSessionMessages.sum();
+    }
+
+    public long getRejectedClientMessages() {
+        return rejectedClientMessages.sum();
+    }
+}
@@ -0,0 +1,217 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+
+/**
+ * In-memory store of the most recent location document of every tracked client, keyed by clientId.
+ * It is updated on every write by the LocationService so that sync and register requests can be answered
+ * without a MongoDB round trip per client. MongoDB is only consulted to fill the store on a miss.
+ *
+ * The store is bounded by "devicedetective.store.max-size". Once the cap is exceeded the client that was
+ * inserted first is evicted, which keeps memory flat on a fleet with a long tail of inactive devices.
+ */
+@Component
+public class LatestLocationStore {
+
+    /**
+     * Latest location document per clientId.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * ClientIds by the sequence number of their insert, used to pick the eviction victim once the store is full.
+     * Keyed by sequence number so that a removed client can be dropped from the order without a scan.
+     */
+    private final ConcurrentNavigableMap<Long, String> insertionOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * Maximum number of clients kept in memory.
+     */
+    private final int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * Constructs the store with the configured size cap.
+     *
+     * @param maxSize The maximum number of clients to keep before evicting the oldest entry.
+     */
+    public LatestLocationStore(@Value("${devicedetective.store.max-size:100000}") int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("devicedetective.store.max-size must be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Records the latest location document of a client, replacing any previous one.
+     *
+     * @param clientId The client the document belongs to.
+     * @param document The location document as persisted to MongoDB.
+     */
+    public void put(String clientId, Document document) {
+        store(clientId, document, (previous, fresh) -> true);
+    }
+
+    /**
+     * Records a location document unless the store already holds a newer one for the client, by comparing their "ts".
+     * The comparison and the replacement happen in one step, so a concurrent put of a newer document is never
+     * overwritten.
+     *
+     * @param clientId The client the document belongs to.
+     * @param document The location document, e.g. as saved by another server instance.
+     * @return true if the document was stored.
+     */
+    public boolean putIfNewer(String clientId, Document document) {
+        return store(clientId, document, LatestLocationStore::isNotOlder) == document;
+    }
+
+    /**
+     * Retrieves the latest location document of a client from memory only.
+     *
+     * @param clientId The client ID to look up.
+     * @return The latest location document, or null if the client is not in the store.
+     */
+    public Document get(String clientId) {
+        Entry entry = entries.get(clientId);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.document;
+    }
+
+    /**
+     * Retrieves the latest location document of a client, falling back to the given loader on a miss.
+     * A non-null result of the loader is cached for subsequent lookups.
+     *
+     * @param clientId The client ID to look up.
+     * @param loader Loads the document from the backing database, returning null if none exists.
+     * @return The latest location document, or null if neither the store nor the loader has one.
+     */
+    public Document getOrLoad(String clientId, Function<String, Document> loader) {
+        Document document = get(clientId);
+        if (document != null) {
+            return document;
+        }
+        document = loader.apply(clientId);
+        if (document == null) {
+            return null;
+        }
+        // Do not overwrite a newer write that raced with the load.
+        return store(clientId, document, (previous, loaded) -> false);
+    }
+
+    /**
+     * Removes a client from the store.
+     *
+     * @param clientId The client ID to remove.
+     */
+    public void remove(String clientId) {
+        Entry removed = entries.remove(clientId);
+        if (removed != null) {
+            insertionOrder.remove(removed.order, clientId);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Stores a document, evicting the oldest client if that made the store exceed its size cap.
+     *
+     * @param replace Decides from the stored and the new document whether to replace the document of a client that is
+     *                already tracked.
+     * @return The document now stored for the client.
+     */
+    private Document store(String clientId, Document document, BiPredicate<Document, Document> replace) {
+        boolean[] inserted = new boolean[1];
+        Entry current = entries.compute(clientId, (key, previous) -> {
+            if (previous == null) {
+                inserted[0] = true;
+                return new Entry(document, insertions.incrementAndGet());
+            }
+            // Keep the original position in the eviction order for a client that is already tracked.
+            return replace.test(previous.document, document) ? new Entry(document, previous.order) : previous;
+        });
+        if (inserted[0]) {
+            insertionOrder.put(current.order, clientId);
+            evictIfFull();
+        }
+        return current.document;
+    }
+
+    /**
+     * Evicts the oldest inserted clients until the store is back within its size cap.
+     * Order entries whose client was already evicted or removed and inserted again are skipped.
+     */
+    private void evictIfFull() {
+        while (entries.size() > maxSize) {
+            Map.Entry<Long, String> eldest = insertionOrder.pollFirstEntry();
+            if (eldest == null) {
+                return;
+            }
+            Entry current = entries.get(eldest.getValue());
+            if (current != null && current.order == eldest.getKey()
+                    && entries.remove(eldest.getValue(), current)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Whether a document is at least as recent as the stored one. Documents without a time are always taken.
+     */
+    private static boolean isNotOlder(Document stored, Document document) {
+        Date storedTime = stored.getDate(LocationService.TIMESTAMP_FIELD);
+        Date time = document.getDate(LocationService.TIMESTAMP_FIELD);
+        return storedTime == null || time == null || !time.before(storedTime);
+    }
+
+    /**
+     * A stored document together with the sequence number of the insert that placed it in the eviction order.
+     */
+    private static final class Entry {
+        private final Document document;
+        private final long order;
+
+        private Entry(Document document, long order) {
+            this.document = document;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.devicedetective.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * In-memory grid index over the latest position of every live device. The globe is split into square cells of
+ * "devicedetective.spatial.cell-degrees" and each device is stored in the cell containing its latest position.
+ * Radius and bounding-box queries only visit the cells overlapping the query area, so they do not scan the fleet.
+ *
+ * The index is updated on every ingest by the LocationService and only holds one position per device.
+ */
+@Component
+public class LiveSpatialIndex {
+
+    /**
+     * Mean earth radius in metres, used for haversine distances.
+     */
+    static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+    /**
+     * Latest indexed position per clientId.
+     */
+    private final Map<String, Position> positions = new ConcurrentHashMap<>();
+
+    /**
+     * Client IDs per occupied grid cell.
+     */
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Edge length of a grid cell in degrees.
+     */
+    private final double cellDegrees;
+
+    /**
+     * Constructs the index with the configured cell size.
+     *
+     * @param cellDegrees Edge length of a grid cell in degrees, e.g. 0.01 for cells of roughly 1 km.
+     */
+    public LiveSpatialIndex(@Value("${devicedetective.spatial.cell-degrees:0.01}") double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 180) {
+            throw new IllegalArgumentException("devicedetective.spatial.cell-degrees must be in (0, 180]");
+        }
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * Moves a device to its new position, re-bucketing it if it changed cells.
+     *
+     * @param clientId The device to update.
+     * @param latitude The new latitude in degrees.
+     * @param longitude The new longitude in degrees.
+     */
+    public void update(String clientId, double latitude, double longitude) {
+        long cell = cellOf(latitude, longitude);
+        // Re-bucketing happens inside compute so concurrent updates of the same device are applied one at a time.
+        positions.compute(clientId, (key, previous) -> {
+            if (previous == null || previous.cell != cell) {
+                if (previous != null) {
+                    removeFromCell(previous.cell, clientId);
+                }
+                // Added inside compute so a concurrent removeFromCell cannot drop the set between lookup and add.
+                cells.compute(cell, (k, clientIds) -> {
+                    clientIds = clientIds == null ? ConcurrentHashMap.newKeySet() : clientIds;
+                    clientIds.add(clientId);
+                    return clientIds;
+                });
+            }
+            return new Position(clientId, latitude, longitude, cell);
+        });
+    }
+
+    /**
+     * Removes a device from the index.
+     *
+     * @param clientId The device to remove.
+     */
+    public void remove(String clientId) {
+        Position previous = positions.remove(clientId);
+        if (previous != null) {
+            removeFromCell(previous.cell, clientId);
+        }
+    }
+
+    /**
+     * Finds all devices within a radius of a point, ordered by distance.
+     *
+     * @param latitude Latitude of the centre in degrees.
+     * @param longitude Longitude of the centre in degrees.
+     * @param radiusMeters Search radius in metres.
+     * @return The matching devices with their distance to the centre, nearest first.
+     * @throws IllegalArgumentException if the centre is not finite or the radius is negative or not finite.
+     */
+    public List<Match> findNearby(double latitude, double longitude, double radiusMeters) {
+        if (!Double.isFinite(latitude) || !Double.isFinite(longitude)) {
+            throw new IllegalArgumentException("Centre must be finite");
+        }
+        if (!Double.isFinite(radiusMeters) || radiusMeters < 0) {
+            throw new IllegalArgumentException("Radius must be finite and not negative");
+        }
+        double latDelta = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        // A radius reaching over a pole includes devices of every longitude, and near the poles the longitude span of
+        // the radius covers the whole globe anyway.
+        boolean coversPole = latitude + latDelta >= 90 || latitude - latDelta <= -90;
+        double lngDelta = coversPole || cosLat < 1e-9 ? 180 : Math.min(180, latDelta / cosLat);
+
+        List<Match> matches = new ArrayList<>();
+        for (Position position : candidates(latitude - latDelta, longitude - lngDelta,
+                latitude + latDelta, longitude + lngDelta)) {
+            double distance = distanceMeters(latitude, longitude, position.latitude, position.longitude);
+            if (distance <= radiusMeters) {
+                matches.add(new Match(position.clientId, position.latitude, position.longitude, distance));
+            }
+        }
+        matches.sort((a, b) -> Double.compare(a.distanceMeters(), b.distanceMeters()));
+        return matches;
+    }
+
+    /**
+     * Finds all devices inside a latitude/longitude bounding box. A box whose minimum longitude is greater than its
+     * maximum longitude is treated as crossing the antimeridian.
+     *
+     * @param minLatitude Southern edge in degrees.
+     * @param minLongitude Western edge in degrees.
+     * @param maxLatitude Northern edge in degrees.
+     * @param maxLongitude Eastern edge in degrees.
+     * @return The devices inside the box, with a distance of 0.
+     * @throws IllegalArgumentException if an edge is not finite or the southern edge lies north of the northern one.
+     */
+    public List<Match> findWithin(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        if (!Double.isFinite(minLatitude) || !Double.isFinite(minLongitude)
+                || !Double.isFinite(maxLatitude) || !Double.isFinite(maxLongitude)) {
+            throw new IllegalArgumentException("Bounding box edges must be finite");
+        }
+        if (minLatitude > maxLatitude) {
+            throw new IllegalArgumentException("Bounding box minimum latitude is greater than its maximum latitude");
+        }
+        if (minLongitude > maxLongitude) {
+            List<Match> matches = findWithin(minLatitude, minLongitude, maxLatitude, 180);
+            matches.addAll(findWithin(minLatitude, -180, maxLatitude, maxLongitude));
+            return matches;
+        }
+        List<Match> matches = new ArrayList<>();
+        for (Position position : candidates(minLatitude, minLongitude, maxLatitude, maxLongitude)) {
+            if (position.latitude >= minLatitude && position.latitude <= maxLatitude
+                    && position.longitude >= minLongitude && position.longitude <= maxLongitude) {
+                matches.add(new Match(position.clientId, position.latitude, position.longitude, 0));
+            }
+        }
+        return matches;
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    /**
+     * Great-circle distance between two points using the haversine formula.
+     *
+     * @return The distance in metres.
+     */
+    static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Collects the positions in all cells overlapping the given box. Longitudes outside [-180, 180] wrap around.
+     * When the box spans more cells than are occupied, the occupied cells are visited instead.
+     */
+    private List<Position> candidates(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        int minRow = row(Math.max(-90, minLatitude));
+        int maxRow = row(Math.min(90, maxLatitude));
+        int columns = columnCount();
+        int minColumn = column(minLongitude);
+        int maxColumn = column(maxLongitude);
+        int spannedColumns = maxLongitude - minLongitude >= 360 ? columns : maxColumn - minColumn + 1;
+        long spannedCells = (long) (maxRow - minRow + 1) * spannedColumns;
+
+        List<Position> result = new ArrayList<>();
+        if (spannedCells > cells.size()) {
+            for (Map.Entry<Long, Set<String>> cell : cells.entrySet()) {
+                int cellRow = (int) (cell.getKey() >> 32);
+                if (cellRow >= minRow && cellRow <= maxRow) {
+                    collect(cell.getKey(), cell.getValue(), result);
+                }
+            }
+            return result;
+        }
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int i = 0; i < spannedColumns; i++) {
+                int column = Math.floorMod(minColumn + i, columns);
+                long cell = key(row, column);
+                Set<String> clientIds = cells.get(cell);
+                if (clientIds != null) {
+                    collect(cell, clientIds, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the current positions of the given devices, skipping any that have already moved to another cell.
+     */
+    private void collect(long cell, Set<String> clientIds, List<Position> result) {
+        for (String clientId : clientIds) {
+            Position position = positions.get(clientId);
+            if (position != null && position.cell == cell) {
+                result.add(position);
+            }
+        }
+    }
+
+    private void removeFromCell(long cell, String clientId) {
+        cells.computeIfPresent(cell, (key, clientIds) -> {
+            clientIds.remove(clientId);
+            return clientIds.isEmpty() ? null : clientIds;
+        });
+    }
+
+    private long cellOf(double latitude, double longitude) {
+        return key(row(latitude), Math.floorMod(column(longitude), columnCount()));
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / cellDegrees);
+    }
+
+    private int column(double longitude) {
+        return (int) Math.floor((longitude + 180) / cellDegrees);
+    }
+
+    private int columnCount() {
+        return (int) Math.ceil(360 / cellDegrees);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * A device position as stored in the index.
+     */
+    private record Position(String clientId, double latitude, double longitude, long cell) {
+    }
+
+    /**
+     * A device found by a spatial query.
+     *
+     * @param clientId The device.
+     * @param latitude Its latest latitude.
+     * @param longitude Its latest longitude.
+     * @param distanceMeters Distance to the query centre, 0 for bounding-box queries.
+     */
+    public record Match(String clientId, double latitude, double longitude, double distanceMeters) {
+    }
+}
@@ -0,0 +1,122 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Loads the latest location of every recently active device into the in-memory live state when the server starts,
+ * so that devices show up in snapshots and nearby queries right away instead of once they report again, and latest
+ * location lookups are not each answered by a separate query.
+ *
+ * A single aggregation reads the locations of the last "devicedetective.warmup.window-ms", sorted by clientId and
+ * newest first so the sort is served by the {clientId: 1, ts: -1} index, and keeps the first document of each client.
+ * It starts as soon as this bean is created and runs while the rest of the context starts up. Every result is applied
+ * like a location from another instance, so a newer report that arrives during the warm-up is never overwritten.
+ * The window defaults to the registry TTL. Warmed devices are registered as last seen at their stored "ts", so a
+ * device that stopped reporting before the restart still expires when its TTL runs out instead of a full TTL later.
+ */
+@Component
+public class LiveStateWarmup {
+    private static final Logger logger = LoggerFactory.getLogger(LiveStateWarmup.class);
+
+    private static final int CURSOR_BATCH_SIZE = 1000;
+
+    private final MongoClient mongoClient;
+    private final LocationService locationService;
+    private final ClientRegistry clientRegistry;
+    private final boolean enabled;
+    private final long windowMillis;
+
+    private volatile CompletableFuture<Integer> warmup = CompletableFuture.completedFuture(0);
+
+    /**
+     * Constructs the warm-up from the "devicedetective.warmup" settings.
+     *
+     * @param mongoClient The MongoDB client to read the latest locations from.
+     * @param locationService The service holding the latest location of every device.
+     * @param clientRegistry The registry the warmed devices are added to.
+     * @param enabled Whether to warm up at all.
+     * @param windowMillis How recently a device must have reported to be loaded.
+     */
+    public LiveStateWarmup(MongoClient mongoClient, LocationService locationService, ClientRegistry clientRegistry,
+                           @Value("${devicedetective.warmup.enabled:true}") boolean enabled,
+                           @Value("${devicedetective.warmup.window-ms:${devicedetective.registry.ttl-ms:300000}}")
+                           long windowMillis) {
+        this.mongoClient = mongoClient;
+        this.locationService = locationService;
+        this.clientRegistry = clientRegistry;
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Starts the warm-up in the background.
+     */
+    @PostConstruct
+    public void start() {
+        if (enabled && windowMillis > 0) {
+            warmup = CompletableFuture.supplyAsync(this::warmUp);
+        }
+    }
+
+    /**
+     * Returns the warm-up, completing with the number of devices loaded.
+     */
+    public CompletableFuture<Integer> getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * Loads the latest location of every device that reported within the window.
+     *
+     * @return The number of devices loaded.
+     */
+    int warmUp() {
+        long started = System.currentTimeMillis();
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        int loaded = 0;
+        try (MongoCursor<Document> cursor = collection.aggregate(List.of(
+                        Aggregates.match(Filters.gte(LocationService.TIMESTAMP_FIELD,
+                                new Date(started - windowMillis))),
+                        // Matches the {clientId: 1, ts: -1} index, so the newest location of a client comes first.
+                        Aggregates.sort(Sorts.orderBy(Sorts.ascending("clientId"),
+                                Sorts.descending(LocationService.TIMESTAMP_FIELD))),
+                        Aggregates.group("$clientId", Accumulators.first("latest", "$$ROOT")),
+                        Aggregates.replaceRoot("$latest")))
+                .allowDiskUse(true)
+                .batchSize(CURSOR_BATCH_SIZE)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document location = cursor.next();
+                if (locationService.applyRemoteLocation(location)) {
+                    Date ts = location.getDate(LocationService.TIMESTAMP_FIELD);
+                    clientRegistry.touch(location.getString("clientId"), null, ts != null ? ts.getTime() : started);
+                    loaded++;
+                }
+            }
+            logger.info("Warmed up the live state with {} devices in {} ms", loaded,
+                    System.currentTimeMillis() - started);
+        } catch (MongoException e) {
+            logger.warn("Could not warm up the live state, devices appear as they report", e);
+        }
+        return loaded;
+    }
+}
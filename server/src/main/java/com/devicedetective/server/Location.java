@@ -8,6 +8,9 @@ import org.springframework.data.mongodb.core.mapping.Document;
  * models the data exchanged between the client
  * and the "test" database in MongoDB. It stores client identifiers along with
  * their current geographic coordinates.
+ *
+ * Coordinates are kept as primitive doubles in degrees. Clients that still send them
+ * as JSON strings are coerced by Jackson. Missing coordinates are represented by NaN.
  */
 @Document("test")
 public class Location {
@@ -28,14 +31,25 @@ public class Location {
     private String clientId;
 
     /**
-     * The geographical latitude of the client's current location.
+     * The geographical latitude of the client's current location in degrees.
      */
-    private String latitude;
+    private double latitude = Double.NaN;
 
     /**
-     * The geographical longitude of the client's current location.
+     * The geographical longitude of the client's current location in degrees.
      */
-    private String longitude;
+    private double longitude = Double.NaN;
+
+    /**
+     * The time the location was recorded on the device in epoch milliseconds, 0 if the device did not send one.
+     */
+    private long timestamp;
+
+    /**
+     * Optional identifier of the owner group the client belongs to. Updates are also published to
+     * "/topic/groups/{groupId}" so that an owner can watch only their own devices.
+     */
+    private String groupId;
 
     public Location() {
     }
@@ -79,9 +93,9 @@ public class Location {
     /**
      * Retrieves the latitude of the client's location.
      * 
-     * @return latitude as a String
+     * @return latitude in degrees
      */
-    public String getLatitude() {
+    public double getLatitude() {
         return latitude;
     }
 
@@ -90,16 +104,16 @@ public class Location {
      * 
      * @param latitude the new latitude value
      */
-    public void setLatitude(String latitude) {
+    public void setLatitude(double latitude) {
         this.latitude = latitude;
     }
 
     /**
      * Retrieves the longitude of the client's location.
      * 
-     * @return longitude as a String
+     * @return longitude in degrees
      */
-    public String getLongitude() {
+    public double getLongitude() {
         return longitude;
     }
 
@@ -108,7 +122,43 @@ public class Location {
      * 
      * @param longitude the new longitude value
      */
-    public void setLongitude(String longitude) {
+    public void setLongitude(double longitude) {
         this.longitude = longitude;
     }
+
+    /**
+     * Retrieves the time the location was recorded on the device.
+     *
+     * @return timestamp in epoch milliseconds, 0 if unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Sets the time the location was recorded on the device.
+     *
+     * @param timestamp the new timestamp in epoch milliseconds
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Retrieves the owner group of the client.
+     *
+     * @return groupId, or null if the client does not belong to a group
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * Sets the owner group of the client.
+     *
+     * @param groupId the new group identifier
+     */
+    public void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package com.devicedetective.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Compact fixed-layout binary encoding of location frames, used as an alternative to JSON on the STOMP channels.
+ * All numbers are big-endian. A frame is laid out as:
+ *
+ * <pre>
+ * u8  version (FORMAT_VERSION)
+ * u16 record count
+ * per record:
+ *   i32 latitude  in 1e-7 degrees
+ *   i32 longitude in 1e-7 degrees
+ *   i64 timestamp in epoch milliseconds
+ *   u8  clientId length, followed by the UTF-8 bytes of the clientId
+ *   u8  groupId length, followed by the UTF-8 bytes of the groupId (0 if none)
+ * </pre>
+ *
+ * Fixed-point coordinates keep a precision of about 1 cm while a record with a 36 character UUID takes 54 bytes,
+ * compared to well over 100 bytes of JSON.
+ */
+public final class LocationBinaryCodec {
+
+    /**
+     * Version byte written at the start of every frame.
+     */
+    static final byte FORMAT_VERSION = 1;
+
+    /**
+     * Scale between degrees and the fixed-point integers on the wire.
+     */
+    private static final double COORDINATE_SCALE = 1e7;
+
+    /**
+     * Size of the fixed part of a record: two coordinates, a timestamp and two length bytes.
+     */
+    private static final int FIXED_RECORD_SIZE = 4 + 4 + 8 + 1 + 1;
+
+    /**
+     * Longest identifier that fits the one byte length prefix.
+     */
+    private static final int MAX_ID_BYTES = 255;
+
+    private LocationBinaryCodec() {
+    }
+
+    /**
+     * Encodes a batch of locations into a single frame.
+     *
+     * @param locations The locations to encode, at most 65535.
+     * @return The encoded frame.
+     */
+    public static byte[] encode(List<Location> locations) {
+        if (locations.size() > 0xffff) {
+            throw new IllegalArgumentException("Too many locations in one frame: " + locations.size());
+        }
+        byte[][] clientIds = new byte[locations.size()][];
+        byte[][] groupIds = new byte[locations.size()][];
+        int size = 1 + 2;
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            clientIds[i] = idBytes(location.getClientId());
+            groupIds[i] = idBytes(location.getGroupId());
+            size += FIXED_RECORD_SIZE + clientIds[i].length + groupIds[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION);
+        buffer.putShort((short) locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            Location location = locations.get(i);
+            buffer.putInt(toFixedPoint(location.getLatitude()));
+            buffer.putInt(toFixedPoint(location.getLongitude()));
+            buffer.putLong(location.getTimestamp());
+            buffer.put((byte) clientIds[i].length).put(clientIds[i]);
+            buffer.put((byte) groupIds[i].length).put(groupIds[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a frame into its locations.
+     *
+     * @param frame The encoded frame.
+     * @return The decoded locations.
+     * @throws IllegalArgumentException if the frame is truncated or has an unknown version.
+     */
+    public static List<Location> decode(byte[] frame) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        try {
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported location frame version: " + version);
+            }
+            int count = Short.toUnsignedInt(buffer.getShort());
+            List<Location> locations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Location location = new Location();
+                location.setLatitude(fromFixedPoint(buffer.getInt()));
+                location.setLongitude(fromFixedPoint(buffer.getInt()));
+                location.setTimestamp(buffer.getLong());
+                location.setClientId(readId(buffer));
+                location.setGroupId(readId(buffer));
+                locations.add(location);
+            }
+            return locations;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated location frame", e);
+        }
+    }
+
+    private static int toFixedPoint(double degrees) {
+        // NaN, i.e. a missing coordinate, is sent as Integer.MIN_VALUE which lies outside the valid range. So are
+        // values too large for the fixed-point range, which no valid coordinate is, rather than wrapping around.
+        double scaled = Math.rint(degrees * COORDINATE_SCALE);
+        return scaled > Integer.MIN_VALUE && scaled <= Integer.MAX_VALUE ? (int) scaled : Integer.MIN_VALUE;
+    }
+
+    private static double fromFixedPoint(int value) {
+        return value == Integer.MIN_VALUE ? Double.NaN : value / COORDINATE_SCALE;
+    }
+
+    private static byte[] idBytes(String id) {
+        if (id == null) {
+            return new byte[0];
+        }
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Identifier longer than " + MAX_ID_BYTES + " bytes: " + id);
+        }
+        return bytes;
+    }
+
+    private static String readId(ByteBuffer buffer) {
+        int length = Byte.toUnsignedInt(buffer.get());
+        if (length == 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String id = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return id;
+    }
+}
@@ -0,0 +1,131 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * STOMP message converter for the compact LocationBinaryCodec format. It is only selected when a message carries the
+ * BINARY_MIME_TYPE content type, so JSON stays the default for everything else.
+ *
+ * Inbound, a client sends a SEND frame with "content-type:application/octet-stream;codec=location" holding exactly one
+ * record, and the frame is decoded into a Location. Outbound, the LocationBroadcaster mirrors location frames to
+ * "/topic/binary/..." with this content type, which the STOMP handler delivers as binary WebSocket frames on the
+ * "/ws-native" endpoint.
+ */
+public final class LocationBinaryMessageConverter extends AbstractMessageConverter {
+
+    /**
+     * Content type of binary location frames. The octet-stream base type makes Spring use binary WebSocket frames.
+     */
+    public static final MimeType BINARY_MIME_TYPE = new MimeType("application", "octet-stream", Map.of("codec", "location"));
+
+    public LocationBinaryMessageConverter() {
+        super(BINARY_MIME_TYPE);
+        // Never claim a message that does not explicitly ask for the binary format.
+        setStrictContentTypeMatch(true);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Location.class.isAssignableFrom(clazz) || Document.class.isAssignableFrom(clazz)
+                || List.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canConvertFrom(Message<?> message, Class<?> targetClass) {
+        return Location.class.isAssignableFrom(targetClass) && super.canConvertFrom(message, targetClass);
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        if (!(message.getPayload() instanceof byte[] payload)) {
+            return null;
+        }
+        List<Location> locations;
+        try {
+            locations = LocationBinaryCodec.decode(payload);
+        } catch (IllegalArgumentException e) {
+            throw new MessageConversionException(message, e.getMessage(), e);
+        }
+        if (locations.size() != 1) {
+            // Silently taking the first one would lose the others, inbound frames carry a single location.
+            throw new MessageConversionException(message,
+                    "Expected one location in the frame but got " + locations.size());
+        }
+        return locations.get(0);
+    }
+
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        List<Location> locations = new ArrayList<>();
+        if (payload instanceof List<?> list) {
+            for (Object element : list) {
+                Location location = toLocation(element);
+                if (location == null) {
+                    return null;
+                }
+                locations.add(location);
+            }
+        } else {
+            Location location = toLocation(payload);
+            if (location == null) {
+                return null;
+            }
+            locations.add(location);
+        }
+        return LocationBinaryCodec.encode(locations);
+    }
+
+    /**
+     * Converts a Location or a stored location document to a Location.
+     *
+     * @return The location, or null if the object is neither.
+     */
+    private static Location toLocation(Object object) {
+        if (object instanceof Location location) {
+            return location;
+        }
+        if (!(object instanceof Document document)) {
+            return null;
+        }
+        Location location = new Location();
+        location.setClientId(document.getString("clientId"));
+        location.setGroupId(document.getString("groupId"));
+        location.setLatitude(toDegrees(document.get("latitude")));
+        location.setLongitude(toDegrees(document.get("longitude")));
+        Object timestamp = document.get("timestamp");
+        if (timestamp instanceof Number number) {
+            location.setTimestamp(number.longValue());
+        } else if (document.get(LocationService.TIMESTAMP_FIELD) instanceof Date ts) {
+            location.setTimestamp(ts.getTime());
+        }
+        return location;
+    }
+
+    /**
+     * Reads a coordinate that is either numeric or, for documents written before coordinates were numeric, a string.
+     */
+    private static double toDegrees(Object value) {
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof String string) {
+            try {
+                return Double.parseDouble(string);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
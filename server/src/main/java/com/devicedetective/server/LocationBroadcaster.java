@@ -0,0 +1,301 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Coalesces location broadcasts into one frame per tick. Handlers mark a clientId as dirty whenever its location
+ * changes, and on every tick the latest location of each dirty client is sent as a JSON array. Several updates of the
+ * same device within one tick therefore collapse into one entry, and the number of frames no longer grows with the
+ * number of inbound messages.
+ *
+ * Each tick routes the changed locations to three kinds of destinations:
+ * "/topic/locations" receives every change, "/topic/locations/{clientId}" only the changes of that device and
+ * "/topic/groups/{groupId}" only the changes of devices in that owner group. Frames are only built for destinations
+ * that currently have subscribers, so outbound work scales with what subscribers watch rather than the fleet size.
+ * Each destination is mirrored under "/topic/binary/..." in the compact LocationBinaryCodec format.
+ *
+ * The tick rate is configured with "devicedetective.broadcast.tick-ms". The number of locations and frames sent per
+ * tick is recorded in LocationMetrics.
+ *
+ * Every frame lists its clientIds in a SlowConsumerGuard header. When the guard dropped frames for a slow session,
+ * the next tick after the session caught up sends it the latest location of the missed devices directly. Until that
+ * resync is delivered the guard removes the version header from the session's location frames.
+ *
+ * Every change marked dirty is recorded in the LocationChangeLog, and frames carry the version they are current as of
+ * in a "location-version" header. A reconnecting session sends that version back on registration, and sendToSession
+ * then sends that session alone the changes it missed.
+ */
+@Component
+public class LocationBroadcaster {
+
+    /**
+     * Destination that subscribers receive the batched location frames on.
+     */
+    static final String LOCATIONS_TOPIC = "/topic/locations";
+
+    /**
+     * Prefix of the per-device destinations, followed by the clientId.
+     */
+    static final String DEVICE_TOPIC_PREFIX = "/topic/locations/";
+
+    /**
+     * Prefix of the per-group destinations, followed by the groupId.
+     */
+    static final String GROUP_TOPIC_PREFIX = "/topic/groups/";
+
+    /**
+     * Prefix that replaces "/topic/" for destinations receiving binary frames.
+     */
+    static final String BINARY_TOPIC_PREFIX = "/topic/binary/";
+
+    /**
+     * STOMP header marking a frame sent to a single session on registration, "delta" or "snapshot".
+     */
+    static final String RESYNC_HEADER = "location-resync";
+
+
+    private final LocationService locationService;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final TopicSubscriptionTracker subscriptionTracker;
+    private final LocationMetrics metrics;
+    private final SlowConsumerGuard slowConsumerGuard;
+    private final LocationChangeLog changeLog;
+    private final MessageChannel outboundChannel;
+
+    /**
+     * Client IDs whose latest location has not been broadcast yet.
+     */
+    private final Set<String> dirtyClientIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs the broadcaster.
+     *
+     * @param locationService The service used to look up the latest location of each dirty client.
+     * @param messagingTemplate The template used to send the batched frames.
+     * @param subscriptionTracker Tracks which destinations have subscribers.
+     * @param metrics Hot-path metrics, used to record the fan-out of each tick.
+     * @param slowConsumerGuard The guard collecting the locations dropped for slow sessions.
+     * @param changeLog The log numbering every location change.
+     * @param outboundChannel The channel to clients, used to resend missed locations to a single session.
+     */
+    public LocationBroadcaster(LocationService locationService, SimpMessagingTemplate messagingTemplate,
+                               TopicSubscriptionTracker subscriptionTracker, LocationMetrics metrics,
+                               SlowConsumerGuard slowConsumerGuard, LocationChangeLog changeLog,
+                               @Qualifier("clientOutboundChannel") MessageChannel outboundChannel) {
+        this.locationService = locationService;
+        this.messagingTemplate = messagingTemplate;
+        this.subscriptionTracker = subscriptionTracker;
+        this.metrics = metrics;
+        this.slowConsumerGuard = slowConsumerGuard;
+        this.changeLog = changeLog;
+        this.outboundChannel = outboundChannel;
+    }
+
+    /**
+     * Schedules the latest location of a client for the next tick and records the change in the change log.
+     *
+     * @param clientId The client whose location changed.
+     */
+    public void markDirty(String clientId) {
+        // Recorded after it is marked, so a tick that read a version has seen or sent every change up to it.
+        dirtyClientIds.add(clientId);
+        changeLog.record(clientId);
+    }
+
+    /**
+     * Sends the latest location of every client marked dirty since the previous tick, at most one frame per
+     * destination. Nothing is sent if no client changed. Slow sessions that caught up are resynchronized first.
+     */
+    @Scheduled(fixedRateString = "${devicedetective.broadcast.tick-ms:250}")
+    public void tick() {
+        resyncCaughtUp();
+        if (dirtyClientIds.isEmpty()) {
+            return;
+        }
+        String version = changeLog.token(changeLog.current());
+        List<Document> frame = new ArrayList<>();
+        Iterator<String> iterator = dirtyClientIds.iterator();
+        while (iterator.hasNext()) {
+            String clientId = iterator.next();
+            // Removing before the lookup means an update racing with this tick is picked up by the next one.
+            iterator.remove();
+            Document latest = locationService.findLatestLocation(clientId);
+            if (!latest.containsKey("error")) {
+                frame.add(latest);
+            }
+        }
+        if (!frame.isEmpty()) {
+            metrics.recordBroadcast(frame.size(), publish(frame, version));
+        }
+    }
+
+    /**
+     * Routes a batch of changed locations to the global, per-device and per-group destinations that have subscribers.
+     *
+     * @param frame The latest location documents of the clients that changed.
+     * @param version The version token the frame is current as of.
+     * @return The number of frames sent.
+     */
+    private int publish(List<Document> frame, String version) {
+        int sent = send(LOCATIONS_TOPIC, frame, version);
+        Map<String, List<Document>> groups = new HashMap<>();
+        for (Document location : frame) {
+            sent += send(DEVICE_TOPIC_PREFIX + location.getString("clientId"), List.of(location), version);
+            String groupId = location.getString("groupId");
+            if (groupId != null) {
+                groups.computeIfAbsent(groupId, key -> new ArrayList<>()).add(location);
+            }
+        }
+        for (Map.Entry<String, List<Document>> group : groups.entrySet()) {
+            sent += send(GROUP_TOPIC_PREFIX + group.getKey(), group.getValue(), version);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a frame as JSON and/or binary, depending on which variants of the destination have subscribers.
+     *
+     * @param destination The JSON destination, starting with "/topic/".
+     * @param locations The location documents to send.
+     * @param version The version token the locations are current as of.
+     * @return The number of frames sent.
+     */
+    private int send(String destination, List<Document> locations, String version) {
+        int sent = 0;
+        if (subscriptionTracker.hasSubscribers(destination)) {
+            messagingTemplate.convertAndSend(destination, locations,
+                    frameHeaders(locations, false, version).getMessageHeaders());
+            sent++;
+        }
+        String binaryDestination = BINARY_TOPIC_PREFIX + destination.substring("/topic/".length());
+        if (subscriptionTracker.hasSubscribers(binaryDestination)) {
+            messagingTemplate.convertAndSend(binaryDestination, locations,
+                    frameHeaders(locations, true, version).getMessageHeaders());
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the latest location of some clients to the "/topic/locations" subscriptions of a single session and their
+     * binary mirror, e.g. to bring a reconnecting subscriber up to date. Each subscription receives one frame, even an
+     * empty one, so the session learns the version it is now current as of.
+     *
+     * @param sessionId The session to send to.
+     * @param clientIds The clients whose latest location to send.
+     * @param version The change log version the clients were taken at.
+     * @param snapshot Whether the clients are all live clients rather than the changes since a version.
+     * @return The number of frames sent.
+     */
+    public int sendToSession(String sessionId, Collection<String> clientIds, long version, boolean snapshot) {
+        List<Document> locations = null;
+        int sent = 0;
+        for (Map.Entry<String, String> subscription : subscriptionTracker.subscriptionsOf(sessionId).entrySet()) {
+            String destination = subscription.getValue();
+            boolean binary = destination.equals(BINARY_TOPIC_PREFIX + "locations");
+            if (!binary && !destination.equals(LOCATIONS_TOPIC)) {
+                continue;
+            }
+            if (locations == null) {
+                locations = latestLocations(clientIds);
+            }
+            SimpMessageHeaderAccessor accessor = frameHeaders(locations, binary, changeLog.token(version));
+            accessor.setNativeHeader(RESYNC_HEADER, snapshot ? "snapshot" : "delta");
+            if (sendToSubscription(sessionId, subscription.getKey(), destination, locations, accessor)) {
+                sent++;
+            }
+        }
+        if (locations != null) {
+            metrics.recordBroadcast(locations.size(), sent);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the latest location of the devices whose frames were dropped for a slow session, now that it caught up.
+     * Each subscription gets one frame, even an empty one so the guard sees the resync completed, which the guard drops
+     * again if the session has fallen behind once more.
+     */
+    private void resyncCaughtUp() {
+        for (SlowConsumerGuard.Resync resync : slowConsumerGuard.drainCaughtUp()) {
+            List<Document> locations = latestLocations(resync.clientIds());
+            // No version, the session may still miss changes that are waiting for the next tick.
+            SimpMessageHeaderAccessor accessor = frameHeaders(locations,
+                    resync.destination().startsWith(BINARY_TOPIC_PREFIX), null);
+            accessor.setHeader(SlowConsumerGuard.RESYNC_FRAME_HEADER, true);
+            sendToSubscription(resync.sessionId(), resync.subscriptionId(), resync.destination(), locations, accessor);
+        }
+    }
+
+    /**
+     * Looks up the latest location of each client, skipping clients without one.
+     */
+    private List<Document> latestLocations(Collection<String> clientIds) {
+        List<Document> locations = new ArrayList<>(clientIds.size());
+        for (String clientId : clientIds) {
+            Document latest = locationService.findLatestLocation(clientId);
+            if (!latest.containsKey("error")) {
+                locations.add(latest);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Sends a frame to one subscription of one session, bypassing the broker.
+     *
+     * @return true if the frame was sent.
+     */
+    private boolean sendToSubscription(String sessionId, String subscriptionId, String destination,
+                                       List<Document> locations, SimpMessageHeaderAccessor accessor) {
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        Message<?> message = messagingTemplate.getMessageConverter().toMessage(locations, accessor.getMessageHeaders());
+        return message != null && outboundChannel.send(message);
+    }
+
+    /**
+     * Creates the headers of a location frame, listing its clientIds for the SlowConsumerGuard, carrying the version
+     * token if given and selecting the binary location converter if requested. The template fills in the destination,
+     * so a fresh mutable set of headers is needed for every send.
+     */
+    private static SimpMessageHeaderAccessor frameHeaders(List<Document> locations, boolean binary, String version) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        if (binary) {
+            accessor.setContentType(LocationBinaryMessageConverter.BINARY_MIME_TYPE);
+        }
+        if (version != null) {
+            accessor.setNativeHeader(LocationChangeLog.VERSION_HEADER, version);
+        }
+        List<String> clientIds = new ArrayList<>(locations.size());
+        for (Document location : locations) {
+            clientIds.add(location.getString("clientId"));
+        }
+        accessor.setHeader(SlowConsumerGuard.CLIENT_IDS_HEADER, clientIds);
+        accessor.setLeaveMutable(true);
+        return accessor;
+    }
+
+    public int getPendingCount() {
+        return dirtyClientIds.size();
+    }
+}
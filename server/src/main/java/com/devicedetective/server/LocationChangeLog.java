@@ -0,0 +1,140 @@
+package com.devicedetective.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+
+/**
+ * Numbers every location change with a monotonically increasing version and remembers which client changed at the
+ * last "devicedetective.resync.log-size" versions. A reconnecting subscriber sends the version of the last frame it
+ * received and is sent only the clients that changed since then, so the cost of a reconnect grows with the number of
+ * changes it missed rather than with the fleet size. If its version has already been overwritten it needs a full
+ * snapshot instead.
+ *
+ * Versions are only meaningful to the instance that issued them. They are passed to clients as a token prefixed with
+ * a random epoch of this instance, so a token from before a restart or from another instance is recognized as unknown.
+ */
+@Component
+public class LocationChangeLog {
+
+    /**
+     * STOMP header carrying the version token on location frames and on "/app/registerClient".
+     */
+    static final String VERSION_HEADER = "location-version";
+
+    private final String epoch = UUID.randomUUID().toString();
+
+    /**
+     * Ring of the clientIds of the latest changes, the change with version v is at index v & mask. Guarded by this.
+     */
+    private final String[] clientIds;
+    private final int mask;
+    private long version;
+
+    /**
+     * Constructs the log.
+     *
+     * @param size Number of changes to remember, rounded up to a power of two.
+     */
+    public LocationChangeLog(@Value("${devicedetective.resync.log-size:65536}") int size) {
+        if (size < 1 || size > 1 << 30) {
+            throw new IllegalArgumentException("Invalid resync log-size: " + size);
+        }
+        int capacity = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+        this.clientIds = new String[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Records a change of a client's location.
+     *
+     * @param clientId The client whose location changed.
+     * @return The version of the change.
+     */
+    public synchronized long record(String clientId) {
+        version++;
+        clientIds[(int) (version & mask)] = clientId;
+        return version;
+    }
+
+    /**
+     * Returns the version of the latest change, 0 if nothing changed yet.
+     */
+    public synchronized long current() {
+        return version;
+    }
+
+    /**
+     * Finds the clients that changed after the version of a token.
+     *
+     * @param token A token as returned by token, may be null.
+     * @return The changed clients and the version they are current as of, or null if the token is missing, was issued
+     *         by another instance or is older than the remembered changes, in which case a full snapshot is needed.
+     */
+    public Changes changesSince(String token) {
+        Long since = parse(token);
+        if (since == null) {
+            return null;
+        }
+        String[] changed;
+        long until;
+        synchronized (this) {
+            if (since < 0 || since > version || version - since > clientIds.length) {
+                return null;
+            }
+            until = version;
+            changed = copy(since, until);
+        }
+        // Deduplicated outside the lock so that writers are only held up by the copy.
+        return new Changes(until, new HashSet<>(Arrays.asList(changed)));
+    }
+
+    /**
+     * Copies the clientIds of the versions in (from, to] out of the ring. Must be called while holding the lock.
+     */
+    private String[] copy(long from, long to) {
+        int count = (int) (to - from);
+        String[] copy = new String[count];
+        int start = (int) ((from + 1) & mask);
+        int first = Math.min(count, clientIds.length - start);
+        System.arraycopy(clientIds, start, copy, 0, first);
+        System.arraycopy(clientIds, 0, copy, first, count - first);
+        return copy;
+    }
+
+    /**
+     * Formats a version as a token for clients.
+     *
+     * @param version A version of this log.
+     * @return The token, "{epoch}:{version}".
+     */
+    public String token(long version) {
+        return epoch + ":" + version;
+    }
+
+    private Long parse(String token) {
+        if (token == null || !token.startsWith(epoch) || token.length() <= epoch.length() + 1
+                || token.charAt(epoch.length()) != ':') {
+            return null;
+        }
+        try {
+            return Long.parseLong(token.substring(epoch.length() + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Clients that changed since a version.
+     *
+     * @param version The version the changes are current as of.
+     * @param clientIds The clients that changed, each listed once.
+     */
+    public record Changes(long version, Set<String> clientIds) {
+    }
+}
@@ -0,0 +1,122 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.model.TimeSeriesOptions;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Prepares the location collection once the application is ready by creating the collection and the indexes its
+ * queries rely on. Index creation runs in the background so a slow or unreachable database does not hold up startup,
+ * and failures are logged rather than thrown since the server can still operate without them.
+ *
+ * Two storage modes are supported through "devicedetective.storage.mode":
+ * "collection" keeps a regular collection with {clientId: 1, ts: -1} and {clientId: 1, ts: 1, _id: 1} indexes and an
+ * optional TTL index on "ts", or a plain one on "ts" for the rollup's time window when nothing expires,
+ * "timeseries" creates a MongoDB time-series collection with "ts" as time field and "clientId" as meta field.
+ * Retention is configured with "devicedetective.storage.retention-days", 0 keeps data forever.
+ */
+@Component
+public class LocationCollectionInitializer {
+    private static final Logger logger = LoggerFactory.getLogger(LocationCollectionInitializer.class);
+
+    private final MongoClient mongoClient;
+    private final String storageMode;
+    private final long retentionDays;
+    private final boolean rollupEnabled;
+
+    public LocationCollectionInitializer(MongoClient mongoClient,
+                                         @Value("${devicedetective.storage.mode:collection}") String storageMode,
+                                         @Value("${devicedetective.storage.retention-days:0}") long retentionDays,
+                                         @Value("${devicedetective.storage.rollup.enabled:false}") boolean rollupEnabled) {
+        this.mongoClient = mongoClient;
+        this.storageMode = storageMode.trim().toLowerCase();
+        this.retentionDays = retentionDays;
+        this.rollupEnabled = rollupEnabled;
+    }
+
+    /**
+     * Starts collection and index creation in the background after startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        CompletableFuture.runAsync(this::createIndexes);
+    }
+
+    /**
+     * Creates the collection in the configured mode if it does not exist yet, followed by its indexes.
+     * Creating an index that already exists is a no-op.
+     */
+    void createIndexes() {
+        try {
+            MongoDatabase database = mongoClient.getDatabase(LocationService.DATABASE_NAME);
+            if ("timeseries".equals(storageMode)) {
+                createTimeSeriesCollection(database);
+            }
+            MongoCollection<Document> collection = database.getCollection(LocationService.COLLECTION_NAME);
+
+            // Serves "latest location of a client" as a single index entry read.
+            collection.createIndex(
+                    Indexes.compoundIndex(Indexes.ascending("clientId"), Indexes.descending(LocationService.TIMESTAMP_FIELD)),
+                    new IndexOptions().name("clientId_ts"));
+            // Serves the paged history stream, which orders a client's locations by time with "_id" to break ties.
+            // Time-series collections only index their time and meta fields well, so they rely on "clientId_ts".
+            if (!"timeseries".equals(storageMode)) {
+                collection.createIndex(
+                        Indexes.ascending("clientId", LocationService.TIMESTAMP_FIELD, "_id"),
+                        new IndexOptions().name("clientId_ts_id"));
+            }
+            // Backs $near/$geoWithin queries on the GeoJSON point of each location.
+            collection.createIndex(Indexes.geo2dsphere(LocationService.GEO_FIELD),
+                    new IndexOptions().name("location_2dsphere"));
+            if (retentionDays > 0 && !"timeseries".equals(storageMode)) {
+                collection.createIndex(Indexes.ascending(LocationService.TIMESTAMP_FIELD),
+                        new IndexOptions().name("ts_ttl").expireAfter(retentionDays, TimeUnit.DAYS));
+            } else if (rollupEnabled && !"timeseries".equals(storageMode)) {
+                // The rollup matches a time window across all clients, which "clientId_ts" cannot serve.
+                collection.createIndex(Indexes.ascending(LocationService.TIMESTAMP_FIELD),
+                        new IndexOptions().name("ts"));
+            }
+            logger.info("Location collection indexes are in place ({} mode)", storageMode);
+        } catch (MongoException e) {
+            logger.warn("Could not create location collection indexes", e);
+        }
+    }
+
+    /**
+     * Creates the location collection as a time-series collection unless a collection of that name already exists.
+     * An existing regular collection is left untouched, converting it requires a manual migration.
+     */
+    private void createTimeSeriesCollection(MongoDatabase database) {
+        for (String name : database.listCollectionNames()) {
+            if (name.equals(LocationService.COLLECTION_NAME)) {
+                return;
+            }
+        }
+        CreateCollectionOptions options = new CreateCollectionOptions()
+                .timeSeriesOptions(new TimeSeriesOptions(LocationService.TIMESTAMP_FIELD)
+                        .metaField("clientId")
+                        .granularity(TimeSeriesGranularity.SECONDS));
+        if (retentionDays > 0) {
+            options.expireAfter(retentionDays, TimeUnit.DAYS);
+        }
+        database.createCollection(LocationService.COLLECTION_NAME, options);
+        logger.info("Created time-series collection {}", LocationService.COLLECTION_NAME);
+    }
+}
@@ -0,0 +1,34 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ * Carries location updates between server instances so that viewers connected to one node see the devices connected
+ * to any other node. Every location saved by the LocationService is published to the bus, and the locations
+ * published by other nodes are handed to the subscribed listeners, which apply them to the local in-memory state and
+ * broadcast them to this node's own subscribers only.
+ *
+ * The implementation is selected with "devicedetective.bus.type": "loopback" connects instances within one JVM,
+ * "tcp" connects instances over the network.
+ */
+public interface LocationEventBus {
+
+    /**
+     * Publishes a location saved on this node to the other nodes. Must not block the caller on network I/O.
+     *
+     * @param location The saved location document.
+     */
+    void publish(Document location);
+
+    /**
+     * Registers a listener for the locations published by other nodes. Listeners are called with batches, on a thread
+     * owned by the bus.
+     *
+     * @param listener The listener to call.
+     */
+    void subscribe(Consumer<List<Document>> listener);
+}
@@ -0,0 +1,202 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * Reads location documents for a bulk import one line at a time, so an import of any size is parsed in constant
+ * memory. Two formats are supported:
+ * "ndjson", one JSON document per line, which also accepts MongoDB extended JSON as written by the export, and
+ * "csv", a header line naming the fields followed by one record per line, with RFC 4180 quoting within a line.
+ *
+ * Every record is normalized into the shape LocationService saves: it needs a "clientId", its "ts" is taken from
+ * "ts" (a date, epoch milliseconds or an ISO-8601 string) or else from the device "timestamp", and numeric
+ * coordinates get the GeoJSON point of the 2dsphere index. A record that cannot be parsed or normalized is returned
+ * with an error instead of a document, and reading continues with the next line.
+ */
+final class LocationImportReader {
+
+    /**
+     * Supported import formats.
+     */
+    enum Format {
+        NDJSON, CSV
+    }
+
+    private final BufferedReader reader;
+    private final Format format;
+    private String[] header;
+    private int lineNumber;
+
+    /**
+     * Creates a reader.
+     *
+     * @param reader The character stream to read from.
+     * @param format The format of the stream.
+     */
+    LocationImportReader(Reader reader, Format format) {
+        this.reader = reader instanceof BufferedReader buffered ? buffered : new BufferedReader(reader, 64 * 1024);
+        this.format = format;
+    }
+
+    /**
+     * Reads the next record, skipping blank lines.
+     *
+     * @return The record, or null at the end of the stream.
+     * @throws IOException if reading fails.
+     */
+    Record next() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            lineNumber++;
+            if (line == null) {
+                return null;
+            }
+        } while (line.isBlank());
+
+        try {
+            if (format == Format.NDJSON) {
+                return new Record(lineNumber, normalize(Document.parse(line)), null);
+            }
+            if (header == null) {
+                header = splitCsv(line).toArray(String[]::new);
+                return next();
+            }
+            return new Record(lineNumber, normalize(fromCsv(splitCsv(line))), null);
+        } catch (JsonParseException | IllegalArgumentException e) {
+            return new Record(lineNumber, null, e.getMessage());
+        }
+    }
+
+    private Document fromCsv(List<String> values) {
+        if (values.size() != header.length) {
+            throw new IllegalArgumentException("Expected " + header.length + " fields but got " + values.size());
+        }
+        Document document = new Document();
+        for (int i = 0; i < header.length; i++) {
+            String value = values.get(i);
+            if (value.isEmpty()) {
+                continue;
+            }
+            switch (header[i]) {
+                case "clientId", "groupId", LocationService.TIMESTAMP_FIELD -> document.append(header[i], value);
+                default -> document.append(header[i], csvValue(value));
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Brings a record into the shape of a saved location.
+     *
+     * @throws IllegalArgumentException if the record has no clientId or no time.
+     */
+    static Document normalize(Document document) {
+        if (!(document.get("clientId") instanceof String clientId) || clientId.isEmpty()) {
+            throw new IllegalArgumentException("Missing clientId");
+        }
+        document.put(LocationService.TIMESTAMP_FIELD, timeOf(document));
+        if (!document.containsKey(LocationService.GEO_FIELD)
+                && document.get("latitude") instanceof Number latitude
+                && document.get("longitude") instanceof Number longitude
+                && Math.abs(latitude.doubleValue()) <= 90 && Math.abs(longitude.doubleValue()) <= 180) {
+            document.put(LocationService.GEO_FIELD,
+                    LocationService.toGeoJsonPoint(latitude.doubleValue(), longitude.doubleValue()));
+        }
+        return document;
+    }
+
+    private static Date timeOf(Document document) {
+        Object ts = document.get(LocationService.TIMESTAMP_FIELD);
+        if (ts instanceof Date date) {
+            return date;
+        }
+        if (ts instanceof Number millis) {
+            return new Date(millis.longValue());
+        }
+        if (ts instanceof String text) {
+            try {
+                return text.chars().allMatch(Character::isDigit)
+                        ? new Date(Long.parseLong(text)) : Date.from(Instant.parse(text));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid ts \"" + text + "\"");
+            }
+        }
+        if (document.get("timestamp") instanceof Number timestamp && timestamp.longValue() > 0) {
+            return new Date(timestamp.longValue());
+        }
+        throw new IllegalArgumentException("Missing ts or timestamp");
+    }
+
+    /**
+     * Converts a CSV field to a long or double where it is one, so coordinates and device timestamps are stored as
+     * numbers.
+     */
+    private static Object csvValue(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Not an integer.
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Splits one CSV line. Fields may be quoted with '"', and a doubled quote inside a quoted field is a literal one.
+     */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * A record read from the import.
+     *
+     * @param line The line number, starting at 1.
+     * @param document The normalized document, null if the line could not be read.
+     * @param error Why the line could not be read, null for a document.
+     */
+    record Record(int line, Document document, String error) {
+    }
+}
@@ -0,0 +1,150 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Bulk import of historic locations into the location collection. The request body is parsed line by line by a
+ * LocationImportReader and written in unordered insertMany batches of "devicedetective.import.batch-size", so an
+ * import runs in constant memory and a bad document only fails itself rather than the rest of its batch.
+ * Gzip-compressed bodies are recognized by their magic bytes.
+ *
+ * Imported locations are history: they go straight to MongoDB and do not pass through the write-behind queue, the
+ * live state or the broadcaster.
+ */
+@Service
+public class LocationImportService {
+
+    /**
+     * Upper bound on the number of errors listed in an import report, further errors are only counted.
+     */
+    static final int MAX_REPORTED_ERRORS = 100;
+
+    private final MongoClient mongoClient;
+    private final int batchSize;
+
+    /**
+     * Constructs the service.
+     *
+     * @param mongoClient The MongoDB client to write to.
+     * @param batchSize Number of documents per insertMany.
+     */
+    public LocationImportService(MongoClient mongoClient,
+                                 @Value("${devicedetective.import.batch-size:1000}") int batchSize) {
+        this.mongoClient = mongoClient;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Imports all records of a stream.
+     *
+     * @param input The NDJSON or CSV data, optionally gzip-compressed.
+     * @param format The format of the data.
+     * @return A report with the number of "inserted" and "failed" records, the number of "batches" written, and up to
+     *         MAX_REPORTED_ERRORS "errors" with the "line" and, for write errors, the "batch" they occurred in.
+     * @throws IOException if reading the stream fails. Batches written up to that point remain inserted.
+     */
+    public Document importLocations(InputStream input, LocationImportReader.Format format) throws IOException {
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        LocationImportReader reader = new LocationImportReader(
+                new InputStreamReader(decompress(input), StandardCharsets.UTF_8), format);
+        Report report = new Report();
+        List<Document> batch = new ArrayList<>(batchSize);
+        int[] lines = new int[batchSize];
+
+        LocationImportReader.Record record;
+        while ((record = reader.next()) != null) {
+            if (record.document() == null) {
+                report.fail(new Document("line", record.line()).append("error", record.error()));
+                continue;
+            }
+            lines[batch.size()] = record.line();
+            batch.add(record.document());
+            if (batch.size() == batchSize) {
+                write(collection, batch, lines, report);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(collection, batch, lines, report);
+        }
+        return new Document("inserted", report.inserted)
+                .append("failed", report.failed)
+                .append("batches", report.batches)
+                .append("errors", report.errors);
+    }
+
+    /**
+     * Inserts a batch unordered and records the documents MongoDB rejected. The batch is cleared afterwards.
+     */
+    private void write(MongoCollection<Document> collection, List<Document> batch, int[] lines, Report report) {
+        int batchNumber = ++report.batches;
+        try {
+            collection.insertMany(batch, new InsertManyOptions().ordered(false));
+            report.inserted += batch.size();
+        } catch (MongoBulkWriteException e) {
+            report.inserted += e.getWriteResult().getInsertedCount();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                report.fail(new Document("batch", batchNumber)
+                        .append("line", lines[error.getIndex()])
+                        .append("error", error.getMessage()));
+            }
+        } catch (MongoException e) {
+            // The whole batch failed, e.g. because the database is unreachable. It is reported once, at its first line.
+            report.fail(new Document("batch", batchNumber)
+                    .append("line", lines[0])
+                    .append("error", e.getMessage()));
+            report.failed += batch.size() - 1;
+        }
+        batch.clear();
+    }
+
+    /**
+     * Wraps a stream in a GZIPInputStream if it starts with the gzip magic bytes.
+     */
+    static InputStream decompress(InputStream input) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, 64 * 1024);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(buffered, 64 * 1024);
+        }
+        return buffered;
+    }
+
+    /**
+     * Running totals of an import.
+     */
+    private static final class Report {
+        private long inserted;
+        private long failed;
+        private int batches;
+        private final List<Document> errors = new ArrayList<>();
+
+        private void fail(Document error) {
+            failed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(error);
+            }
+        }
+    }
+}
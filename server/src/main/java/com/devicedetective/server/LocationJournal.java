@@ -0,0 +1,398 @@
+package com.devicedetective.server;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+
+/**
+ * Optional local write-ahead journal for location documents. When enabled, the LocationService appends documents to
+ * memory-mapped segment files in "devicedetective.journal.dir" instead of inserting them, so a save costs a copy into
+ * the page cache no matter how MongoDB is doing. A background replayer drains the journal to MongoDB in unordered
+ * insertMany batches and marks the records it wrote. While MongoDB is unavailable the journal grows, and the replayer
+ * retries every "retry-ms" until it catches up. Documents MongoDB rejects for good, e.g. because they fail validation,
+ * are logged and counted as discarded instead, so that a single bad record cannot stall the journal.
+ *
+ * Segments hold "segment-records" records each. Once a segment is full a new one is started, and a full segment is
+ * deleted as soon as all of its records are replayed. At startup the segments left by the previous run are replayed
+ * before the new ones. Records carry their ObjectId, so a batch that was inserted but not yet marked when the server
+ * stopped is skipped as duplicates when it is replayed again. This relies on the unique _id index of a regular
+ * collection. Time-series collections have none and would store such a batch twice, so the journal cannot be enabled
+ * with "devicedetective.storage.mode=timeseries".
+ *
+ * The mapped pages are written to disk by the operating system, so the journal survives a crash of the server but
+ * not necessarily of the machine. When "max-segments" are in use, or a clientId or groupId is too long for a record,
+ * append returns false and the LocationService writes the document directly instead.
+ */
+@Component
+public class LocationJournal {
+    private static final Logger logger = LoggerFactory.getLogger(LocationJournal.class);
+
+    /**
+     * How long the idle replayer waits before checking for new records.
+     */
+    private static final long IDLE_POLL_MILLIS = 10;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final MongoClient mongoClient;
+    private final LocationMetrics metrics;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final int batchSize;
+    private final long retryMillis;
+
+    /**
+     * Segments in order, the last one is written to. Guarded by this.
+     */
+    private final Deque<LocationJournalSegment> segments = new ArrayDeque<>();
+
+    /**
+     * Sequence number of the next segment, kept increasing across restarts so the file names sort in order.
+     */
+    private long nextSequence;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failedReplays = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    private volatile boolean running;
+    private Thread replayer;
+
+    /**
+     * Constructs the journal from the "devicedetective.journal" settings.
+     *
+     * @param mongoClient The MongoDB client the journal is replayed to.
+     * @param metrics Hot-path metrics, used to record the replay latency.
+     * @param enabled Whether saves should go through the journal at all.
+     * @param storageMode The "devicedetective.storage.mode" of the location collection.
+     * @param directory Directory holding the segment files.
+     * @param segmentRecords Number of records per segment file.
+     * @param maxSegments Maximum number of segment files, appends are rejected beyond it.
+     * @param batchSize Maximum number of documents per insertMany call.
+     * @param retryMillis Time between replay attempts while MongoDB fails.
+     */
+    public LocationJournal(MongoClient mongoClient, LocationMetrics metrics,
+                           @Value("${devicedetective.journal.enabled:false}") boolean enabled,
+                           @Value("${devicedetective.storage.mode:collection}") String storageMode,
+                           @Value("${devicedetective.journal.dir:journal}") String directory,
+                           @Value("${devicedetective.journal.segment-records:65536}") int segmentRecords,
+                           @Value("${devicedetective.journal.max-segments:64}") int maxSegments,
+                           @Value("${devicedetective.journal.batch-size:500}") int batchSize,
+                           @Value("${devicedetective.journal.retry-ms:1000}") long retryMillis) {
+        if (segmentRecords < 1 || segmentRecords > (Integer.MAX_VALUE - LocationJournalSegment.HEADER_SIZE)
+                / LocationJournalSegment.RECORD_SIZE) {
+            throw new IllegalArgumentException("Invalid journal segment-records: " + segmentRecords);
+        }
+        if (enabled && "timeseries".equals(storageMode.trim().toLowerCase())) {
+            throw new IllegalArgumentException(
+                    "devicedetective.journal.enabled requires devicedetective.storage.mode=collection");
+        }
+        this.mongoClient = mongoClient;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = Math.max(2, maxSegments);
+        this.batchSize = Math.max(1, batchSize);
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Recovers the segments of a previous run and starts the replayer if the journal is enabled.
+     *
+     * @throws IOException if the journal directory or a segment cannot be read.
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        long pending = recover();
+        // Recovered segments are only replayed, new records always go to a new segment.
+        synchronized (this) {
+            roll();
+        }
+        running = true;
+        replayer = new Thread(this::replayLoop, "location-journal-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+        logger.info("Location journal enabled in {} ({} records recovered)", directory.toAbsolutePath(), pending);
+    }
+
+    /**
+     * Stops accepting new records, replays what MongoDB accepts before the client is closed and writes the segments to
+     * disk. Records that could not be replayed are recovered at the next start.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (replayer == null) {
+            return;
+        }
+        running = false;
+        replayer.join(TimeUnit.SECONDS.toMillis(30));
+        synchronized (this) {
+            segments.forEach(LocationJournalSegment::force);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends a document to the journal.
+     *
+     * @param document The location document to persist.
+     * @return true if the document was journaled, false if it has to be written directly.
+     */
+    public boolean append(Document document) {
+        if (!running || !LocationJournalSegment.fits(document)) {
+            rejected.increment();
+            return false;
+        }
+        synchronized (this) {
+            if (!running) {
+                rejected.increment();
+                return false;
+            }
+            LocationJournalSegment segment = segments.peekLast();
+            if (segment == null || segment.isFull()) {
+                if (segments.size() >= maxSegments) {
+                    rejected.increment();
+                    return false;
+                }
+                try {
+                    segment = roll();
+                } catch (IOException e) {
+                    logger.error("Failed to start a journal segment", e);
+                    rejected.increment();
+                    return false;
+                }
+            }
+            segment.append(document);
+        }
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * Returns the number of journaled records not yet replayed to MongoDB.
+     */
+    public synchronized long getPending() {
+        long pending = 0;
+        for (LocationJournalSegment segment : segments) {
+            pending += segment.getWriteIndex() - segment.getReplayIndex();
+        }
+        return pending;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFailedReplays() {
+        return failedReplays.sum();
+    }
+
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    /**
+     * Opens the segment files in the journal directory in sequence order.
+     *
+     * @return The number of records still to be replayed.
+     */
+    private synchronized long recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+        long pending = 0;
+        for (Path file : files) {
+            LocationJournalSegment segment = LocationJournalSegment.open(file);
+            nextSequence = Math.max(nextSequence, segment.getSequence() + 1);
+            if (segment.getReplayIndex() == segment.getWriteIndex()) {
+                segment.delete();
+                continue;
+            }
+            segments.addLast(segment);
+            pending += segment.getWriteIndex() - segment.getReplayIndex();
+        }
+        return pending;
+    }
+
+    /**
+     * Starts a new segment after the last one. Must be called while holding the lock.
+     */
+    private LocationJournalSegment roll() throws IOException {
+        // Zero-padded so the file names sort in sequence order.
+        Path path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX));
+        LocationJournalSegment segment = LocationJournalSegment.create(path, nextSequence, segmentRecords);
+        nextSequence++;
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Main loop of the replayer thread. Replays as long as there are records, waits briefly when the journal is
+     * drained and longer after a failure. Once stopped, it replays the rest while MongoDB accepts it.
+     */
+    private void replayLoop() {
+        boolean failing = false;
+        while (true) {
+            boolean stopping = !running;
+            int result = replayBatch();
+            if (result < 0) {
+                if (!failing) {
+                    logger.warn("MongoDB rejected the journal replay, {} locations are waiting", getPending());
+                }
+                failing = true;
+                if (stopping || !sleep(retryMillis)) {
+                    return;
+                }
+                continue;
+            }
+            if (failing) {
+                logger.info("Journal replay resumed");
+                failing = false;
+            }
+            if (result == 0 && (stopping || !sleep(IDLE_POLL_MILLIS))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replays the next batch of the oldest segment, deleting the segment once it is sealed and fully replayed.
+     *
+     * @return The number of records replayed, 0 if there was nothing to replay, -1 if MongoDB failed.
+     */
+    private int replayBatch() {
+        LocationJournalSegment segment;
+        boolean sealed;
+        synchronized (this) {
+            segment = segments.peekFirst();
+            if (segment == null) {
+                return 0;
+            }
+            sealed = segment != segments.peekLast() || segment.isFull();
+        }
+        int start = segment.getReplayIndex();
+        int end = Math.min(segment.getWriteIndex(), start + batchSize);
+        if (start == end) {
+            if (sealed && reclaim(segment)) {
+                // Go on with the next segment.
+                return replayBatch();
+            }
+            return 0;
+        }
+        List<Document> batch = segment.readPending(end);
+        long begin = System.nanoTime();
+        try {
+            collection().insertMany(batch, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // The unordered insert went on after each error, so every document without one was written. Records
+            // replayed before a restart but not yet marked are already there, any other write error would fail again.
+            List<BulkWriteError> rejected = e.getWriteErrors().stream()
+                    .filter(error -> error.getCategory() != ErrorCategory.DUPLICATE_KEY)
+                    .toList();
+            if (!rejected.isEmpty()) {
+                discarded.add(rejected.size());
+                logger.error("MongoDB rejected {} journaled locations, discarding them: {}", rejected.size(),
+                        rejected.get(0).getMessage());
+            }
+        } catch (MongoException e) {
+            failedReplays.increment();
+            return -1;
+        }
+        metrics.recordInsertMany(System.nanoTime() - begin);
+        segment.markReplayed(end);
+        replayed.add(batch.size());
+        return batch.size();
+    }
+
+    /**
+     * Removes a fully replayed segment and deletes its file.
+     *
+     * @return true if there is another segment to replay.
+     */
+    private boolean reclaim(LocationJournalSegment segment) {
+        boolean more;
+        synchronized (this) {
+            if (segments.peekFirst() != segment) {
+                return false;
+            }
+            segments.removeFirst();
+            more = !segments.isEmpty();
+        }
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            logger.warn("Failed to delete journal segment {}", segment.getPath(), e);
+        }
+        return more;
+    }
+
+    /**
+     * Sleeps on the replayer thread.
+     *
+     * @return false if the thread was interrupted.
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private MongoCollection<Document> collection() {
+        return mongoClient.getDatabase(LocationService.DATABASE_NAME).getCollection(LocationService.COLLECTION_NAME);
+    }
+}
@@ -0,0 +1,314 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+
+/**
+ * One memory-mapped file of the LocationJournal, holding a fixed number of fixed-size location records. Records are
+ * appended by a single writer at a time and replayed in order, so the state of a segment is just two indexes: records
+ * below the write index are written, records below the replay index are in MongoDB. All numbers are big-endian. The
+ * file is laid out as:
+ *
+ * <pre>
+ * header:
+ *   i32 MAGIC
+ *   i32 RECORD_SIZE
+ *   i64 sequence number of the segment
+ * per record, RECORD_SIZE bytes:
+ *   u8  state: EMPTY, PENDING or REPLAYED
+ *   12  bytes of the ObjectId
+ *   i64 ts in epoch milliseconds
+ *   i64 device timestamp in epoch milliseconds
+ *   f64 latitude
+ *   f64 longitude
+ *   u8  clientId length + 1 (0 for none), followed by MAX_ID_BYTES bytes holding the UTF-8 clientId
+ *   u8  groupId length + 1 (0 for none), followed by MAX_ID_BYTES bytes holding the UTF-8 groupId
+ *   padding
+ *   i32 CRC32C of the record without its state byte
+ * </pre>
+ *
+ * The state byte is written last and is not part of the checksum, so marking a record as replayed does not change it.
+ * A record whose checksum does not match was torn by a crash and ends the segment when it is recovered.
+ */
+final class LocationJournalSegment {
+
+    static final int MAGIC = 0x44444A31;
+
+    static final int HEADER_SIZE = 4 + 4 + 8;
+
+    static final int RECORD_SIZE = 192;
+
+    /**
+     * Longest clientId or groupId a record can hold, longer ones are not journaled.
+     */
+    static final int MAX_ID_BYTES = 64;
+
+    static final byte EMPTY = 0;
+    static final byte PENDING = 1;
+    static final byte REPLAYED = 2;
+
+    private static final int ID_OFFSET = 1;
+    private static final int TS_OFFSET = ID_OFFSET + 12;
+    private static final int TIMESTAMP_OFFSET = TS_OFFSET + 8;
+    private static final int LATITUDE_OFFSET = TIMESTAMP_OFFSET + 8;
+    private static final int LONGITUDE_OFFSET = LATITUDE_OFFSET + 8;
+    private static final int CLIENT_ID_OFFSET = LONGITUDE_OFFSET + 8;
+    private static final int GROUP_ID_OFFSET = CLIENT_ID_OFFSET + 1 + MAX_ID_BYTES;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+
+    private final Path path;
+    private final long sequence;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Number of records written, published to the replaying thread by the volatile write.
+     */
+    private volatile int writeIndex;
+
+    /**
+     * Number of records replayed, only advanced by the replaying thread after recovery. Volatile since the pending
+     * count reads it from other threads.
+     */
+    private volatile int replayIndex;
+
+    private LocationJournalSegment(Path path, long sequence, int capacity, MappedByteBuffer buffer) {
+        this.path = path;
+        this.sequence = sequence;
+        this.capacity = capacity;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates and maps a new, empty segment file.
+     *
+     * @param path The file to create, must not exist.
+     * @param sequence The sequence number of the segment, written to its header.
+     * @param capacity Number of records the segment holds.
+     * @return The segment.
+     * @throws IOException if the file cannot be created or mapped.
+     */
+    static LocationJournalSegment create(Path path, long sequence, int capacity) throws IOException {
+        MappedByteBuffer buffer = map(path, HEADER_SIZE + (long) capacity * RECORD_SIZE, StandardOpenOption.CREATE_NEW);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, RECORD_SIZE);
+        buffer.putLong(8, sequence);
+        return new LocationJournalSegment(path, sequence, capacity, buffer);
+    }
+
+    /**
+     * Maps an existing segment file and recovers its write and replay indexes. Records after the first empty or torn
+     * one are ignored.
+     *
+     * @param path The segment file.
+     * @return The segment.
+     * @throws IOException if the file cannot be mapped or is not a segment of this format.
+     */
+    static LocationJournalSegment open(Path path) throws IOException {
+        long size = Files.size(path);
+        if (size < HEADER_SIZE || (size - HEADER_SIZE) % RECORD_SIZE != 0) {
+            throw new IOException("Not a journal segment: " + path);
+        }
+        MappedByteBuffer buffer = map(path, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE) {
+            throw new IOException("Not a journal segment: " + path);
+        }
+        LocationJournalSegment segment = new LocationJournalSegment(path, buffer.getLong(8),
+                (int) ((size - HEADER_SIZE) / RECORD_SIZE), buffer);
+        int index = 0;
+        while (index < segment.capacity && segment.state(index) != EMPTY && segment.isIntact(index)) {
+            if (segment.state(index) == REPLAYED) {
+                segment.replayIndex = index + 1;
+            }
+            index++;
+        }
+        segment.writeIndex = index;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path path, long size, StandardOpenOption... options) throws IOException {
+        List<StandardOpenOption> openOptions = new ArrayList<>(List.of(options));
+        openOptions.add(StandardOpenOption.READ);
+        openOptions.add(StandardOpenOption.WRITE);
+        // The mapping stays valid after the channel is closed.
+        try (FileChannel channel = FileChannel.open(path, openOptions.toArray(StandardOpenOption[]::new))) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Checks whether a location document fits into a record.
+     *
+     * @param document A location document as built by the LocationService.
+     * @return false if its clientId or groupId is too long.
+     */
+    static boolean fits(Document document) {
+        return idBytes(document.getString("clientId")).length <= MAX_ID_BYTES
+                && idBytes(document.getString("groupId")).length <= MAX_ID_BYTES;
+    }
+
+    /**
+     * Appends a location document. Callers must not append concurrently and must check fits first.
+     *
+     * @param document A location document as built by the LocationService.
+     * @return false if the segment is full.
+     */
+    boolean append(Document document) {
+        int index = writeIndex;
+        if (index == capacity) {
+            return false;
+        }
+        int offset = offsetOf(index);
+        buffer.put(offset + ID_OFFSET, document.getObjectId("_id").toByteArray());
+        buffer.putLong(offset + TS_OFFSET, document.getDate(LocationService.TIMESTAMP_FIELD).getTime());
+        Object timestamp = document.get("timestamp");
+        buffer.putLong(offset + TIMESTAMP_OFFSET, timestamp instanceof Number number ? number.longValue() : 0);
+        buffer.putDouble(offset + LATITUDE_OFFSET, document.getDouble("latitude"));
+        buffer.putDouble(offset + LONGITUDE_OFFSET, document.getDouble("longitude"));
+        putId(offset + CLIENT_ID_OFFSET, document.getString("clientId"));
+        putId(offset + GROUP_ID_OFFSET, document.getString("groupId"));
+        buffer.putInt(offset + CRC_OFFSET, checksum(offset));
+        buffer.put(offset, PENDING);
+        writeIndex = index + 1;
+        return true;
+    }
+
+    /**
+     * Reads the records from the replay index up to an end index.
+     *
+     * @param end The index after the last record to read, at most the write index.
+     * @return The location documents, in the shape the LocationService saves them.
+     */
+    List<Document> readPending(int end) {
+        List<Document> documents = new ArrayList<>(end - replayIndex);
+        for (int index = replayIndex; index < end; index++) {
+            documents.add(read(index));
+        }
+        return documents;
+    }
+
+    /**
+     * Marks the records from the replay index up to an end index as replayed and advances the replay index.
+     *
+     * @param end The index after the last replayed record.
+     */
+    void markReplayed(int end) {
+        for (int index = replayIndex; index < end; index++) {
+            buffer.put(offsetOf(index), REPLAYED);
+        }
+        replayIndex = end;
+    }
+
+    private Document read(int index) {
+        int offset = offsetOf(index);
+        byte[] id = new byte[12];
+        buffer.get(offset + ID_OFFSET, id);
+        double latitude = buffer.getDouble(offset + LATITUDE_OFFSET);
+        double longitude = buffer.getDouble(offset + LONGITUDE_OFFSET);
+        long timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+        String groupId = getId(offset + GROUP_ID_OFFSET);
+
+        // Same fields in the same order as LocationService.saveLocation.
+        Document document = new Document("_id", new ObjectId(id))
+                .append("clientId", getId(offset + CLIENT_ID_OFFSET))
+                .append(LocationService.TIMESTAMP_FIELD, new Date(buffer.getLong(offset + TS_OFFSET)))
+                .append("latitude", latitude)
+                .append("longitude", longitude);
+        if (timestamp > 0) {
+            document.append("timestamp", timestamp);
+        }
+        if (groupId != null) {
+            document.append("groupId", groupId);
+        }
+        if (Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180) {
+            document.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(latitude, longitude));
+        }
+        return document;
+    }
+
+    private void putId(int offset, String id) {
+        byte[] bytes = idBytes(id);
+        buffer.put(offset, (byte) (id == null ? 0 : bytes.length + 1));
+        buffer.put(offset + 1, bytes);
+    }
+
+    private String getId(int offset) {
+        int length = (buffer.get(offset) & 0xff) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] idBytes(String id) {
+        return id == null ? new byte[0] : id.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte state(int index) {
+        return buffer.get(offsetOf(index));
+    }
+
+    private boolean isIntact(int index) {
+        int offset = offsetOf(index);
+        return buffer.getInt(offset + CRC_OFFSET) == checksum(offset);
+    }
+
+    private int checksum(int offset) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset + 1, CRC_OFFSET - 1));
+        return (int) crc.getValue();
+    }
+
+    private static int offsetOf(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Writes the mapped pages to disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Deletes the segment file. The segment must not be used afterwards.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    int getWriteIndex() {
+        return writeIndex;
+    }
+
+    int getReplayIndex() {
+        return replayIndex;
+    }
+
+    boolean isFull() {
+        return writeIndex == capacity;
+    }
+}
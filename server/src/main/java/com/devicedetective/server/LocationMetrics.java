@@ -0,0 +1,126 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/**
+ * Timers and distribution summaries for the location hot paths, registered with Micrometer and exposed through the
+ * actuator "metrics" and "prometheus" endpoints:
+ *
+ * <ul>
+ *   <li>"devicedetective.stomp.handler", tagged with the destination: latency, and through its count the rate, of
+ *       inbound STOMP messages handled by the @MessageMapping methods.</li>
+ *   <li>"devicedetective.mongo", tagged with the operation: latency of MongoDB inserts and lookups.</li>
+ *   <li>"devicedetective.broadcast.locations" and "devicedetective.broadcast.frames": locations and frames sent per
+ *       broadcast tick.</li>
+ * </ul>
+ *
+ * Meters are created once and cached, so recording on the hot path does not allocate.
+ */
+@Component
+public class LocationMetrics {
+
+    /**
+     * Maximum number of distinct destinations timed separately. Clients choose the destination they send to, so
+     * anything past this limit shares one "other" tag instead of growing the registry without bound.
+     */
+    private static final int MAX_DESTINATION_TAGS = 32;
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> handlerTimers = new ConcurrentHashMap<>();
+    private final Timer insertTimer;
+    private final Timer insertManyTimer;
+    private final Timer findTimer;
+    private final DistributionSummary broadcastLocations;
+    private final DistributionSummary broadcastFrames;
+
+    /**
+     * Constructs the metrics and registers the fixed meters.
+     *
+     * @param registry The registry the meters are published to.
+     */
+    public LocationMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.insertTimer = mongoTimer("insert");
+        this.insertManyTimer = mongoTimer("insertMany");
+        this.findTimer = mongoTimer("find");
+        this.broadcastLocations = DistributionSummary.builder("devicedetective.broadcast.locations")
+                .description("Locations sent per broadcast tick")
+                .register(registry);
+        this.broadcastFrames = DistributionSummary.builder("devicedetective.broadcast.frames")
+                .description("Frames sent to subscribed destinations per broadcast tick")
+                .register(registry);
+    }
+
+    /**
+     * Records the time an inbound STOMP message spent in its handler.
+     *
+     * @param destination The destination the message was sent to, e.g. "/app/sendLocation".
+     * @param nanos The handling time in nanoseconds.
+     */
+    public void recordHandler(String destination, long nanos) {
+        Timer timer = handlerTimers.get(destination);
+        if (timer == null) {
+            String tag = handlerTimers.size() < MAX_DESTINATION_TAGS ? destination : "other";
+            timer = handlerTimers.computeIfAbsent(tag, key -> Timer.builder("devicedetective.stomp.handler")
+                    .description("Handling time of inbound STOMP messages")
+                    .tag("destination", key)
+                    .register(registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Times a single document insert.
+     *
+     * @param insert The insert to run.
+     */
+    public void timeInsert(Runnable insert) {
+        insertTimer.record(insert);
+    }
+
+    /**
+     * Times a lookup.
+     *
+     * @param find The query to run.
+     * @return The result of the query.
+     */
+    public <T> T timeFind(Supplier<T> find) {
+        return findTimer.record(find);
+    }
+
+    /**
+     * Records a batched insert that has already completed.
+     *
+     * @param nanos The time insertMany took in nanoseconds.
+     */
+    public void recordInsertMany(long nanos) {
+        insertManyTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the fan-out of one broadcast tick.
+     *
+     * @param locations Number of changed locations in the tick.
+     * @param frames Number of frames sent to subscribed destinations.
+     */
+    public void recordBroadcast(int locations, int frames) {
+        broadcastLocations.record(locations);
+        broadcastFrames.record(frames);
+    }
+
+    private Timer mongoTimer(String operation) {
+        return Timer.builder("devicedetective.mongo")
+                .description("Latency of MongoDB operations on the location collection")
+                .tag("operation", operation)
+                .register(registry);
+    }
+}
@@ -0,0 +1,143 @@
+package com.devicedetective.server;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * REST controller for spatial queries over device locations.
+ * Live queries are answered from the in-memory LiveSpatialIndex of latest positions. Historic queries run against
+ * the 2dsphere index of the persisted GeoJSON points. Trajectories are downsampled from the persisted history by the
+ * TrajectoryService.
+ */
+@RestController
+@RequestMapping("/api")
+public class LocationQueryController {
+
+    /**
+     * Upper bound on the number of persisted documents returned by a historic query.
+     */
+    private static final int MAX_HISTORY_RESULTS = 1000;
+
+    /**
+     * Window of a trajectory query without a "from" parameter.
+     */
+    private static final long DEFAULT_TRAJECTORY_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final LiveSpatialIndex liveSpatialIndex;
+    private final MongoClient mongoClient;
+    private final TrajectoryService trajectoryService;
+
+    public LocationQueryController(LiveSpatialIndex liveSpatialIndex, MongoClient mongoClient,
+                                   TrajectoryService trajectoryService) {
+        this.liveSpatialIndex = liveSpatialIndex;
+        this.mongoClient = mongoClient;
+        this.trajectoryService = trajectoryService;
+    }
+
+    /**
+     * HTTP GET method returning the devices whose latest position lies within a radius of a point, nearest first.
+     * Maps to "/api/nearby?lat=&lng=&radius=" with the radius in metres.
+     * With "live=false" the persisted location history is queried instead, which may return several points per device.
+     *
+     * @param lat Latitude of the centre in degrees.
+     * @param lng Longitude of the centre in degrees.
+     * @param radius Search radius in metres.
+     * @param live Whether to query the latest positions in memory (default) or the persisted history.
+     * @return The matching devices, or persisted location documents for a historic query.
+     */
+    @GetMapping("/nearby")
+    public List<Document> findNearby(@RequestParam double lat,
+                                     @RequestParam double lng,
+                                     @RequestParam double radius,
+                                     @RequestParam(defaultValue = "true") boolean live) {
+        if (!live) {
+            return findHistory(Filters.nearSphere(LocationService.GEO_FIELD, new Point(new Position(lng, lat)), radius, 0.0));
+        }
+        return toDocuments(liveSpatialIndex.findNearby(lat, lng, radius));
+    }
+
+    /**
+     * HTTP GET method returning the devices whose latest position lies within a bounding box.
+     * Maps to "/api/within?minLat=&minLng=&maxLat=&maxLng=".
+     *
+     * @return The devices inside the box.
+     */
+    @GetMapping("/within")
+    public List<Document> findWithin(@RequestParam double minLat,
+                                     @RequestParam double minLng,
+                                     @RequestParam double maxLat,
+                                     @RequestParam double maxLng) {
+        return toDocuments(liveSpatialIndex.findWithin(minLat, minLng, maxLat, maxLng));
+    }
+
+    /**
+     * HTTP GET method returning the track of a device downsampled to at most a number of points, for replaying it on
+     * the map. Maps to "/api/trajectory/{clientId}?from=&to=&points=" with the times in epoch milliseconds.
+     * The window defaults to the last 24 hours, and the number of points is clamped to between 3 and 5000.
+     *
+     * @param clientId The client whose track to return.
+     * @param from Start of the window, inclusive.
+     * @param to End of the window, exclusive.
+     * @param points Maximum number of points to return.
+     * @return The window, the number of persisted points in it and the kept points with "t", "lat" and "lng".
+     */
+    @GetMapping("/trajectory/{clientId}")
+    public Document getTrajectory(@PathVariable String clientId,
+                                  @RequestParam(required = false) Long from,
+                                  @RequestParam(required = false) Long to,
+                                  @RequestParam(defaultValue = "500") int points) {
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - DEFAULT_TRAJECTORY_MILLIS;
+        int target = Math.max(3, Math.min(TrajectoryService.MAX_POINTS, points));
+        return trajectoryService.getTrajectory(clientId, start, end, target);
+    }
+
+    /**
+     * Answers queries with invalid arguments, such as a negative radius or an inverted bounding box, with 400.
+     */
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Document> handleInvalidQuery(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(new Document("error", e.getMessage()));
+    }
+
+    private List<Document> findHistory(Bson filter) {
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        List<Document> documents = new ArrayList<>();
+        try (MongoCursor<Document> cursor = collection.find(filter).limit(MAX_HISTORY_RESULTS).iterator()) {
+            while (cursor.hasNext()) {
+                documents.add(cursor.next());
+            }
+        }
+        return documents;
+    }
+
+    private static List<Document> toDocuments(List<LiveSpatialIndex.Match> matches) {
+        List<Document> documents = new ArrayList<>(matches.size());
+        for (LiveSpatialIndex.Match match : matches) {
+            documents.add(new Document("clientId", match.clientId())
+                    .append("latitude", match.latitude())
+                    .append("longitude", match.longitude())
+                    .append("distance", match.distanceMeters()));
+        }
+        return documents;
+    }
+}
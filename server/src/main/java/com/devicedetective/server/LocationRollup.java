@@ -0,0 +1,120 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.MergeOptions;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Downsamples old location data into the "devicedetective_rollup" collection. Each run averages the raw points of
+ * every client into buckets of "devicedetective.storage.rollup.bucket-minutes" once they are older than
+ * "devicedetective.storage.rollup.after-hours", so that coarse history survives the raw data's TTL retention.
+ *
+ * The rollup collection is an archive for export and offline analysis, no endpoint of the server reads it. It only
+ * saves space together with "devicedetective.storage.retention-days", without retention the raw points are kept as
+ * well. Its time window is matched on "ts" across all clients, which the "ts_ttl" index serves, or the plain "ts"
+ * index LocationCollectionInitializer creates when nothing expires.
+ *
+ * Every run re-aggregates the last two intervals of bucket-aligned data and replaces matching rollup documents,
+ * which makes runs idempotent and lets a missed run be caught up by the next one.
+ */
+@Component
+public class LocationRollup {
+    private static final Logger logger = LoggerFactory.getLogger(LocationRollup.class);
+
+    /**
+     * Collection holding the downsampled location buckets.
+     */
+    static final String ROLLUP_COLLECTION_NAME = "devicedetective_rollup";
+
+    private final MongoClient mongoClient;
+    private final boolean enabled;
+    private final long afterMillis;
+    private final long bucketMillis;
+    private final long intervalMillis;
+
+    public LocationRollup(MongoClient mongoClient,
+                          @Value("${devicedetective.storage.rollup.enabled:false}") boolean enabled,
+                          @Value("${devicedetective.storage.rollup.after-hours:24}") long afterHours,
+                          @Value("${devicedetective.storage.rollup.bucket-minutes:15}") long bucketMinutes,
+                          @Value("${devicedetective.storage.rollup.interval-ms:3600000}") long intervalMillis,
+                          @Value("${devicedetective.storage.retention-days:0}") long retentionDays) {
+        this.mongoClient = mongoClient;
+        this.enabled = enabled;
+        this.afterMillis = TimeUnit.HOURS.toMillis(afterHours);
+        this.bucketMillis = TimeUnit.MINUTES.toMillis(bucketMinutes);
+        this.intervalMillis = intervalMillis;
+        if (enabled && retentionDays <= 0) {
+            logger.warn("Location rollup is enabled without devicedetective.storage.retention-days, "
+                    + "raw locations are kept in addition to their rollup");
+        }
+    }
+
+    /**
+     * Periodically rolls up the raw points that just passed the rollup age.
+     */
+    @Scheduled(fixedDelayString = "${devicedetective.storage.rollup.interval-ms:3600000}",
+            initialDelayString = "${devicedetective.storage.rollup.interval-ms:3600000}")
+    public void scheduledRollup() {
+        if (!enabled) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - afterMillis;
+        // Only whole buckets are aggregated so a replaced rollup document never loses points.
+        long windowEnd = cutoff - Math.floorMod(cutoff, bucketMillis);
+        long windowStart = windowEnd - 2 * Math.max(intervalMillis, bucketMillis);
+        windowStart -= Math.floorMod(windowStart, bucketMillis);
+        try {
+            rollup(new Date(windowStart), new Date(windowEnd));
+        } catch (MongoException e) {
+            logger.warn("Location rollup failed", e);
+        }
+    }
+
+    /**
+     * Aggregates the raw points in [from, to) into per-client buckets and merges them into the rollup collection.
+     *
+     * @param from Start of the window, inclusive and aligned to a bucket boundary.
+     * @param to End of the window, exclusive and aligned to a bucket boundary.
+     */
+    void rollup(Date from, Date to) {
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        String ts = "$" + LocationService.TIMESTAMP_FIELD;
+        String coordinates = "$" + LocationService.GEO_FIELD + ".coordinates";
+        Document bucket = new Document("$toDate", new Document("$subtract", List.of(
+                new Document("$toLong", ts),
+                new Document("$mod", List.of(new Document("$toLong", ts), bucketMillis)))));
+
+        collection.aggregate(List.of(
+                Aggregates.match(Filters.and(
+                        Filters.gte(LocationService.TIMESTAMP_FIELD, from),
+                        Filters.lt(LocationService.TIMESTAMP_FIELD, to),
+                        Filters.exists(LocationService.GEO_FIELD))),
+                Aggregates.group(new Document("clientId", "$clientId").append("bucket", bucket),
+                        Accumulators.avg("longitude", new Document("$arrayElemAt", List.of(coordinates, 0))),
+                        Accumulators.avg("latitude", new Document("$arrayElemAt", List.of(coordinates, 1))),
+                        Accumulators.sum("count", 1),
+                        Accumulators.min("firstTs", ts),
+                        Accumulators.max("lastTs", ts)),
+                Aggregates.merge(ROLLUP_COLLECTION_NAME, new MergeOptions()
+                        .whenMatched(MergeOptions.WhenMatched.REPLACE)
+                        .whenNotMatched(MergeOptions.WhenNotMatched.INSERT))
+        )).toCollection();
+        logger.debug("Rolled up locations between {} and {}", from, to);
+    }
+}
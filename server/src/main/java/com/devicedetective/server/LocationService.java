@@ -4,10 +4,14 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.bson.conversions.Bson;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+import java.util.Date;
+import java.util.List;
 
 
 /**
@@ -20,35 +24,151 @@ public class LocationService {
     /**
      * Injected MongoDB client to interact with the database
      */
-    @Autowired
-    private MongoClient mongoClient;
+    private final MongoClient mongoClient;
+
+    /**
+     * In-memory cache of the latest location of every client, updated on every save.
+     */
+    private final LatestLocationStore latestLocationStore;
+
+    /**
+     * Optional batched write-behind pipeline, used instead of a direct insert when enabled.
+     */
+    private final LocationWriteBehind writeBehind;
+
+    /**
+     * Optional local write-ahead journal, used instead of the write-behind queue or a direct insert when enabled.
+     */
+    private final LocationJournal journal;
+
+    /**
+     * In-memory grid of the latest position of every device, used for live "nearby" queries.
+     */
+    private final LiveSpatialIndex liveSpatialIndex;
+
+    /**
+     * Hot-path metrics, used to time the MongoDB calls.
+     */
+    private final LocationMetrics metrics;
+
+    /**
+     * Publishes saved locations to the other server instances.
+     */
+    private final LocationEventBus eventBus;
 
     /**
      * Database name for location data in MongoDB
      */
-    private static final String DATABASE_NAME = "test";
+    static final String DATABASE_NAME = "test";
 
     /**
      * Collection name for location data in MongoDB
      */
-    private static final String COLLECTION_NAME = "devicedetective";
+    static final String COLLECTION_NAME = "devicedetective";
+
+    /**
+     * Field holding the server-side time a location was received.
+     */
+    static final String TIMESTAMP_FIELD = "ts";
+
+    /**
+     * Field holding the GeoJSON point of a location document.
+     */
+    static final String GEO_FIELD = "location";
+
+    /**
+     * Constructs the service with the stores it keeps up to date and the paths a saved document can take to MongoDB.
+     *
+     * @param mongoClient The MongoDB client for direct inserts and lookups.
+     * @param latestLocationStore The in-memory cache of the latest location of every client.
+     * @param writeBehind The batched write-behind pipeline, used when enabled.
+     * @param journal The local write-ahead journal, used when enabled.
+     * @param liveSpatialIndex The in-memory grid of the latest position of every device.
+     * @param metrics Hot-path metrics.
+     * @param eventBus The bus saved locations are published to.
+     */
+    public LocationService(MongoClient mongoClient, LatestLocationStore latestLocationStore,
+                           LocationWriteBehind writeBehind, LocationJournal journal, LiveSpatialIndex liveSpatialIndex,
+                           LocationMetrics metrics, LocationEventBus eventBus) {
+        this.mongoClient = mongoClient;
+        this.latestLocationStore = latestLocationStore;
+        this.writeBehind = writeBehind;
+        this.journal = journal;
+        this.liveSpatialIndex = liveSpatialIndex;
+        this.metrics = metrics;
+        this.eventBus = eventBus;
+    }
 
     /**
      * Saves a new location to the database.
-     * Creates a new document (or table row) and inserts it into the MongoDB collection (database).
+     * Creates a new document (or table row) stamped with the server time and inserts it into the MongoDB collection
+     * (database).
+     * With write-behind enabled the document is queued and inserted in a batch by a background writer instead.
+     * With the journal enabled the document is appended to a local memory-mapped file and replayed to MongoDB in the
+     * background, so a slow or unavailable database does not block the caller. If the journal is full the document
+     * is written as if the journal was disabled.
+     * Numeric coordinates are also stored as a GeoJSON point in the "location" field, backed by a 2dsphere index.
+     * The saved document is published to the other server instances through the LocationEventBus.
      *
      * @param location The Location object containing data to be stored.
      */
     public void saveLocation(Location location) {
-        // Find the MongoDB collection (database).
+        // Create new MongoDB document (table row). The id is assigned here so that it is known before a batched insert.
+        Document doc = new Document("_id", new ObjectId())
+                .append("clientId", location.getClientId())
+                .append(TIMESTAMP_FIELD, new Date())
+                .append("latitude", location.getLatitude())
+                .append("longitude", location.getLongitude());
+        if (location.getTimestamp() > 0) {
+            doc.append("timestamp", location.getTimestamp());
+        }
+        if (location.getGroupId() != null) {
+            doc.append("groupId", location.getGroupId());
+        }
+        double[] coordinates = coordinatesOf(location);
+        if (coordinates != null) {
+            doc.append(GEO_FIELD, toGeoJsonPoint(coordinates[0], coordinates[1]));
+            liveSpatialIndex.update(location.getClientId(), coordinates[0], coordinates[1]);
+        }
+        latestLocationStore.put(location.getClientId(), doc);
+        eventBus.publish(doc);
+
+        if (journal.isEnabled() && journal.append(doc)) {
+            return;
+        }
+        if (writeBehind.isEnabled()) {
+            writeBehind.enqueue(doc);
+            return;
+        }
+
+        // Find the MongoDB collection (database) and insert the document.
         MongoDatabase database = mongoClient.getDatabase(DATABASE_NAME);
         MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+        metrics.timeInsert(() -> collection.insertOne(doc));
+    }
 
-        // Create new MongoDB document (table row) and insert into the database.
-        Document doc = new Document("clientId", location.getClientId())
-                .append("latitude", location.getLatitude())
-                .append("longitude", location.getLongitude());
-        collection.insertOne(doc);
+    /**
+     * Applies a location saved by another server instance to the in-memory state of this one. The document has already
+     * been persisted by the instance that received it, so it is not written again. A location older than the one
+     * already known for the client is ignored. Also used to load the persisted locations at startup.
+     *
+     * @param doc The location document as saved by the other instance.
+     * @return true if the location was applied.
+     */
+    public boolean applyRemoteLocation(Document doc) {
+        String clientId = doc.getString("clientId");
+        if (clientId == null) {
+            return false;
+        }
+        if (!latestLocationStore.putIfNewer(clientId, doc)) {
+            return false;
+        }
+        Object latitude = doc.get("latitude");
+        Object longitude = doc.get("longitude");
+        if (doc.containsKey(GEO_FIELD) && latitude instanceof Number lat && longitude instanceof Number lng) {
+            liveSpatialIndex.update(clientId, lat.doubleValue(), lng.doubleValue());
+        }
+        return true;
     }
 
     /**
@@ -59,17 +179,73 @@ public class LocationService {
      * @return Document containing the location data or an error message.
      */
     public Document findLocationByClientId(String clientId) {
-        // Find the MongoDB collection (database).
-        MongoDatabase database = mongoClient.getDatabase("test");
-        MongoCollection<Document> collection = database.getCollection("devicedetective");
+        Document found = loadLocationFromDatabase(clientId);
+        if (found != null) {
+            return found;
+        } else {
+            return new Document("error", "Data not found");
+        }
+    }
 
-        // Find the most recent location of the client in the database and return.
-        Bson filter = Filters.eq("clientId", clientId);
-        Document found = collection.find(filter).first();
+    /**
+     * Retrieves the latest location of a client, served from the in-memory LatestLocationStore.
+     * MongoDB is only queried when the client is not in the store, and the result is then cached.
+     * If no matching location is found, returns a document indicating an error.
+     *
+     * @param clientId The client ID to search for.
+     * @return Document containing the location data or an error message.
+     */
+    public Document findLatestLocation(String clientId) {
+        Document found = latestLocationStore.getOrLoad(clientId, this::loadLocationFromDatabase);
         if (found != null) {
             return found;
         } else {
             return new Document("error", "Data not found");
         }
     }
+
+    /**
+     * Queries MongoDB for the most recent location document of the client. The sort is served by the
+     * {clientId: 1, ts: -1} index created at startup, so only a single index entry is read.
+     *
+     * @param clientId The client ID to search for in the database.
+     * @return The matching document, or null if the client has no stored location.
+     */
+    private Document loadLocationFromDatabase(String clientId) {
+        // Find the MongoDB collection (database).
+        MongoDatabase database = mongoClient.getDatabase(DATABASE_NAME);
+        MongoCollection<Document> collection = database.getCollection(COLLECTION_NAME);
+
+        // Find the most recent location of the client in the database and return.
+        Bson filter = Filters.eq("clientId", clientId);
+        return metrics.timeFind(() -> collection.find(filter).sort(Sorts.descending(TIMESTAMP_FIELD)).first());
+    }
+
+    /**
+     * Validates the coordinates of a location.
+     *
+     * @param location The location to check.
+     * @return The latitude and longitude, or null if they are missing or out of range.
+     */
+    static double[] coordinatesOf(Location location) {
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        // Also rejects NaN, which marks coordinates the client did not send.
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)) {
+            return null;
+        }
+        return new double[] {latitude, longitude};
+    }
+
+    /**
+     * Builds a GeoJSON point document as expected by a 2dsphere index.
+     *
+     * @param latitude The latitude in degrees.
+     * @param longitude The longitude in degrees.
+     * @return The point document.
+     */
+    static Document toGeoJsonPoint(double latitude, double longitude) {
+        // GeoJSON orders coordinates as longitude, latitude.
+        return new Document("type", "Point").append("coordinates", List.of(longitude, latitude));
+    }
 }
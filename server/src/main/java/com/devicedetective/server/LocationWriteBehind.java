@@ -0,0 +1,308 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Optional write-behind pipeline for location documents. When enabled, the LocationService hands documents to a
+ * bounded queue instead of inserting them on the STOMP inbound thread, and a single background writer flushes them
+ * to MongoDB with unordered insertMany calls. A batch is flushed once it reaches "batch-size" documents or once the
+ * oldest queued document has waited "linger-ms", whichever comes first.
+ *
+ * When the queue is full the configured overflow policy applies: "block" makes the producer wait for space
+ * (backpressure), "drop" discards the new document and counts it. Once stopped, documents are inserted directly on
+ * the calling thread, so nothing enqueued during shutdown is left behind in the queue.
+ */
+@Component
+public class LocationWriteBehind {
+    private static final Logger logger = LoggerFactory.getLogger(LocationWriteBehind.class);
+
+    /**
+     * How long the idle writer waits for a document before re-checking whether it should stop.
+     */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    /**
+     * What to do with a document offered to a full queue.
+     */
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP
+    }
+
+    private final MongoClient mongoClient;
+    private final LocationMetrics metrics;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<Document> queue;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Documents queued or being flushed, counted from before they are queued until their insert has completed.
+     */
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    /**
+     * Held for reading while a document is checked against running and queued, and for writing while running is
+     * cleared, so that stop cannot drain the queue between the check and the put of an enqueue.
+     */
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * Constructs the write-behind pipeline from the "devicedetective.write-behind" settings.
+     *
+     * @param mongoClient The MongoDB client used to flush batches.
+     * @param metrics Hot-path metrics, used to record the flush latency.
+     * @param enabled Whether saves should go through the queue at all.
+     * @param capacity Maximum number of documents waiting to be flushed.
+     * @param batchSize Maximum number of documents per insertMany call.
+     * @param lingerMillis Maximum time a document waits for its batch to fill up.
+     * @param overflowPolicy Policy applied when the queue is full.
+     */
+    public LocationWriteBehind(MongoClient mongoClient, LocationMetrics metrics,
+                               @Value("${devicedetective.write-behind.enabled:false}") boolean enabled,
+                               @Value("${devicedetective.write-behind.capacity:10000}") int capacity,
+                               @Value("${devicedetective.write-behind.batch-size:500}") int batchSize,
+                               @Value("${devicedetective.write-behind.linger-ms:50}") long lingerMillis,
+                               @Value("${devicedetective.write-behind.overflow:block}") String overflowPolicy) {
+        this.mongoClient = mongoClient;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Starts the background writer thread if write-behind is enabled.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::drainLoop, "location-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Location write-behind enabled (batch size {}, linger {} ms, overflow {})",
+                batchSize, lingerMillis, overflowPolicy);
+    }
+
+    /**
+     * Stops accepting new work and flushes everything still queued before the MongoDB client is closed.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        // Whatever the writer did not get to is written on the calling thread, later enqueues insert directly.
+        flushRemaining();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a document for insertion, applying the overflow policy if the queue is full.
+     *
+     * @param document The location document to persist.
+     * @return true if the document was queued, false if it was dropped.
+     */
+    public boolean enqueue(Document document) {
+        runningLock.readLock().lock();
+        try {
+            if (running) {
+                return offer(document);
+            }
+        } finally {
+            runningLock.readLock().unlock();
+        }
+        // Not started or already shutting down, fall back to a direct write.
+        metrics.timeInsert(() -> collection().insertOne(document));
+        written.increment();
+        return true;
+    }
+
+    /**
+     * Queues a document while the writer is running, applying the overflow policy.
+     */
+    private boolean offer(Document document) {
+        backlog.incrementAndGet();
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!queue.offer(document)) {
+                backlog.decrementAndGet();
+                dropped.increment();
+                return false;
+            }
+            return true;
+        }
+        try {
+            // The writer keeps draining until running is cleared, which waits for this put.
+            queue.put(document);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            backlog.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of queued documents plus those of the batch being flushed, 0 once everything enqueued so far
+     * was written or given up on.
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get());
+    }
+
+    public long getMaxFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get());
+    }
+
+    /**
+     * Main loop of the writer thread: waits for the first document of a batch, then keeps collecting until the batch
+     * is full or the linger time has elapsed.
+     */
+    private void drainLoop() {
+        List<Document> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                Document first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Document next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush(batch);
+            batch.clear();
+        }
+        flush(batch);
+    }
+
+    /**
+     * Writes everything still in the queue, in batches, on the calling thread.
+     */
+    private void flushRemaining() {
+        List<Document> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Inserts a batch with a single unordered insertMany and records the flush latency.
+     * A failed batch is logged and counted, it does not stop the writer. If only some documents were rejected, the
+     * others were still inserted and are counted as written.
+     *
+     * @param batch The documents to insert.
+     */
+    private void flush(List<Document> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            collection().insertMany(batch, new InsertManyOptions().ordered(false));
+            written.add(batch.size());
+        } catch (MongoBulkWriteException e) {
+            int inserted = e.getWriteResult().getInsertedCount();
+            written.add(inserted);
+            failed.add(batch.size() - inserted);
+            logger.error("Failed to flush {} of {} locations", batch.size() - inserted, batch.size(), e);
+        } catch (MongoException e) {
+            failed.add(batch.size());
+            logger.error("Failed to flush {} locations", batch.size(), e);
+        }
+        backlog.addAndGet(-batch.size());
+        long elapsed = System.nanoTime() - start;
+        lastFlushNanos.set(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        metrics.recordInsertMany(elapsed);
+    }
+
+    private MongoCollection<Document> collection() {
+        return mongoClient.getDatabase(LocationService.DATABASE_NAME).getCollection(LocationService.COLLECTION_NAME);
+    }
+}
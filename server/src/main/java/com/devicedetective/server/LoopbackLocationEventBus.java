@@ -0,0 +1,86 @@
+package com.devicedetective.server;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+
+/**
+ * LocationEventBus connecting the instances within one JVM that share a channel name. A single instance has no peers,
+ * so this is the default for a standalone server. Several application contexts started in the same JVM, e.g. in
+ * tests, see each other's locations as if they ran on separate nodes.
+ */
+@Component
+@ConditionalOnProperty(name = "devicedetective.bus.type", havingValue = "loopback", matchIfMissing = true)
+public class LoopbackLocationEventBus implements LocationEventBus {
+
+    /**
+     * Members of every channel in this JVM.
+     */
+    private static final Map<String, Set<LoopbackLocationEventBus>> CHANNELS = new ConcurrentHashMap<>();
+
+    private final String channel;
+    private final List<Consumer<List<Document>>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs the bus, it joins the channel once it is started.
+     *
+     * @param channel The name of the channel shared by the instances that should see each other.
+     */
+    public LoopbackLocationEventBus(@Value("${devicedetective.bus.channel:default}") String channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Joins the channel, so that the other members only see this instance once it is fully constructed.
+     */
+    @PostConstruct
+    public void join() {
+        CHANNELS.computeIfAbsent(channel, key -> ConcurrentHashMap.newKeySet()).add(this);
+    }
+
+    /**
+     * Delivers the location to the other members of the channel, on the calling thread.
+     *
+     * @param location The saved location document.
+     */
+    @Override
+    public void publish(Document location) {
+        Set<LoopbackLocationEventBus> members = CHANNELS.get(channel);
+        if (members == null || members.size() < 2) {
+            return;
+        }
+        List<Document> batch = List.of(location);
+        for (LoopbackLocationEventBus member : members) {
+            if (member != this) {
+                member.listeners.forEach(listener -> listener.accept(batch));
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<List<Document>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Leaves the channel when the application context is closed.
+     */
+    @PreDestroy
+    public void close() {
+        CHANNELS.computeIfPresent(channel, (key, members) -> {
+            members.remove(this);
+            return members.isEmpty() ? null : members;
+        });
+    }
+}
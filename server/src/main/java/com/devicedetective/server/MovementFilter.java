@@ -0,0 +1,119 @@
+package com.devicedetective.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Per-device filter that drops redundant location reports before they are saved and broadcast. Phones report on a
+ * fixed timer, so most reports repeat the previous position or differ by GPS jitter only. A report is kept if
+ * <ul>
+ *   <li>it is the first one of the device, or its coordinates are missing,</li>
+ *   <li>it is at least "devicedetective.filter.min-distance-meters" away from the last kept position,</li>
+ *   <li>the last kept report is older than "devicedetective.filter.heartbeat-ms", so a stationary device still shows
+ *       up as alive, or</li>
+ *   <li>the device changed its group.</li>
+ * </ul>
+ * Every other report is suppressed. Since the distance is measured from the last kept position rather than the
+ * previous report, slow drift still produces a point every min-distance meters and the track keeps its shape.
+ */
+@Component
+public class MovementFilter {
+
+    private final boolean enabled;
+    private final double minDistanceMeters;
+    private final long heartbeatMillis;
+
+    /**
+     * Last kept position of each device.
+     */
+    private final Map<String, Kept> lastKept = new ConcurrentHashMap<>();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * Constructs the filter from the "devicedetective.filter" settings.
+     *
+     * @param enabled Whether reports are filtered at all.
+     * @param minDistanceMeters Minimum movement from the last kept position.
+     * @param heartbeatMillis Maximum time between two kept reports of a device.
+     */
+    public MovementFilter(@Value("${devicedetective.filter.enabled:true}") boolean enabled,
+                          @Value("${devicedetective.filter.min-distance-meters:5}") double minDistanceMeters,
+                          @Value("${devicedetective.filter.heartbeat-ms:30000}") long heartbeatMillis) {
+        this.enabled = enabled;
+        this.minDistanceMeters = minDistanceMeters;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Decides whether a report is significant enough to be saved and broadcast.
+     *
+     * @param location The reported location.
+     * @return true to keep the report, false to drop it.
+     */
+    public boolean accept(Location location) {
+        return accept(location, System.currentTimeMillis());
+    }
+
+    /**
+     * Decides whether a report received at the given time is significant enough to be saved and broadcast.
+     *
+     * @param location The reported location.
+     * @param nowMillis The time the report was received.
+     * @return true to keep the report, false to drop it.
+     */
+    boolean accept(Location location, long nowMillis) {
+        double[] coordinates = LocationService.coordinatesOf(location);
+        if (!enabled || location.getClientId() == null || coordinates == null) {
+            accepted.increment();
+            return true;
+        }
+        boolean[] keep = new boolean[1];
+        lastKept.compute(location.getClientId(), (clientId, previous) -> {
+            keep[0] = previous == null
+                    || nowMillis - previous.timeMillis() >= heartbeatMillis
+                    || !Objects.equals(previous.groupId(), location.getGroupId())
+                    || LiveSpatialIndex.distanceMeters(previous.latitude(), previous.longitude(),
+                            coordinates[0], coordinates[1]) >= minDistanceMeters;
+            return keep[0] ? new Kept(coordinates[0], coordinates[1], nowMillis, location.getGroupId()) : previous;
+        });
+        (keep[0] ? accepted : suppressed).increment();
+        return keep[0];
+    }
+
+    /**
+     * Forgets the devices whose last kept report is older than the heartbeat. Their next report is kept anyway, so
+     * this only bounds memory and does not change any decision.
+     */
+    @Scheduled(fixedDelayString = "${devicedetective.filter.heartbeat-ms:30000}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - heartbeatMillis;
+        lastKept.values().removeIf(kept -> kept.timeMillis() < cutoff);
+    }
+
+    public int size() {
+        return lastKept.size();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * Last kept report of a device.
+     */
+    private record Kept(double latitude, double longitude, long timeMillis, String groupId) {
+    }
+}
@@ -0,0 +1,61 @@
+package com.devicedetective.server;
+
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+
+/**
+ * Applies the locations published by other server instances on the LocationEventBus to this instance: the latest
+ * location and live position are updated, the device is registered without a session so it appears in snapshots and
+ * expires with the registry TTL, and the location is scheduled for the next broadcast to this node's own subscribers.
+ */
+@Component
+public class RemoteLocationReceiver {
+
+    private final LocationEventBus eventBus;
+    private final LocationService locationService;
+    private final ClientRegistry clientRegistry;
+    private final LocationBroadcaster locationBroadcaster;
+
+    /**
+     * Constructs the receiver.
+     *
+     * @param eventBus The bus carrying the locations of the other instances.
+     * @param locationService The service holding the in-memory location state.
+     * @param clientRegistry The registry of live clients.
+     * @param locationBroadcaster The broadcaster to local subscribers.
+     */
+    public RemoteLocationReceiver(LocationEventBus eventBus, LocationService locationService,
+                                  ClientRegistry clientRegistry, LocationBroadcaster locationBroadcaster) {
+        this.eventBus = eventBus;
+        this.locationService = locationService;
+        this.clientRegistry = clientRegistry;
+        this.locationBroadcaster = locationBroadcaster;
+    }
+
+    /**
+     * Subscribes to the bus once the receiver is fully constructed.
+     */
+    @PostConstruct
+    public void subscribe() {
+        eventBus.subscribe(this::onRemoteLocations);
+    }
+
+    /**
+     * Applies a batch of locations received from another instance.
+     *
+     * @param locations The location documents as saved by the other instance.
+     */
+    void onRemoteLocations(List<Document> locations) {
+        for (Document location : locations) {
+            if (locationService.applyRemoteLocation(location)) {
+                String clientId = location.getString("clientId");
+                clientRegistry.touch(clientId, null);
+                locationBroadcaster.markDirty(clientId);
+            }
+        }
+    }
+}
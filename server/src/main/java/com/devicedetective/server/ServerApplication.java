@@ -3,6 +3,7 @@ package com.devicedetective.server;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,9 +15,11 @@ import org.slf4j.LoggerFactory;
  *
  * "@SpringBootApplication": Marks this class as a Spring Boot application with autoconfiguration enabled.
  * "@EnableMongoRepositories": Enables the scanning for Spring Data repositories that interface with MongoDB.
+ * "@EnableScheduling": Enables "@Scheduled" methods, such as the periodic location broadcast.
  */
 @SpringBootApplication
 @EnableMongoRepositories
+@EnableScheduling
 public class ServerApplication {
 
 	// Logger for this class, used to log messages. Configured to use the WebSocketController's logger context.
@@ -0,0 +1,308 @@
+package com.devicedetective.server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Interceptor on the client outbound channel that keeps a slow subscriber from building up an unbounded backlog of
+ * location frames. It counts the frames queued for every session and, once a session has
+ * "devicedetective.outbound.max-pending-frames" frames waiting, drops further location frames for it. The clientIds of
+ * a dropped frame are remembered per subscription instead, and once the session has caught up the LocationBroadcaster
+ * sends it the latest location of each of them in one frame. A slow subscriber therefore receives fewer, coalesced
+ * frames with the newest position of every device rather than every intermediate one.
+ *
+ * Location frames are recognized by the CLIENT_IDS_HEADER the LocationBroadcaster sets. The header is not a native
+ * STOMP header and never reaches the client. Other frames are always delivered, a session that falls behind on them
+ * is closed by the send time and buffer limits of the WebSocket transport.
+ *
+ * Between the first dropped frame of a session and the delivery of its resync, the location frames that do get through
+ * are stripped of their LocationChangeLog version. Otherwise such a frame would tell the client it is current as of a
+ * version it has not fully received, and a reconnect with that version would skip the dropped devices.
+ *
+ * The guard only sees the frames queued on the outbound channel. With publish order preserved, as on virtual threads,
+ * the broker holds back all but one frame per session in front of the channel, so WebSocketConfig does not install
+ * the guard then.
+ */
+@Component
+public class SlowConsumerGuard implements ExecutorChannelInterceptor {
+
+    /**
+     * Message header listing the clientIds whose locations a frame carries.
+     */
+    static final String CLIENT_IDS_HEADER = "devicedetectiveClientIds";
+
+    /**
+     * Message header marking a frame that resends dropped locations, as returned by drainCaughtUp.
+     */
+    static final String RESYNC_FRAME_HEADER = "devicedetectiveResync";
+
+    private final int maxPendingFrames;
+
+    /**
+     * Backlog of every session that was sent a frame.
+     */
+    private final Map<String, Backlog> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions with dropped frames that still need to be resynchronized.
+     */
+    private final Set<String> laggingSessions = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder droppedFrames = new LongAdder();
+
+    /**
+     * Constructs the guard.
+     *
+     * @param maxPendingFrames Number of queued frames at which location frames for a session are dropped.
+     */
+    public SlowConsumerGuard(@Value("${devicedetective.outbound.max-pending-frames:64}") int maxPendingFrames) {
+        this.maxPendingFrames = maxPendingFrames;
+    }
+
+    /**
+     * Counts a frame queued for a session, or drops it if it is a location frame and the session is behind.
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        String sessionId = sessionOf(message);
+        if (sessionId == null) {
+            return message;
+        }
+        Backlog backlog = sessions.computeIfAbsent(sessionId, key -> new Backlog());
+        Object clientIds = message.getHeaders().get(CLIENT_IDS_HEADER);
+        if (!(clientIds instanceof Collection<?> ids)) {
+            backlog.pending.incrementAndGet();
+            return message;
+        }
+        if (backlog.pending.get() >= maxPendingFrames && miss(sessionId, backlog, message, ids)) {
+            if (isResync(message)) {
+                backlog.resent();
+            }
+            droppedFrames.increment();
+            return null;
+        }
+        backlog.pending.incrementAndGet();
+        if (backlog.isBehind() && !isResync(message)) {
+            return withoutVersion(message);
+        }
+        return message;
+    }
+
+    /**
+     * Uncounts a frame the channel executor rejected.
+     */
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+        if (!sent || ex != null) {
+            Backlog backlog = release(message);
+            if (backlog != null && isResync(message)) {
+                // Resent on the next catch-up instead.
+                miss(sessionOf(message), backlog, message, (Collection<?>) message.getHeaders().get(CLIENT_IDS_HEADER));
+                backlog.resent();
+            }
+        }
+    }
+
+    /**
+     * Uncounts a frame once it was handed to the WebSocket session.
+     */
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        Backlog backlog = release(message);
+        if (backlog != null && isResync(message)) {
+            backlog.resent();
+        }
+    }
+
+    /**
+     * Takes the dropped clientIds of every session that has caught up with its backlog. Each entry must be sent as one
+     * frame carrying the RESYNC_FRAME_HEADER, even if it has no locations left, since the session only gets its
+     * versions back once all of them were delivered.
+     *
+     * @return One entry per subscription to resend, empty if no session is both behind and caught up.
+     */
+    public List<Resync> drainCaughtUp() {
+        if (laggingSessions.isEmpty()) {
+            return List.of();
+        }
+        List<Resync> resyncs = new ArrayList<>();
+        for (String sessionId : laggingSessions) {
+            Backlog backlog = sessions.get(sessionId);
+            if (backlog == null) {
+                laggingSessions.remove(sessionId);
+                continue;
+            }
+            if (backlog.pending.get() > 0) {
+                continue;
+            }
+            laggingSessions.remove(sessionId);
+            for (Map.Entry<String, Missed> missed : backlog.takeMissed().entrySet()) {
+                resyncs.add(new Resync(sessionId, missed.getKey(), missed.getValue().destination,
+                        missed.getValue().clientIds));
+            }
+        }
+        return resyncs;
+    }
+
+    /**
+     * Forgets the dropped clientIds of a subscription that was cancelled.
+     *
+     * @param event The unsubscribe event published when a client sends an UNSUBSCRIBE frame.
+     */
+    @EventListener
+    public void onUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        Backlog backlog = headers.getSessionId() == null ? null : sessions.get(headers.getSessionId());
+        if (backlog != null && headers.getSubscriptionId() != null) {
+            backlog.forget(headers.getSubscriptionId());
+        }
+    }
+
+    /**
+     * Forgets the backlog of a closed session.
+     *
+     * @param event The disconnect event published when a session ends.
+     */
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        sessions.remove(event.getSessionId());
+        laggingSessions.remove(event.getSessionId());
+    }
+
+    /**
+     * Returns the number of location frames dropped for slow sessions.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public int getLaggingSessionCount() {
+        return laggingSessions.size();
+    }
+
+    /**
+     * Remembers the clientIds of a location frame that is not delivered.
+     *
+     * @return false if the frame cannot be resent because it lacks a subscription or destination.
+     */
+    private boolean miss(String sessionId, Backlog backlog, Message<?> message, Collection<?> clientIds) {
+        String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (subscriptionId == null || destination == null || clientIds == null) {
+            return false;
+        }
+        backlog.miss(subscriptionId, destination, clientIds);
+        laggingSessions.add(sessionId);
+        return true;
+    }
+
+    private Backlog release(Message<?> message) {
+        String sessionId = sessionOf(message);
+        Backlog backlog = sessionId == null ? null : sessions.get(sessionId);
+        if (backlog != null) {
+            backlog.pending.decrementAndGet();
+        }
+        return backlog;
+    }
+
+    private static boolean isResync(Message<?> message) {
+        return Boolean.TRUE.equals(message.getHeaders().get(RESYNC_FRAME_HEADER));
+    }
+
+    private static Message<?> withoutVersion(Message<?> message) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+        if (accessor.getFirstNativeHeader(LocationChangeLog.VERSION_HEADER) == null) {
+            return message;
+        }
+        accessor.removeNativeHeader(LocationChangeLog.VERSION_HEADER);
+        return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+    }
+
+    private static String sessionOf(Message<?> message) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+            return null;
+        }
+        return SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+    }
+
+    /**
+     * Frames queued for a session, the clientIds dropped per subscription and the number of resync frames taken by
+     * drainCaughtUp that were not delivered yet.
+     */
+    private static final class Backlog {
+        private final AtomicInteger pending = new AtomicInteger();
+        private Map<String, Missed> missed = new HashMap<>();
+        private int unsent;
+
+        private synchronized void miss(String subscriptionId, String destination, Collection<?> clientIds) {
+            Set<String> missedIds = missed.computeIfAbsent(subscriptionId, key -> new Missed(destination)).clientIds;
+            for (Object clientId : clientIds) {
+                missedIds.add(clientId.toString());
+            }
+        }
+
+        private synchronized Map<String, Missed> takeMissed() {
+            Map<String, Missed> taken = missed;
+            missed = new HashMap<>();
+            unsent += taken.size();
+            return taken;
+        }
+
+        private synchronized void resent() {
+            unsent--;
+        }
+
+        private synchronized boolean isBehind() {
+            return !missed.isEmpty() || unsent > 0;
+        }
+
+        private synchronized void forget(String subscriptionId) {
+            missed.remove(subscriptionId);
+        }
+    }
+
+    /**
+     * ClientIds dropped for one subscription.
+     */
+    private static final class Missed {
+        private final String destination;
+        private final Set<String> clientIds = new HashSet<>();
+
+        private Missed(String destination) {
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * Locations to resend to a subscription of a session that caught up.
+     *
+     * @param sessionId The session.
+     * @param subscriptionId The subscription the dropped frames were for.
+     * @param destination The destination of the subscription.
+     * @param clientIds The clients whose latest location to send.
+     */
+    public record Resync(String sessionId, String subscriptionId, String destination, Set<String> clientIds) {
+    }
+}
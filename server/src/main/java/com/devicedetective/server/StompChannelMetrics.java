@@ -0,0 +1,191 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * Gauges over the state of the STOMP pipeline, bound by Spring Boot to the application's MeterRegistry:
+ * queue depth and active tasks of the client inbound and outbound channel executors, open sessions, registered
+ * clients, locations waiting for the next broadcast tick, the write-behind queue, the journal, the movement filter
+ * decisions and the registered geofences with their enter and exit events, messages dropped by the inbound rate limits,
+ * location frames dropped for slow subscribers and the trajectory cache hits and misses.
+ *
+ * Kept apart from WebSocketConfig because the channel executors are created from that configuration.
+ */
+@Component
+public class StompChannelMetrics implements MeterBinder {
+
+    private final TaskExecutor inboundExecutor;
+    private final TaskExecutor outboundExecutor;
+    private final ClientRegistry clientRegistry;
+    private final LocationBroadcaster locationBroadcaster;
+    private final LocationWriteBehind writeBehind;
+    private final LocationJournal journal;
+    private final MovementFilter movementFilter;
+    private final GeofenceIndex geofenceIndex;
+    private final GeofenceMonitor geofenceMonitor;
+    private final InboundRateLimiter rateLimiter;
+    private final SlowConsumerGuard slowConsumerGuard;
+    private final TrajectoryService trajectoryService;
+
+    /**
+     * Constructs the binder.
+     *
+     * @param inboundExecutor Executor of the channel carrying messages from clients.
+     * @param outboundExecutor Executor of the channel carrying messages to clients.
+     * @param clientRegistry Registry of live clients and sessions.
+     * @param locationBroadcaster Broadcaster holding the locations of the next tick.
+     * @param writeBehind Write-behind pipeline for location inserts.
+     * @param journal Local write-ahead journal for location inserts.
+     * @param movementFilter Filter dropping redundant location reports.
+     * @param geofenceIndex The registered geofences.
+     * @param geofenceMonitor Monitor sending the geofence events.
+     * @param rateLimiter Rate limits on messages from clients.
+     * @param slowConsumerGuard Backlog limit on location frames to clients.
+     * @param trajectoryService Service caching downsampled tracks.
+     */
+    public StompChannelMetrics(@Qualifier("clientInboundChannelExecutor") TaskExecutor inboundExecutor,
+                               @Qualifier("clientOutboundChannelExecutor") TaskExecutor outboundExecutor,
+                               ClientRegistry clientRegistry, LocationBroadcaster locationBroadcaster,
+                               LocationWriteBehind writeBehind, LocationJournal journal,
+                               MovementFilter movementFilter,
+                               GeofenceIndex geofenceIndex, GeofenceMonitor geofenceMonitor,
+                               InboundRateLimiter rateLimiter, SlowConsumerGuard slowConsumerGuard,
+                               TrajectoryService trajectoryService) {
+        this.inboundExecutor = inboundExecutor;
+        this.outboundExecutor = outboundExecutor;
+        this.clientRegistry = clientRegistry;
+        this.locationBroadcaster = locationBroadcaster;
+        this.writeBehind = writeBehind;
+        this.journal = journal;
+        this.movementFilter = movementFilter;
+        this.geofenceIndex = geofenceIndex;
+        this.geofenceMonitor = geofenceMonitor;
+        this.rateLimiter = rateLimiter;
+        this.slowConsumerGuard = slowConsumerGuard;
+        this.trajectoryService = trajectoryService;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        bindExecutor(registry, "inbound", inboundExecutor);
+        bindExecutor(registry, "outbound", outboundExecutor);
+
+        Gauge.builder("devicedetective.sessions", clientRegistry, ClientRegistry::getSessionCount)
+                .description("Open STOMP sessions")
+                .register(registry);
+        Gauge.builder("devicedetective.clients", clientRegistry, ClientRegistry::size)
+                .description("Clients in the live registry")
+                .register(registry);
+        Gauge.builder("devicedetective.broadcast.pending", locationBroadcaster, LocationBroadcaster::getPendingCount)
+                .description("Clients waiting for the next broadcast tick")
+                .register(registry);
+
+        Gauge.builder("devicedetective.writebehind.queue", writeBehind, LocationWriteBehind::getQueueDepth)
+                .description("Locations waiting to be flushed to MongoDB")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.writebehind.written", writeBehind, LocationWriteBehind::getWritten)
+                .register(registry);
+        FunctionCounter.builder("devicedetective.writebehind.dropped", writeBehind, LocationWriteBehind::getDropped)
+                .register(registry);
+        FunctionCounter.builder("devicedetective.writebehind.failed", writeBehind, LocationWriteBehind::getFailed)
+                .register(registry);
+
+        Gauge.builder("devicedetective.journal.pending", journal, LocationJournal::getPending)
+                .description("Journaled locations waiting to be replayed to MongoDB")
+                .register(registry);
+        Gauge.builder("devicedetective.journal.segments", journal, LocationJournal::getSegmentCount)
+                .description("Journal segment files in use")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.journal.appended", journal, LocationJournal::getAppended)
+                .register(registry);
+        FunctionCounter.builder("devicedetective.journal.replayed", journal, LocationJournal::getReplayed)
+                .register(registry);
+        FunctionCounter.builder("devicedetective.journal.rejected", journal, LocationJournal::getRejected)
+                .description("Locations written directly instead of journaled")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.journal.replay.failures", journal, LocationJournal::getFailedReplays)
+                .register(registry);
+        FunctionCounter.builder("devicedetective.journal.discarded", journal, LocationJournal::getDiscarded)
+                .description("Journaled locations MongoDB rejected for good")
+                .register(registry);
+
+        FunctionCounter.builder("devicedetective.filter.reports", movementFilter, MovementFilter::getAccepted)
+                .description("Location reports by movement filter decision")
+                .tag("result", "accepted")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.filter.reports", movementFilter, MovementFilter::getSuppressed)
+                .description("Location reports by movement filter decision")
+                .tag("result", "suppressed")
+                .register(registry);
+
+        Gauge.builder("devicedetective.geofences", geofenceIndex, GeofenceIndex::size)
+                .description("Registered geofences")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.geofence.events", geofenceMonitor, GeofenceMonitor::getEntered)
+                .description("Devices entering or leaving a geofence")
+                .tag("event", "enter")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.geofence.events", geofenceMonitor, GeofenceMonitor::getExited)
+                .description("Devices entering or leaving a geofence")
+                .tag("event", "exit")
+                .register(registry);
+
+        FunctionCounter.builder("devicedetective.ratelimit.rejected", rateLimiter,
+                        InboundRateLimiter::getRejectedSessionMessages)
+                .description("Messages dropped by the inbound rate limits")
+                .tag("scope", "session")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.ratelimit.rejected", rateLimiter,
+                        InboundRateLimiter::getRejectedClientMessages)
+                .description("Messages dropped by the inbound rate limits")
+                .tag("scope", "client")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.outbound.dropped", slowConsumerGuard,
+                        SlowConsumerGuard::getDroppedFrames)
+                .description("Location frames coalesced for slow subscribers")
+                .register(registry);
+        Gauge.builder("devicedetective.outbound.lagging", slowConsumerGuard, SlowConsumerGuard::getLaggingSessionCount)
+                .description("Sessions waiting to be resynchronized after falling behind")
+                .register(registry);
+
+        FunctionCounter.builder("devicedetective.trajectory.cache", trajectoryService, TrajectoryService::getHits)
+                .description("Trajectory requests by cache outcome")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("devicedetective.trajectory.cache", trajectoryService, TrajectoryService::getMisses)
+                .description("Trajectory requests by cache outcome")
+                .tag("result", "miss")
+                .register(registry);
+    }
+
+    private static void bindExecutor(MeterRegistry registry, String channel, TaskExecutor executor) {
+        if (!(executor instanceof ThreadPoolTaskExecutor pool)) {
+            return;
+        }
+        Gauge.builder("devicedetective.stomp.queue", pool, StompChannelMetrics::queueSize)
+                .description("Tasks waiting in the client channel executor")
+                .tag("channel", channel)
+                .register(registry);
+        Gauge.builder("devicedetective.stomp.active", pool, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Tasks running in the client channel executor")
+                .tag("channel", channel)
+                .register(registry);
+    }
+
+    private static double queueSize(ThreadPoolTaskExecutor pool) {
+        try {
+            return pool.getThreadPoolExecutor().getQueue().size();
+        } catch (IllegalStateException e) {
+            // Not initialized yet, or already shut down.
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoClientSettings;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+
+/**
+ * LocationEventBus connecting server instances over TCP. Every node listens on "devicedetective.bus.port" of
+ * "devicedetective.bus.bind-address" and opens one connection to each node listed in "devicedetective.bus.peers"
+ * (comma separated host:port), so a full mesh is configured by listing every other node on each node. Only locally
+ * saved locations are sent, a node never forwards what it received.
+ *
+ * All nodes share "devicedetective.bus.secret". Before a node reads any frame from a new connection it sends a random
+ * challenge, and the connecting node has to answer with the HMAC-SHA256 of the challenge keyed with the secret.
+ * Connections that do not answer correctly within a second are closed, so only nodes knowing the secret can inject
+ * locations.
+ *
+ * Published locations are queued and sent in batches: a single writer thread collects up to "max-batch" locations or
+ * whatever arrived within "batch-ms", encodes them once and writes the same frame to every peer. A frame is a
+ * big-endian int length followed by the concatenated BSON documents, so the received documents are identical to the
+ * saved ones. When the queue is full, e.g. because a peer is slow, new locations are dropped and counted rather than
+ * blocking ingestion. Peers that cannot be reached are retried on the next batch, at most once per second.
+ */
+@Component
+@ConditionalOnProperty(name = "devicedetective.bus.type", havingValue = "tcp")
+public class TcpLocationEventBus implements LocationEventBus {
+    private static final Logger logger = LoggerFactory.getLogger(TcpLocationEventBus.class);
+
+    private static final Codec<Document> DOCUMENT_CODEC =
+            MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    /**
+     * How long the idle writer waits for a location before re-checking whether it should stop.
+     */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 1000;
+
+    private static final String HANDSHAKE_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_BYTES = 32;
+    private static final int RESPONSE_BYTES = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Largest frame accepted from a peer.
+     */
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final int port;
+    private final String bindAddress;
+    private final byte[] secret;
+    private final List<Peer> peers = new ArrayList<>();
+    private final long batchMillis;
+    private final int maxBatch;
+    private final BlockingQueue<Document> queue;
+    private final List<Consumer<List<Document>>> listeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private Thread writer;
+
+    /**
+     * Constructs the bus from the "devicedetective.bus" settings.
+     *
+     * @param port Port to accept peer connections on.
+     * @param bindAddress Local address to accept peer connections on.
+     * @param peers Comma separated host:port of the peers to send to.
+     * @param secret Secret shared by all nodes, used to authenticate connections.
+     * @param batchMillis Maximum time a location waits for its batch to fill up.
+     * @param maxBatch Maximum number of locations per frame.
+     * @param capacity Maximum number of locations waiting to be sent.
+     */
+    public TcpLocationEventBus(@Value("${devicedetective.bus.port:7070}") int port,
+                               @Value("${devicedetective.bus.bind-address:127.0.0.1}") String bindAddress,
+                               @Value("${devicedetective.bus.peers:}") String peers,
+                               @Value("${devicedetective.bus.secret:}") String secret,
+                               @Value("${devicedetective.bus.batch-ms:20}") long batchMillis,
+                               @Value("${devicedetective.bus.max-batch:1000}") int maxBatch,
+                               @Value("${devicedetective.bus.capacity:100000}") int capacity) {
+        if (secret.isBlank()) {
+            throw new IllegalArgumentException("devicedetective.bus.secret must be set for the tcp bus");
+        }
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.batchMillis = batchMillis;
+        this.maxBatch = maxBatch;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (String peer : peers.split(",")) {
+            String address = peer.trim();
+            if (!address.isEmpty()) {
+                int separator = address.lastIndexOf(':');
+                this.peers.add(new Peer(address.substring(0, separator),
+                        Integer.parseInt(address.substring(separator + 1)), this.secret));
+            }
+        }
+    }
+
+    /**
+     * Starts accepting peer connections and the batching writer.
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 0, InetAddress.getByName(bindAddress));
+        running = true;
+        Thread.ofPlatform().daemon().name("location-bus-accept").start(this::acceptLoop);
+        writer = Thread.ofPlatform().daemon().name("location-bus-writer").start(this::writeLoop);
+        logger.info("Location bus listening on {} with peers {}", serverSocket.getLocalSocketAddress(), peers);
+    }
+
+    /**
+     * Stops the writer and closes all connections. Locations still queued are not sent. A writer still blocked on a
+     * slow peer is unblocked by closing its connection.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close the location bus socket", e);
+        }
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        peers.forEach(Peer::close);
+    }
+
+    @Override
+    public void publish(Document location) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        if (!queue.offer(location)) {
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<List<Document>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the port the bus listens on, which is the bound port if "devicedetective.bus.port" is 0.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Encodes a batch of documents into the body of a frame.
+     *
+     * @param batch The documents to encode.
+     * @return The concatenated BSON documents.
+     */
+    static byte[] encode(List<Document> batch) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        EncoderContext context = EncoderContext.builder().build();
+        for (Document document : batch) {
+            DOCUMENT_CODEC.encode(new BsonBinaryWriter(buffer), document, context);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes the body of a frame.
+     *
+     * @param frame The concatenated BSON documents.
+     * @return The decoded documents.
+     * @throws IllegalArgumentException if the frame does not consist of whole documents.
+     */
+    static List<Document> decode(byte[] frame) {
+        List<Document> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        while (offset < frame.length) {
+            // Every BSON document starts with its own little-endian length.
+            int length = frame.length - offset >= 4 ? buffer.getInt(offset) : -1;
+            if (length < 5 || length > frame.length - offset) {
+                throw new IllegalArgumentException("Malformed location frame at offset " + offset);
+            }
+            batch.add(new RawBsonDocument(frame, offset, length).decode(DOCUMENT_CODEC));
+            offset += length;
+        }
+        return batch;
+    }
+
+    /**
+     * Answers a challenge of the handshake.
+     *
+     * @param secret The shared secret.
+     * @param challenge The random bytes sent by the accepting node.
+     * @return The HMAC-SHA256 of the challenge keyed with the secret.
+     */
+    static byte[] respond(byte[] secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(HANDSHAKE_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, HANDSHAKE_ALGORITHM));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            // Every Java platform is required to support HmacSHA256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Challenges a new inbound connection.
+     *
+     * @return true if the peer answered with the expected response.
+     */
+    private boolean authenticate(Socket socket, DataInputStream in) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        OutputStream out = socket.getOutputStream();
+        out.write(challenge);
+        out.flush();
+        byte[] response = new byte[RESPONSE_BYTES];
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        in.readFully(response);
+        socket.setSoTimeout(0);
+        return MessageDigest.isEqual(response, respond(secret, challenge));
+    }
+
+    /**
+     * Collects batches from the queue and writes each one to every peer.
+     */
+    private void writeLoop() {
+        List<Document> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                Document first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Document next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            byte[] frame = encode(batch);
+            for (Peer peer : peers) {
+                peer.send(frame);
+            }
+            sent.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("location-bus-reader").start(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("Failed to accept a location bus connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads frames from one peer connection and hands the decoded batches to the listeners.
+     */
+    private void readLoop(Socket socket) {
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (!authenticate(socket, in)) {
+                logger.warn("Rejected location bus connection from {}: wrong secret", socket.getRemoteSocketAddress());
+                return;
+            }
+            while (running) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid location frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                List<Document> batch = decode(frame);
+                received.add(batch.size());
+                for (Consumer<List<Document>> listener : listeners) {
+                    listener.accept(batch);
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("Location bus peer {} disconnected", socket.getRemoteSocketAddress());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Closing location bus connection from {}", socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * Outbound connection to one peer. Frames are only sent from the writer thread, while close is called on shutdown
+     * and may race with it, so the connection is swapped under the lock and written to outside of it.
+     */
+    private static final class Peer {
+        private final String host;
+        private final int port;
+        private final byte[] secret;
+
+        /**
+         * The current connection, guarded by this together with out and closed.
+         */
+        private Socket socket;
+        private DataOutputStream out;
+        private boolean closed;
+
+        private long nextAttempt;
+
+        private Peer(String host, int port, byte[] secret) {
+            this.host = host;
+            this.port = port;
+            this.secret = secret;
+        }
+
+        /**
+         * Writes a frame, connecting first if needed. A peer that cannot be reached misses the frame.
+         */
+        private void send(byte[] frame) {
+            DataOutputStream stream;
+            synchronized (this) {
+                stream = out;
+            }
+            if (stream == null && (stream = connect()) == null) {
+                return;
+            }
+            try {
+                stream.writeInt(frame.length);
+                stream.write(frame);
+                stream.flush();
+            } catch (IOException e) {
+                if (disconnect(stream)) {
+                    logger.warn("Lost location bus connection to {}", this, e);
+                }
+            }
+        }
+
+        /**
+         * Connects and answers the handshake.
+         *
+         * @return The stream to write frames to, or null if the peer is not reachable or the bus is closed.
+         */
+        private DataOutputStream connect() {
+            long now = System.currentTimeMillis();
+            if (now < nextAttempt) {
+                return null;
+            }
+            nextAttempt = now + RECONNECT_MILLIS;
+            Socket connection = new Socket();
+            try {
+                connection.setTcpNoDelay(true);
+                connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                InputStream in = connection.getInputStream();
+                byte[] challenge = in.readNBytes(CHALLENGE_BYTES);
+                if (challenge.length < CHALLENGE_BYTES) {
+                    throw new EOFException("Peer closed the connection during the handshake");
+                }
+                DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                stream.write(respond(secret, challenge));
+                stream.flush();
+                synchronized (this) {
+                    if (!closed) {
+                        socket = connection;
+                        out = stream;
+                        return stream;
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Location bus peer {} is not reachable", this, e);
+            }
+            closeQuietly(connection);
+            return null;
+        }
+
+        /**
+         * Drops a failed connection, unless it was already replaced or closed.
+         *
+         * @return true if the stream belonged to the current connection.
+         */
+        private boolean disconnect(DataOutputStream stream) {
+            Socket current;
+            synchronized (this) {
+                if (out != stream) {
+                    return false;
+                }
+                current = socket;
+                socket = null;
+                out = null;
+            }
+            closeQuietly(current);
+            return true;
+        }
+
+        /**
+         * Closes the connection for good, no new connection is made afterwards.
+         */
+        private void close() {
+            Socket current;
+            synchronized (this) {
+                closed = true;
+                current = socket;
+                socket = null;
+                out = null;
+            }
+            if (current != null) {
+                closeQuietly(current);
+            }
+        }
+
+        private void closeQuietly(Socket connection) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the connection to {}", this, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.devicedetective.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keyed token-bucket rate limiter. Every key gets a bucket of "burst" tokens that refills at "permitsPerSecond", and
+ * each permit takes one token, so a key can send short bursts but not exceed the rate over time.
+ *
+ * Buckets are created on first use and dropped by evictIdle once they have refilled completely, since a full bucket
+ * behaves exactly like a new one.
+ */
+public final class TokenBucketLimiter {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a limiter.
+     *
+     * @param permitsPerSecond Sustained rate per key.
+     * @param burst Maximum number of permits a key can take at once, at least 1.
+     */
+    public TokenBucketLimiter(double permitsPerSecond, double burst) {
+        if (!(permitsPerSecond > 0) || !(burst >= 1)) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+    }
+
+    /**
+     * Takes a permit for a key if one is available.
+     *
+     * @param key The key to limit, e.g. a session or client ID.
+     * @return true if the permit was granted, false if the key is over its rate.
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    /**
+     * Takes a permit for a key at the given time if one is available.
+     *
+     * @param key The key to limit.
+     * @param nowNanos The current time from System.nanoTime().
+     * @return true if the permit was granted.
+     */
+    boolean tryAcquire(String key, long nowNanos) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, nowNanos));
+        }
+        synchronized (bucket) {
+            bucket.refill(nowNanos);
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Forgets the bucket of a key, e.g. when its session closed.
+     */
+    public void remove(String key) {
+        buckets.remove(key);
+    }
+
+    /**
+     * Drops the buckets that have refilled completely.
+     *
+     * @param nowNanos The current time from System.nanoTime().
+     */
+    void evictIdle(long nowNanos) {
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                bucket.refill(nowNanos);
+                return bucket.tokens >= burst;
+            }
+        });
+    }
+
+    /**
+     * Drops the buckets that have refilled completely.
+     */
+    public void evictIdle() {
+        evictIdle(System.nanoTime());
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Tokens of one key, guarded by the bucket's monitor.
+     */
+    private final class Bucket {
+        private double tokens;
+        private long updatedNanos;
+
+        private Bucket(double tokens, long updatedNanos) {
+            this.tokens = tokens;
+            this.updatedNanos = updatedNanos;
+        }
+
+        private void refill(long nowNanos) {
+            if (nowNanos > updatedNanos) {
+                tokens = Math.min(burst, tokens + (nowNanos - updatedNanos) * permitsPerNano);
+                updatedNanos = nowNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.devicedetective.server;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Tracks how many STOMP subscriptions exist per destination, based on the subscribe, unsubscribe and disconnect
+ * events published by Spring. The LocationBroadcaster uses it to skip serializing frames for per-device and
+ * per-group topics that nobody is watching, and to find the subscriptions of a single session.
+ */
+@Component
+public class TopicSubscriptionTracker {
+
+    /**
+     * Number of active subscriptions per destination.
+     */
+    private final Map<String, Integer> subscriberCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Destination of every subscription, per session and subscription ID.
+     */
+    private final Map<String, Map<String, String>> sessionSubscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Records a new subscription.
+     *
+     * @param event The subscribe event published when a client sends a SUBSCRIBE frame.
+     */
+    @EventListener
+    public void onSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String destination = headers.getDestination();
+        if (destination == null || headers.getSessionId() == null || headers.getSubscriptionId() == null) {
+            return;
+        }
+        String previous = sessionSubscriptions
+                .computeIfAbsent(headers.getSessionId(), key -> new ConcurrentHashMap<>())
+                .put(headers.getSubscriptionId(), destination);
+        if (previous != null) {
+            decrement(previous);
+        }
+        subscriberCounts.merge(destination, 1, Integer::sum);
+    }
+
+    /**
+     * Removes a subscription.
+     *
+     * @param event The unsubscribe event published when a client sends an UNSUBSCRIBE frame.
+     */
+    @EventListener
+    public void onUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        Map<String, String> subscriptions = sessionSubscriptions.get(headers.getSessionId());
+        if (subscriptions == null || headers.getSubscriptionId() == null) {
+            return;
+        }
+        String destination = subscriptions.remove(headers.getSubscriptionId());
+        if (destination != null) {
+            decrement(destination);
+        }
+    }
+
+    /**
+     * Removes all subscriptions of a closed session.
+     *
+     * @param event The disconnect event published when a session ends.
+     */
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Map<String, String> subscriptions = sessionSubscriptions.remove(event.getSessionId());
+        if (subscriptions != null) {
+            subscriptions.values().forEach(this::decrement);
+        }
+    }
+
+    /**
+     * Checks whether any session is subscribed to a destination.
+     *
+     * @param destination The exact destination, e.g. "/topic/locations/{clientId}".
+     * @return true if at least one subscription exists.
+     */
+    public boolean hasSubscribers(String destination) {
+        return subscriberCounts.containsKey(destination);
+    }
+
+    /**
+     * Returns the subscriptions of a session.
+     *
+     * @param sessionId The STOMP session.
+     * @return The destination per subscription ID, empty if the session has no subscriptions.
+     */
+    public Map<String, String> subscriptionsOf(String sessionId) {
+        Map<String, String> subscriptions = sessionId == null ? null : sessionSubscriptions.get(sessionId);
+        return subscriptions == null ? Map.of() : Collections.unmodifiableMap(subscriptions);
+    }
+
+    public int getDestinationCount() {
+        return subscriberCounts.size();
+    }
+
+    private void decrement(String destination) {
+        subscriberCounts.computeIfPresent(destination, (key, count) -> count <= 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,184 @@
+package com.devicedetective.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Streaming Largest-Triangle-Three-Buckets downsampling of a device track. Points are fed in time order, e.g. straight
+ * from a MongoDB cursor, and at most "target" points are kept, always including the first and the last one.
+ *
+ * The time window is split into target - 2 equal buckets. From every non-empty bucket the point forming the largest
+ * triangle with the previously kept point and the average of the next non-empty bucket is kept, measured on the map
+ * plane, so corners and detours survive while straight runs collapse. Only two buckets are held at a time, so memory
+ * depends on the density of a bucket and not on the length of the track. If the track has no more than target points
+ * it is returned unchanged.
+ */
+final class TrajectoryDownsampler {
+
+    /**
+     * A point of the track.
+     *
+     * @param time The time of the point in epoch milliseconds.
+     * @param latitude The latitude in degrees.
+     * @param longitude The longitude in degrees.
+     */
+    record Point(long time, double latitude, double longitude) {
+    }
+
+    private final long from;
+    private final long span;
+    private final int target;
+    private final int bucketCount;
+    private final List<Point> output = new ArrayList<>();
+
+    /**
+     * Points seen so far while there are no more than target of them, null once downsampling has started.
+     */
+    private List<Point> raw = new ArrayList<>();
+    private long count;
+
+    private Point selected;
+    private Point held;
+    private Bucket pending;
+    private Bucket current;
+
+    /**
+     * Creates a downsampler for a time window.
+     *
+     * @param from Start of the window in epoch milliseconds.
+     * @param to End of the window in epoch milliseconds.
+     * @param target Maximum number of points to keep, at least 3.
+     */
+    TrajectoryDownsampler(long from, long to, int target) {
+        if (target < 3) {
+            throw new IllegalArgumentException("Target must be at least 3 points: " + target);
+        }
+        this.from = from;
+        this.span = Math.max(1, to - from);
+        this.target = target;
+        this.bucketCount = target - 2;
+    }
+
+    /**
+     * Adds the next point of the track. Points must be added in time order.
+     */
+    void add(long time, double latitude, double longitude) {
+        count++;
+        Point point = new Point(time, latitude, longitude);
+        if (raw == null) {
+            feed(point);
+            return;
+        }
+        raw.add(point);
+        if (raw.size() > target) {
+            List<Point> replay = raw;
+            raw = null;
+            replay.forEach(this::feed);
+        }
+    }
+
+    /**
+     * Returns the number of points added.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Completes the track.
+     *
+     * @return The kept points in time order.
+     */
+    List<Point> finish() {
+        if (raw != null) {
+            return raw;
+        }
+        if (pending != null) {
+            select(pending, current.averageLatitude(), current.averageLongitude());
+        }
+        if (current != null) {
+            // The last bucket is measured against the final point, which is always kept.
+            select(current, held.latitude(), held.longitude());
+        }
+        output.add(held);
+        return output;
+    }
+
+    /**
+     * Handles a point once downsampling has started. Each point is held back until the next one arrives, so the
+     * final point of the track never ends up in a bucket.
+     */
+    private void feed(Point point) {
+        if (selected == null) {
+            selected = point;
+            output.add(point);
+            return;
+        }
+        if (held != null) {
+            bucket(held);
+        }
+        held = point;
+    }
+
+    private void bucket(Point point) {
+        int index = (int) Math.min(bucketCount - 1, Math.max(0, (point.time() - from) * bucketCount / span));
+        if (current == null) {
+            current = new Bucket(index);
+        } else if (index > current.index) {
+            if (pending != null) {
+                select(pending, current.averageLatitude(), current.averageLongitude());
+            }
+            pending = current;
+            current = new Bucket(index);
+        }
+        current.add(point);
+    }
+
+    /**
+     * Keeps the point of a bucket that forms the largest triangle with the previously kept point and the next point.
+     */
+    private void select(Bucket bucket, double nextLatitude, double nextLongitude) {
+        Point best = null;
+        double bestArea = -1;
+        for (Point point : bucket.points) {
+            double area = Math.abs(
+                    (selected.longitude() - nextLongitude) * (point.latitude() - selected.latitude())
+                    - (selected.longitude() - point.longitude()) * (nextLatitude - selected.latitude()));
+            if (area > bestArea) {
+                bestArea = area;
+                best = point;
+            }
+        }
+        output.add(best);
+        selected = best;
+    }
+
+    /**
+     * Points of one time bucket with the running sums for their average.
+     */
+    private static final class Bucket {
+        private final int index;
+        private final List<Point> points = new ArrayList<>();
+        private double latitudeSum;
+        private double longitudeSum;
+
+        private Bucket(int index) {
+            this.index = index;
+        }
+
+        private void add(Point point) {
+            points.add(point);
+            latitudeSum += point.latitude();
+            longitudeSum += point.longitude();
+        }
+
+        private double averageLatitude() {
+            return latitudeSum / points.size();
+        }
+
+        private double averageLongitude() {
+            return longitudeSum / points.size();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.devicedetective.server;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Builds downsampled device tracks for drawing on the map. The raw points of the time window are read in one pass
+ * over a MongoDB cursor, ordered by the {clientId: 1, ts: -1} index, and fed into a TrajectoryDownsampler, so neither
+ * the server nor the client ever holds the full history of a device.
+ *
+ * Tracks of windows that ended more than a minute ago are cached, up to "devicedetective.trajectory.cache-size"
+ * entries for "devicedetective.trajectory.cache-ttl-ms". Windows reaching into the last minute are always computed.
+ * A window only counts as settled if, in addition, neither the write-behind queue nor the journal holds locations not
+ * yet written to MongoDB, since while MongoDB is slow or down those may be far older than a minute.
+ */
+@Service
+public class TrajectoryService {
+
+    /**
+     * Largest number of points a track may be downsampled to.
+     */
+    static final int MAX_POINTS = 5000;
+
+    /**
+     * How far back a window must end to be cached.
+     */
+    private static final long SETTLED_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int CURSOR_BATCH_SIZE = 1000;
+
+    private final MongoClient mongoClient;
+    private final LocationWriteBehind writeBehind;
+    private final LocationJournal journal;
+    private final int cacheSize;
+    private final long cacheTtlMillis;
+    private final Map<String, CachedTrack> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs the service from the "devicedetective.trajectory" settings.
+     *
+     * @param mongoClient The MongoDB client used to read the raw points.
+     * @param writeBehind The write-behind pipeline, whose backlog keeps tracks from being cached.
+     * @param journal The local journal, whose unreplayed records keep tracks from being cached.
+     * @param cacheSize Maximum number of cached tracks.
+     * @param cacheTtlMillis Time a cached track is served for.
+     */
+    public TrajectoryService(MongoClient mongoClient, LocationWriteBehind writeBehind, LocationJournal journal,
+                             @Value("${devicedetective.trajectory.cache-size:1000}") int cacheSize,
+                             @Value("${devicedetective.trajectory.cache-ttl-ms:600000}") long cacheTtlMillis) {
+        this.mongoClient = mongoClient;
+        this.writeBehind = writeBehind;
+        this.journal = journal;
+        this.cacheSize = cacheSize;
+        this.cacheTtlMillis = cacheTtlMillis;
+        // Access-ordered, so the least recently used track is evicted first.
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTrack> eldest) {
+                return size() > TrajectoryService.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the downsampled track of a client within a time window.
+     *
+     * @param clientId The client whose track to return.
+     * @param from Start of the window in epoch milliseconds, inclusive.
+     * @param to End of the window in epoch milliseconds, exclusive.
+     * @param points Maximum number of points, between 3 and MAX_POINTS.
+     * @return A document with the clientId, the window, the number of raw points and the kept "points", each with
+     *         the time "t" in epoch milliseconds, "lat" and "lng".
+     */
+    public Document getTrajectory(String clientId, long from, long to, int points) {
+        long now = System.currentTimeMillis();
+        // Checked before reading, a location written meanwhile may or may not be seen by the read.
+        boolean cacheable = to <= now - SETTLED_MILLIS && writeBehind.getBacklog() == 0 && journal.getPending() == 0;
+        String key = clientId + '|' + from + '|' + to + '|' + points;
+        if (cacheable) {
+            CachedTrack cached;
+            synchronized (cache) {
+                cached = cache.get(key);
+            }
+            if (cached != null && cached.expiresAt > now) {
+                hits.increment();
+                return cached.track;
+            }
+        }
+        misses.increment();
+        Document track = loadTrajectory(clientId, from, to, points);
+        if (cacheable) {
+            synchronized (cache) {
+                cache.put(key, new CachedTrack(track, now + cacheTtlMillis));
+            }
+        }
+        return track;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private Document loadTrajectory(String clientId, long from, long to, int points) {
+        MongoCollection<Document> collection = mongoClient.getDatabase(LocationService.DATABASE_NAME)
+                .getCollection(LocationService.COLLECTION_NAME);
+        TrajectoryDownsampler downsampler = new TrajectoryDownsampler(from, to, points);
+        try (MongoCursor<Document> cursor = collection
+                .find(Filters.and(
+                        Filters.eq("clientId", clientId),
+                        Filters.gte(LocationService.TIMESTAMP_FIELD, new Date(from)),
+                        Filters.lt(LocationService.TIMESTAMP_FIELD, new Date(to))))
+                .sort(Sorts.ascending(LocationService.TIMESTAMP_FIELD))
+                .projection(Projections.fields(
+                        Projections.include(LocationService.TIMESTAMP_FIELD, "latitude", "longitude"),
+                        Projections.excludeId()))
+                .batchSize(CURSOR_BATCH_SIZE)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                Date time = document.getDate(LocationService.TIMESTAMP_FIELD);
+                double latitude = toDegrees(document.get("latitude"));
+                double longitude = toDegrees(document.get("longitude"));
+                if (time != null && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+                    downsampler.add(time.getTime(), latitude, longitude);
+                }
+            }
+        }
+
+        List<Document> kept = new ArrayList<>();
+        for (TrajectoryDownsampler.Point point : downsampler.finish()) {
+            kept.add(new Document("t", point.time())
+                    .append("lat", point.latitude())
+                    .append("lng", point.longitude()));
+        }
+        return new Document("clientId", clientId)
+                .append("from", from)
+                .append("to", to)
+                .append("sourcePoints", downsampler.getCount())
+                .append("points", kept);
+    }
+
+    /**
+     * Reads a stored coordinate. Documents written before coordinates became numeric hold them as strings.
+     *
+     * @return The coordinate in degrees, or NaN if it is missing or not a number.
+     */
+    private static double toDegrees(Object value) {
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof String text) {
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * A computed track and the time it stops being served from the cache.
+     */
+    private record CachedTrack(Document track, long expiresAt) {
+    }
+}
@@ -1,19 +1,90 @@
 package com.devicedetective.server;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import java.util.List;
 
 
 /**
  * Configuration class for setting up WebSocket communication using Spring.
  * Enables WebSocket message handling, backed by a message broker.
+ *
+ * With "devicedetective.threads.virtual" enabled, the client inbound and outbound channels run their tasks on
+ * virtual threads, so handlers blocked on MongoDB I/O no longer occupy a small pool of platform threads. Messages of
+ * each session are then still handled and published in the order they were received.
+ *
+ * The handling time of inbound messages is recorded per destination by a HandlerTimingInterceptor.
+ *
+ * Abusive and slow clients are contained on both channels: the InboundRateLimiter drops messages of sessions over
+ * their rate, the SlowConsumerGuard coalesces location frames for sessions that fall behind, and a session whose
+ * send buffer exceeds "devicedetective.websocket.send-buffer-bytes" or whose send blocks for longer than
+ * "devicedetective.websocket.send-time-ms" is closed. The SlowConsumerGuard is not used on virtual threads: to keep
+ * publish order, frames then wait per session in front of the outbound channel, where the guard cannot see them.
  */
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketConfig.class);
+
+    /**
+     * Whether the STOMP channels run on virtual threads.
+     */
+    @Value("${devicedetective.threads.virtual:false}")
+    private boolean virtualThreads;
+
+    /**
+     * Upper bound on concurrently running channel tasks when running on virtual threads.
+     */
+    @Value("${devicedetective.threads.virtual-max-concurrency:10000}")
+    private int virtualMaxConcurrency;
+
+    /**
+     * Hot-path metrics, used to time the inbound message handlers.
+     */
+    @Autowired
+    private LocationMetrics locationMetrics;
+
+    /**
+     * Per-session rate limit on messages from clients.
+     */
+    @Autowired
+    private InboundRateLimiter inboundRateLimiter;
+
+    /**
+     * Backlog limit on location frames to clients.
+     */
+    @Autowired
+    private SlowConsumerGuard slowConsumerGuard;
+
+    /**
+     * Maximum size of an inbound STOMP message.
+     */
+    @Value("${devicedetective.websocket.message-size-bytes:65536}")
+    private int messageSizeBytes;
+
+    /**
+     * Maximum amount of outbound data buffered for a session that is still busy sending.
+     */
+    @Value("${devicedetective.websocket.send-buffer-bytes:524288}")
+    private int sendBufferBytes;
+
+    /**
+     * Maximum time a single send to a session may take.
+     */
+    @Value("${devicedetective.websocket.send-time-ms:10000}")
+    private int sendTimeMillis;
 
     /**
      * Register WebSocket endpoints that the clients will use to connect to the server.
@@ -27,6 +98,11 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
+        // Plain WebSocket endpoint without SockJS, which is needed to receive binary location frames.
+        registry.addEndpoint("/ws-native")
+                .setAllowedOriginPatterns("*");
+        // Channel tasks may run on many threads at once, keep the messages of each session in order.
+        registry.setPreserveReceiveOrder(virtualThreads);
     }
 
     /**
@@ -41,7 +117,82 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         registry.enableSimpleBroker("/topic");
         // Designate the "/app" prefix for messages bound for methods annotated with @MessageMapping.
         registry.setApplicationDestinationPrefixes("/app");
+        registry.setPreservePublishOrder(virtualThreads);
+    }
+
+    /**
+     * Limit the size of inbound messages and the outbound buffer and send time of every session. A session exceeding
+     * the outbound limits is closed rather than holding memory and a sending thread.
+     *
+     * @param registration the WebSocket transport registration
+     */
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setMessageSizeLimit(messageSizeBytes)
+                .setSendBufferSizeLimit(sendBufferBytes)
+                .setSendTimeLimit(sendTimeMillis);
+    }
+
+    /**
+     * Register the compact binary location converter ahead of the default converters.
+     * It only applies to messages whose content type asks for it, so JSON remains the fallback.
+     *
+     * @param messageConverters the list of custom converters
+     * @return true to keep the default converters as well
+     */
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        messageConverters.add(new LocationBinaryMessageConverter());
+        return true;
+    }
+
+    /**
+     * Rate limit and time the handling of messages from clients, and run the tasks of their channel on virtual threads
+     * if enabled.
+     *
+     * @param registration the inbound channel registration
+     */
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(inboundRateLimiter, new HandlerTimingInterceptor(locationMetrics));
+        if (virtualThreads) {
+            registration.taskExecutor(virtualThreadExecutor("stomp-inbound-"));
+        }
     }
 
+    /**
+     * Guard the backlog of location frames to clients, or run the tasks of their channel on virtual threads if
+     * enabled.
+     *
+     * @param registration the outbound channel registration
+     */
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        if (virtualThreads) {
+            // With publish order preserved the broker hands a session its next frame only once the previous one was
+            // sent, so the guard would never see more than one pending frame and never coalesce.
+            logger.warn("Slow consumer guard disabled with devicedetective.threads.virtual, slow sessions are only "
+                    + "closed by the WebSocket send limits");
+            registration.taskExecutor(virtualThreadExecutor("stomp-outbound-"));
+        } else {
+            registration.interceptors(slowConsumerGuard);
+        }
+    }
 
-}
\ No newline at end of file
+    /**
+     * Creates an executor that starts a virtual thread per task, up to virtualMaxConcurrency at a time.
+     * Idle threads are not kept around since virtual threads are cheap to create.
+     *
+     * @param namePrefix the prefix of the thread names
+     * @return the executor, initialized by Spring as part of the channel executor bean
+     */
+    private ThreadPoolTaskExecutor virtualThreadExecutor(String namePrefix) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadFactory(Thread.ofVirtual().name(namePrefix, 0).factory());
+        executor.setCorePoolSize(virtualMaxConcurrency);
+        executor.setMaxPoolSize(virtualMaxConcurrency);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setKeepAliveSeconds(1);
+        return executor;
+    }
+}
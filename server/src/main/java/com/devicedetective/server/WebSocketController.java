@@ -1,13 +1,15 @@
 package com.devicedetective.server;
 
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.ArrayList;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -26,83 +28,154 @@ public class WebSocketController {
     /**
      * Handles the persistence of location data to MongoDB.
      */
-    @Autowired
     private final LocationService locationService;
 
     /**
-     * Handles sending messages over WebSocket channels.
+     * Batches location updates into one frame per broadcast tick.
      */
-    @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private final LocationBroadcaster locationBroadcaster;
 
     /**
-     * Caches a list of client IDs to manage the active session and update broadcasting.
+     * Numbers location changes, so reconnecting subscribers are only sent what changed.
      */
-    private final ArrayList<String> cachedClientIds;
+    private final LocationChangeLog changeLog;
 
     /**
-     * Constructs the WebSocketController with a dependency on LocationService.
-     * Initializes the list of cached client IDs to track active participants.
+     * Tracks the clients that are currently reporting, bound to their STOMP sessions.
+     */
+    private final ClientRegistry clientRegistry;
+
+    /**
+     * Drops reports that did not move far enough to be worth saving and broadcasting.
+     */
+    private final MovementFilter movementFilter;
+
+    /**
+     * Sends geofence enter and exit events for every received location.
+     */
+    private final GeofenceMonitor geofenceMonitor;
+
+    /**
+     * Limits the rate at which each clientId may report.
+     */
+    private final InboundRateLimiter rateLimiter;
+
+    /**
+     * Log one in this many received locations, 0 disables the per-message log line.
+     * Handler rates and latencies are available from LocationMetrics instead.
+     */
+    @Value("${devicedetective.log.sample-every:0}")
+    private long logSampleEvery;
+
+    /**
+     * Number of locations received on "/sendLocation", used for log sampling.
+     */
+    private final AtomicLong receivedCount = new AtomicLong();
+
+    /**
+     * Constructs the WebSocketController with a dependency on LocationService and the ClientRegistry
+     * used to track active participants, and the components every received location passes through.
      *
      * @param locationService The service used for location data management and persistence.
+     * @param clientRegistry The registry of live clients.
+     * @param locationBroadcaster The broadcaster batching updates into one frame per tick.
+     * @param changeLog The log numbering location changes for reconnecting subscribers.
+     * @param movementFilter The filter dropping reports that did not move far enough.
+     * @param geofenceMonitor The monitor sending geofence enter and exit events.
+     * @param rateLimiter The limiter of reports per clientId.
      */
-    public WebSocketController(LocationService locationService) {
+    public WebSocketController(LocationService locationService, ClientRegistry clientRegistry,
+                               LocationBroadcaster locationBroadcaster, LocationChangeLog changeLog,
+                               MovementFilter movementFilter, GeofenceMonitor geofenceMonitor,
+                               InboundRateLimiter rateLimiter) {
         this.locationService = locationService;
-        this.cachedClientIds = new ArrayList<String>();
+        this.clientRegistry = clientRegistry;
+        this.locationBroadcaster = locationBroadcaster;
+        this.changeLog = changeLog;
+        this.movementFilter = movementFilter;
+        this.geofenceMonitor = geofenceMonitor;
+        this.rateLimiter = rateLimiter;
     }
 
     /**
-     * Receives location data from a client via WebSocket, logs the latitude and longitude, caches the client ID,
-     * saves the location to the database, and broadcasts this location to all connected clients subscribed to "/topic/locations".
+     * Receives location data from a client via WebSocket, logs a sample of the latitudes, registers the client ID and
+     * checks the location against the registered geofences. Reports over the client's rate limit are dropped first.
+     * Unless the MovementFilter finds it redundant, the location is saved to the database and scheduled for the next
+     * broadcast to all connected clients subscribed to "/topic/locations".
      * This method is bound to the WebSocket endpoint "/sendLocation".
      *
      * @param location The location object received from a client, containing latitude, longitude, and client ID.
+     * @param sessionId The STOMP session the location arrived on.
      */
     @MessageMapping("/sendLocation")
-    public void receiveLocation(Location location) {
-        logger.info("Received loc: {}", location.getLatitude());
-        this.cacheClient(location.getClientId());
+    public void receiveLocation(Location location,
+                                @Header(name = SimpMessageHeaderAccessor.SESSION_ID_HEADER, required = false) String sessionId) {
+        if (logSampleEvery > 0 && receivedCount.incrementAndGet() % logSampleEvery == 0) {
+            logger.info("Received loc: {}", location.getLatitude());
+        }
+        if (!rateLimiter.allowClient(location.getClientId())) {
+            return;
+        }
+        clientRegistry.touch(location.getClientId(), sessionId);
+        geofenceMonitor.check(location);
+        if (!movementFilter.accept(location)) {
+            return;
+        }
         locationService.saveLocation(location);
-        messagingTemplate.convertAndSend("/topic/locations", location);
+        locationBroadcaster.markDirty(location.getClientId());
     }
 
     /**
-     * Synchronizes and updates location data among all clients. This method fetches the latest location
-     * for each client ID cached, persists any new location data received, and broadcasts the most recent location data
-     * to all subscribed clients.
+     * Synchronizes and updates location data among all clients. This method checks the geofences, persists the new
+     * location data received and schedules it for the next broadcast tick. Subscribers receive the latest location of
+     * every client that changed since the previous tick as one batched frame, so the cost no longer grows with the
+     * number of cached clients per message.
      * This method is bound to the WebSocket endpoint "/syncLocations".
      *
      * @param location Location object representing a recent update that needs to be synchronized.
+     * @param sessionId The STOMP session the location arrived on.
      */
     @MessageMapping("/syncLocations")
-    public void handleLocationUpdates(Location location) {
-        // Cache client in case client timed out.
-        this.cacheClient(location.getClientId());
+    public void handleLocationUpdates(Location location,
+                                      @Header(name = SimpMessageHeaderAccessor.SESSION_ID_HEADER, required = false) String sessionId) {
+        // Reports of a client over its rate are dropped before they cost anything.
+        if (!rateLimiter.allowClient(location.getClientId())) {
+            return;
+        }
+        // Register client again in case it timed out.
+        clientRegistry.touch(location.getClientId(), sessionId);
+        // Fences are checked before filtering, so that small moves across a fence border are not missed.
+        geofenceMonitor.check(location);
+        // Redundant stationary reports are neither saved nor broadcast.
+        if (!movementFilter.accept(location)) {
+            return;
+        }
         // Save client location to MongoDB.
         locationService.saveLocation(location);
-
-        // Using SiMP, send the location payload individually per client instead of as a list.
-        for(String cId : cachedClientIds) {
-            messagingTemplate.convertAndSend(
-                    "/topic/locations",
-                    locationService.findLocationByClientId(cId)
-            );
-        }
+        locationBroadcaster.markDirty(location.getClientId());
     }
 
     /**
-     * Registers a new client and immediately sends the latest location data available for each cached client ID.
+     * Registers a new client and sends the registering session the locations it is missing, on its
+     * "/topic/locations" subscription only. A session that reconnects sends the "location-version" header of the last
+     * frame it received and gets one frame with the clients that changed since then. Without a version, or with one
+     * too old or issued by another server instance, it gets the latest location of every live client instead.
      * This method is bound to the WebSocket endpoint "/registerClient".
+     *
+     * @param version The version token of the last frame the session received, if any.
+     * @param sessionId The STOMP session that registered.
      */
     @MessageMapping("/registerClient")
-    public void registerNewClient() {
-        // Using SiMP, send the location payload individually per client instead of as a list.
-        for(String cId : cachedClientIds) {
-            messagingTemplate.convertAndSend(
-                    "/topic/locations",
-                    locationService.findLocationByClientId(cId)
-            );
+    public void registerNewClient(@Header(name = LocationChangeLog.VERSION_HEADER, required = false) String version,
+                                  @Header(name = SimpMessageHeaderAccessor.SESSION_ID_HEADER, required = false) String sessionId) {
+        LocationChangeLog.Changes changes = changeLog.changesSince(version);
+        if (changes != null) {
+            locationBroadcaster.sendToSession(sessionId, changes.clientIds(), changes.version(), false);
+            return;
         }
+        // Read before the clients, so the snapshot is at least as new as its version.
+        long current = changeLog.current();
+        locationBroadcaster.sendToSession(sessionId, clientRegistry.clientIds(), current, true);
     }
 
     /**
@@ -115,16 +188,4 @@ public class WebSocketController {
     public void receiveMessage(String message) {
         logger.info("Received message: {}", message);
     }
-
-    /**
-     * Caches a client ID if it has not been previously cached. This method ensures that all active clients are tracked
-     * for sending updates and avoids duplication in the list of cached IDs.
-     *
-     * @param clientId The client ID to cache if not already in the list.
-     */
-    private void cacheClient(String clientId) {
-        if(!cachedClientIds.contains(clientId)){
-            cachedClientIds.add(clientId);
-        }
-    }
 }
\ No newline at end of file
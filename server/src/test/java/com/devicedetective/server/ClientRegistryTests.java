@@ -0,0 +1,51 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClientRegistryTests {
+
+	@Test
+	void touchRegistersOnce() {
+		ClientRegistry registry = new ClientRegistry(new LiveSpatialIndex(0.01), 60_000);
+
+		assertThat(registry.touch("a", "s1")).isTrue();
+		assertThat(registry.touch("a", "s1")).isFalse();
+		assertThat(registry.clientIds()).containsExactly("a");
+	}
+
+	@Test
+	void disconnectRemovesOnlyClientsStillBoundToSession() {
+		LiveSpatialIndex index = new LiveSpatialIndex(0.01);
+		ClientRegistry registry = new ClientRegistry(index, 60_000);
+		registry.touch("stays", "s1");
+		registry.touch("moved", "s1");
+		registry.touch("moved", "s2");
+		index.update("stays", 10.0, 10.0);
+
+		registry.onDisconnect(disconnect("s1"));
+
+		assertThat(registry.clientIds()).containsExactly("moved");
+		assertThat(index.size()).isZero();
+	}
+
+	@Test
+	void evictsClientsPastTtl() {
+		ClientRegistry registry = new ClientRegistry(new LiveSpatialIndex(0.01), -1);
+		registry.touch("a", null);
+
+		registry.evictIdle();
+
+		assertThat(registry.size()).isZero();
+	}
+
+	private static SessionDisconnectEvent disconnect(String sessionId) {
+		return new SessionDisconnectEvent(new Object(), MessageBuilder.withPayload(new byte[0]).build(),
+				sessionId, CloseStatus.NORMAL);
+	}
+
+}
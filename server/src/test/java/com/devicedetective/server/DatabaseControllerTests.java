@@ -0,0 +1,176 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DatabaseControllerTests {
+
+	private static final long T0 = 1_700_000_000_000L;
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final List<Document> stored = mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	private final DatabaseController controller = controller();
+
+	@Test
+	void pagesInTimeOrderWithoutGapsOrDuplicates() throws IOException {
+		// Imported locations get an "_id" newer than their "ts", and two locations share a timestamp.
+		ObjectId older = new ObjectId(new Date(T0 + 10_000));
+		ObjectId newer = new ObjectId(new Date(T0 + 20_000));
+		store(newer, "a", T0 + 2_000);
+		store(older, "a", T0 + 3_000);
+		store(new ObjectId(new Date(T0 + 30_000)), "a", T0 + 2_000);
+		store(new ObjectId(new Date(T0 + 5_000)), "b", T0 + 2_500);
+		store(new ObjectId(new Date(T0 + 1_000)), "a", T0 + 1_000);
+		store(new ObjectId(new Date(T0 + 40_000)), "a", T0 + 4_000);
+
+		List<Document> received = new ArrayList<>();
+		String after = null;
+		List<Document> page;
+		do {
+			page = ndjson(stream("a", after, null, null, null, 2, "ndjson"));
+			assertThat(page).hasSizeLessThanOrEqualTo(2);
+			received.addAll(page);
+			if (!page.isEmpty()) {
+				Document last = page.get(page.size() - 1);
+				after = last.getDate(LocationService.TIMESTAMP_FIELD).getTime() + ":" + last.getObjectId("_id").toHexString();
+			}
+		} while (!page.isEmpty());
+
+		assertThat(received).extracting(document -> document.getDate(LocationService.TIMESTAMP_FIELD).getTime())
+				.containsExactly(T0 + 1_000, T0 + 2_000, T0 + 2_000, T0 + 3_000, T0 + 4_000);
+		assertThat(received).extracting(document -> document.getObjectId("_id")).doesNotHaveDuplicates()
+				.containsSubsequence(newer, older);
+	}
+
+	@Test
+	void streamsOnlyTheRequestedTimeRange() throws IOException {
+		for (int i = 0; i < 5; i++) {
+			store(new ObjectId(), "a", T0 + i * 1_000L);
+		}
+
+		// "from" is inclusive and "to" exclusive.
+		List<Document> received = ndjson(stream("a", null, T0 + 1_000, T0 + 3_000, null, 100, "ndjson"));
+
+		assertThat(received).extracting(document -> document.getDate(LocationService.TIMESTAMP_FIELD).getTime())
+				.containsExactly(T0 + 1_000, T0 + 2_000);
+	}
+
+	@Test
+	void projectsFieldsButKeepsTheCursor() throws IOException {
+		store(new ObjectId(), "a", T0);
+
+		List<Document> received = ndjson(stream("a", null, null, null, List.of("latitude"), 100, "ndjson"));
+
+		assertThat(received).singleElement().satisfies(document -> assertThat(document.keySet())
+				.containsExactlyInAnyOrder("_id", LocationService.TIMESTAMP_FIELD, "latitude"));
+	}
+
+	@Test
+	void capsTheLimit() throws IOException {
+		for (int i = 0; i <= DatabaseController.MAX_STREAM_LIMIT; i++) {
+			store(new ObjectId(), "a", T0 + i);
+		}
+
+		assertThat(ndjson(stream("a", null, null, null, null, Integer.MAX_VALUE, "ndjson")))
+				.hasSize(DatabaseController.MAX_STREAM_LIMIT);
+		assertThat(ndjson(stream("a", null, null, null, null, 0, "ndjson"))).hasSize(1);
+	}
+
+	@Test
+	void writesNdjsonOrJsonArray() throws IOException {
+		store(new ObjectId(), "a", T0);
+		store(new ObjectId(), "a", T0 + 1_000);
+
+		ResponseEntity<StreamingResponseBody> lines = controller.streamDataByClientId("a", null, null, null, null,
+				100, "ndjson");
+		assertThat(lines.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_NDJSON);
+		assertThat(ndjson(write(lines))).hasSize(2);
+
+		ResponseEntity<StreamingResponseBody> array = controller.streamDataByClientId("a", null, null, null, null,
+				100, "json");
+		assertThat(array.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_JSON);
+		String json = write(array);
+		assertThat(json).startsWith("[").endsWith("]");
+		assertThat(Document.parse("{\"items\": " + json + "}").getList("items", Document.class)).hasSize(2);
+	}
+
+	@Test
+	void rejectsMalformedCursor() {
+		for (String after : List.of("65a1b2c3d4e5f60718293a4b", "x:65a1b2c3d4e5f60718293a4b", "1700000000000:x")) {
+			assertThat(controller.streamDataByClientId("a", after, null, null, null, 100, "ndjson").getStatusCode())
+					.isEqualTo(HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	@Test
+	void importsWhatItExports() throws IOException {
+		for (int i = 0; i < 5; i++) {
+			store(new ObjectId(), i % 2 == 0 ? "a" : "b", T0 + i * 1_000L);
+		}
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		controller.exportData(null, null, null).getBody().writeTo(export);
+
+		InMemoryMongo target = new InMemoryMongo();
+		DatabaseController importer = controller(target);
+		ResponseEntity<Document> report = importer.importData(new ByteArrayInputStream(export.toByteArray()), null,
+				"application/gzip");
+
+		assertThat(report.getBody().get("inserted")).isEqualTo(5L);
+		assertThat(report.getBody().get("failed")).isEqualTo(0L);
+		assertThat(target.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME))
+				.containsExactlyElementsOf(stored);
+	}
+
+	private void store(ObjectId id, String clientId, long ts) {
+		stored.add(new Document("_id", id)
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(ts))
+				.append("latitude", 1.0)
+				.append("longitude", 2.0)
+				.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(1.0, 2.0)));
+	}
+
+	private String stream(String clientId, String after, Long from, Long to, List<String> fields, int limit,
+						  String format) throws IOException {
+		return write(controller.streamDataByClientId(clientId, after, from, to, fields, limit, format));
+	}
+
+	private static String write(ResponseEntity<StreamingResponseBody> response) throws IOException {
+		assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		response.getBody().writeTo(output);
+		return output.toString(StandardCharsets.UTF_8);
+	}
+
+	private static List<Document> ndjson(String body) {
+		return body.lines().map(Document::parse).toList();
+	}
+
+	private DatabaseController controller() {
+		return controller(mongo);
+	}
+
+	private static DatabaseController controller(InMemoryMongo database) {
+		DatabaseController databaseController = new DatabaseController(null);
+		ReflectionTestUtils.setField(databaseController, "mongoClient", database.client());
+		ReflectionTestUtils.setField(databaseController, "importService",
+				new LocationImportService(database.client(), 2));
+		return databaseController;
+	}
+}
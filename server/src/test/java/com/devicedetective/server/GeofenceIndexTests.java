@@ -0,0 +1,82 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GeofenceIndexTests {
+
+	@Test
+	void reportsEnterAndExitOfCircle() {
+		GeofenceIndex index = new GeofenceIndex(0.05);
+		index.register(Geofence.circle("home", null, 40.2, -77.2, 100));
+
+		assertThat(index.evaluate("device", null, 40.3, -77.2)).isEmpty();
+		assertThat(index.evaluate("device", null, 40.2005, -77.2))
+				.containsExactly(new GeofenceIndex.Transition(index.get("home"), true));
+		// Moving within the fence is not an event.
+		assertThat(index.evaluate("device", null, 40.2, -77.2)).isEmpty();
+		assertThat(index.evaluate("device", null, 40.21, -77.2))
+				.containsExactly(new GeofenceIndex.Transition(index.get("home"), false));
+		assertThat(index.trackedDevices()).isEmpty();
+	}
+
+	@Test
+	void testsPolygonExactlyRatherThanByBoundingBox() {
+		GeofenceIndex index = new GeofenceIndex(0.05);
+		// Triangle with its right angle in the south-west corner.
+		index.register(Geofence.polygon("park", null, new double[] {40.0, 40.1, 40.0}, new double[] {-77.0, -77.0, -76.9}));
+
+		assertThat(index.evaluate("device", null, 40.09, -76.91)).isEmpty();
+		assertThat(index.evaluate("device", null, 40.01, -76.99)).hasSize(1);
+	}
+
+	@Test
+	void onlyAppliesFencesOfTheDeviceGroup() {
+		GeofenceIndex index = new GeofenceIndex(0.05);
+		index.register(Geofence.circle("office", "acme", 40.2, -77.2, 100));
+
+		assertThat(index.evaluate("other", "globex", 40.2, -77.2)).isEmpty();
+		assertThat(index.evaluate("device", "acme", 40.2, -77.2)).hasSize(1);
+	}
+
+	@Test
+	void findsFencesLargerThanTheGrid() {
+		GeofenceIndex index = new GeofenceIndex(0.001);
+		index.register(Geofence.circle("state", null, 40.2, -77.2, 100_000));
+
+		assertThat(index.evaluate("device", null, 40.8, -77.2)).hasSize(1);
+	}
+
+	@Test
+	void findsCircleAcrossTheAntimeridian() {
+		GeofenceIndex index = new GeofenceIndex(0.05);
+		index.register(Geofence.circle("dateline", null, 0, 179.999, 1_000));
+
+		assertThat(index.evaluate("device", null, 0, -179.999)).hasSize(1);
+	}
+
+	@Test
+	void findsCircleOverThePoleOnTheFarSide() {
+		GeofenceIndex index = new GeofenceIndex(1.0);
+		index.register(Geofence.circle("arctic", null, 89, 0, 200_000));
+
+		// About 170 km away across the pole.
+		assertThat(index.evaluate("device", null, 89.5, 180)).hasSize(1);
+	}
+
+	@Test
+	void removedFenceDoesNotReportExit() {
+		GeofenceIndex index = new GeofenceIndex(0.05);
+		index.register(Geofence.circle("home", null, 40.2, -77.2, 100));
+		index.evaluate("device", null, 40.2, -77.2);
+
+		index.remove("home");
+
+		List<GeofenceIndex.Transition> transitions = index.evaluate("device", null, 40.3, -77.2);
+		assertThat(transitions).isEmpty();
+		assertThat(index.size()).isZero();
+	}
+}
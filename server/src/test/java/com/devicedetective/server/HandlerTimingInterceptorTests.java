@@ -0,0 +1,59 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.annotation.support.SimpAnnotationMethodMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HandlerTimingInterceptorTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final HandlerTimingInterceptor interceptor = new HandlerTimingInterceptor(new LocationMetrics(registry));
+	private final ExecutorSubscribableChannel channel = new ExecutorSubscribableChannel();
+	private final SimpAnnotationMethodMessageHandler annotationHandler = new SimpAnnotationMethodMessageHandler(
+			channel, channel, new SimpMessagingTemplate(channel));
+
+	@Test
+	void timesMessagesToApplicationHandlers() {
+		handle(message(SimpMessageType.MESSAGE, "/app/sendLocation"), annotationHandler);
+
+		assertThat(registry.get("devicedetective.stomp.handler").tag("destination", "/app/sendLocation").timer()
+				.count()).isEqualTo(1);
+	}
+
+	@Test
+	void ignoresSubscriptionsToApplicationHandlers() {
+		handle(message(SimpMessageType.SUBSCRIBE, "/app/device/a"), annotationHandler);
+
+		assertThat(registry.find("devicedetective.stomp.handler").timers()).isEmpty();
+	}
+
+	@Test
+	void ignoresBrokerHandlers() {
+		MessageHandler broker = message -> {
+		};
+		handle(message(SimpMessageType.MESSAGE, "/app/sendLocation"), broker);
+
+		assertThat(registry.find("devicedetective.stomp.handler").timers()).isEmpty();
+	}
+
+	private void handle(Message<?> message, MessageHandler handler) {
+		Message<?> intercepted = interceptor.beforeHandle(message, channel, handler);
+		interceptor.afterMessageHandled(intercepted, channel, handler, null);
+	}
+
+	private static Message<byte[]> message(SimpMessageType type, String destination) {
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(type);
+		headers.setSessionId("s1");
+		headers.setDestination(destination);
+		return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+	}
+}
@@ -0,0 +1,786 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteInsert;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.result.DeleteResult;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+
+/**
+ * In-process stand-in for a MongoDB server, used by benchmarks and load tests that exercise the real services without
+ * a database. It implements the driver interfaces with dynamic proxies and supports the subset of operations the
+ * server uses: inserts with an optionally unique "_id", finds with equality, range and $or filters, sorting, limits and
+ * projections, counts, deletes, recorded but otherwise ignored index and collection creation, and aggregations of
+ * $match, $sort, $group, $replaceRoot and $merge stages. Groups support $first, $sum, $avg, $min and $max accumulators
+ * over field paths and the $toDate, $toLong, $subtract, $mod and $arrayElemAt operators. Everything else throws
+ * UnsupportedOperationException. Tests can hook into inserts to simulate rejected documents, a slow server or an
+ * outage.
+ */
+public final class InMemoryMongo {
+
+    private static final CodecRegistry CODECS = MongoClientSettings.getDefaultCodecRegistry();
+
+    /**
+     * Error code MongoDB uses for documents that fail schema validation.
+     */
+    private static final int DOCUMENT_VALIDATION_FAILURE = 121;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final Map<String, List<Document>> collections = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of the created indexes by name, per collection.
+     */
+    private final Map<String, Map<String, BsonDocument>> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Options of the collections created explicitly.
+     */
+    private final Map<String, CreateCollectionOptions> collectionOptions = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of documents kept per collection, the oldest are discarded beyond it.
+     */
+    private final int maxDocumentsPerCollection;
+
+    private volatile Function<List<Document>, Collection<Document>> insertHook = documents -> List.of();
+
+    private volatile boolean uniqueIds;
+
+    /**
+     * Creates a stand-in that keeps every inserted document.
+     */
+    public InMemoryMongo() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a stand-in that keeps at most the given number of documents per collection, so that long running
+     * benchmarks and load tests do not accumulate every write in memory.
+     *
+     * @param maxDocumentsPerCollection The number of most recent documents to keep.
+     */
+    public InMemoryMongo(int maxDocumentsPerCollection) {
+        this.maxDocumentsPerCollection = maxDocumentsPerCollection;
+    }
+
+    /**
+     * Creates a MongoClient whose databases and collections live in this instance.
+     *
+     * @return The client proxy.
+     */
+    public MongoClient client() {
+        return proxy(MongoClient.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getDatabase" -> database((String) args[0]);
+            case "close" -> null;
+            default -> unsupported(method);
+        });
+    }
+
+    /**
+     * Installs a hook that is called before every insert with the documents to insert and returns the ones to reject,
+     * as if they failed validation. The others are inserted, and an insertMany reports the rejected ones in a
+     * MongoBulkWriteException like an unordered insert does. The hook may also block to simulate a slow server, or
+     * throw to simulate an outage.
+     *
+     * @param hook Returns the documents to reject.
+     */
+    public void beforeInsert(Function<List<Document>, Collection<Document>> hook) {
+        this.insertHook = hook;
+    }
+
+    /**
+     * Makes inserts of a document whose "_id" is already stored fail with a duplicate key error, as the unique "_id"
+     * index of a real collection does. Off by default, since every insert then scans the collection.
+     *
+     * @param enforce Whether to reject duplicate "_id" values.
+     */
+    public void uniqueIds(boolean enforce) {
+        this.uniqueIds = enforce;
+    }
+
+    /**
+     * Returns the live list of documents of a collection, e.g. to inspect what a test wrote.
+     *
+     * @param database The database name.
+     * @param collection The collection name.
+     * @return The stored documents.
+     */
+    public List<Document> documents(String database, String collection) {
+        return collections.computeIfAbsent(database + "." + collection, key -> new ArrayList<>());
+    }
+
+    /**
+     * Returns the indexes created on a collection.
+     *
+     * @param database The database name.
+     * @param collection The collection name.
+     * @return The keys of each index by name, in creation order.
+     */
+    public Map<String, BsonDocument> indexes(String database, String collection) {
+        return indexes.computeIfAbsent(database + "." + collection,
+                key -> Collections.synchronizedMap(new LinkedHashMap<>()));
+    }
+
+    /**
+     * Returns the options a collection was explicitly created with.
+     *
+     * @param database The database name.
+     * @param collection The collection name.
+     * @return The options, or null if the collection was not created with createCollection.
+     */
+    public CreateCollectionOptions collectionOptions(String database, String collection) {
+        return collectionOptions.get(database + "." + collection);
+    }
+
+    private MongoDatabase database(String name) {
+        return proxy(MongoDatabase.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getName" -> name;
+            case "getCollection" -> collection(new MongoNamespace(name, (String) args[0]));
+            case "listCollectionNames" -> iterable(method.getReturnType(), collections.keySet().stream()
+                    .filter(key -> key.startsWith(name + "."))
+                    .map(key -> key.substring(name.length() + 1))
+                    .toList());
+            case "createCollection" -> {
+                documents(name, (String) args[0]);
+                collectionOptions.put(name + "." + args[0],
+                        args.length > 1 ? (CreateCollectionOptions) args[1] : new CreateCollectionOptions());
+                yield null;
+            }
+            case "runCommand" -> new Document("ok", 1.0);
+            case "withCodecRegistry", "withReadPreference", "withWriteConcern", "withReadConcern",
+                 "withTimeout" -> proxy;
+            default -> unsupported(method);
+        });
+    }
+
+    private MongoCollection<Document> collection(MongoNamespace namespace) {
+        List<Document> documents = documents(namespace.getDatabaseName(), namespace.getCollectionName());
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> collection = proxy(MongoCollection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getNamespace":
+                    return namespace;
+                case "getDocumentClass":
+                    return Document.class;
+                case "insertOne":
+                    if (!insertHook.apply(List.of((Document) args[0])).isEmpty()) {
+                        throw new MongoWriteException(new WriteError(DOCUMENT_VALIDATION_FAILURE,
+                                "Document failed validation", new BsonDocument()), new ServerAddress());
+                    }
+                    if (isDuplicate(documents, List.of(), (Document) args[0])) {
+                        throw new MongoWriteException(new WriteError(DUPLICATE_KEY, "E11000 duplicate key error",
+                                new BsonDocument()), new ServerAddress());
+                    }
+                    insert(documents, List.of((Document) args[0]));
+                    return null;
+                case "insertMany":
+                    insertMany(documents, castDocuments((List<?>) args[0]));
+                    return null;
+                case "find":
+                    return new Query(documents, args == null || args.length == 0 || !(args[0] instanceof Bson)
+                            ? new BsonDocument() : toBson((Bson) args[0])).proxy();
+                case "countDocuments":
+                    return (long) new Query(documents, args == null || args.length == 0
+                            ? new BsonDocument() : toBson((Bson) args[0])).results().size();
+                case "deleteMany":
+                    BsonDocument filter = toBson((Bson) args[0]);
+                    long deleted;
+                    synchronized (documents) {
+                        int before = documents.size();
+                        documents.removeIf(document -> matches(toBson(document), filter));
+                        deleted = before - documents.size();
+                    }
+                    return DeleteResult.acknowledged(deleted);
+                case "createIndex":
+                    BsonDocument keys = toBson((Bson) args[0]);
+                    String indexName = args.length > 1 && ((IndexOptions) args[1]).getName() != null
+                            ? ((IndexOptions) args[1]).getName() : keys.toJson();
+                    indexes(namespace.getDatabaseName(), namespace.getCollectionName()).put(indexName, keys);
+                    return indexName;
+                case "aggregate":
+                    List<?> pipeline = (List<?>) args[0];
+                    return proxy(method.getReturnType(), (p, m, a) -> switch (m.getName()) {
+                        case "toCollection" -> {
+                            aggregate(namespace, pipeline);
+                            yield null;
+                        }
+                        case "iterator", "cursor" -> cursor(aggregate(namespace, pipeline).iterator());
+                        case "first" -> {
+                            List<Document> results = aggregate(namespace, pipeline);
+                            yield results.isEmpty() ? null : results.get(0);
+                        }
+                        case "into" -> {
+                            @SuppressWarnings("unchecked")
+                            Collection<Document> target = (Collection<Document>) a[0];
+                            target.addAll(aggregate(namespace, pipeline));
+                            yield target;
+                        }
+                        default -> m.getReturnType().isInstance(p) ? p : unsupported(m);
+                    });
+                case "withCodecRegistry":
+                case "withReadPreference":
+                case "withWriteConcern":
+                case "withReadConcern":
+                case "withTimeout":
+                    return proxy;
+                default:
+                    return unsupported(method);
+            }
+        });
+        return collection;
+    }
+
+    private void insertMany(List<Document> documents, List<Document> batch) {
+        Collection<Document> rejected = insertHook.apply(batch);
+        List<Document> accepted = new ArrayList<>(batch.size());
+        List<BulkWriteError> errors = new ArrayList<>();
+        List<BulkWriteInsert> inserts = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (rejected.contains(batch.get(i))) {
+                errors.add(new BulkWriteError(DOCUMENT_VALIDATION_FAILURE, "Document failed validation",
+                        new BsonDocument(), i));
+            } else if (isDuplicate(documents, accepted, batch.get(i))) {
+                errors.add(new BulkWriteError(DUPLICATE_KEY, "E11000 duplicate key error", new BsonDocument(), i));
+            } else {
+                accepted.add(batch.get(i));
+                inserts.add(new BulkWriteInsert(i, new Document("_id", batch.get(i).get("_id"))
+                        .toBsonDocument(BsonDocument.class, CODECS)
+                        .get("_id")));
+            }
+        }
+        insert(documents, accepted);
+        if (!errors.isEmpty()) {
+            throw new MongoBulkWriteException(
+                    BulkWriteResult.acknowledged(accepted.size(), 0, 0, 0, List.of(), inserts),
+                    errors, null, new ServerAddress(), Set.of());
+        }
+    }
+
+    /**
+     * Checks whether a document's "_id" is already stored or among the earlier documents of its batch, if unique ids
+     * are enforced.
+     */
+    private boolean isDuplicate(List<Document> documents, List<Document> batch, Document document) {
+        Object id = document.get("_id");
+        if (!uniqueIds || id == null) {
+            return false;
+        }
+        synchronized (documents) {
+            return documents.stream().anyMatch(stored -> id.equals(stored.get("_id")))
+                    || batch.stream().anyMatch(earlier -> id.equals(earlier.get("_id")));
+        }
+    }
+
+    private void insert(List<Document> documents, List<Document> inserted) {
+        synchronized (documents) {
+            for (Document document : inserted) {
+                if (!document.containsKey("_id")) {
+                    document.put("_id", new ObjectId());
+                }
+                documents.add(document);
+            }
+            // Trim in chunks so that discarding the oldest documents stays cheap per insert.
+            if (documents.size() - maxDocumentsPerCollection > maxDocumentsPerCollection / 10) {
+                documents.subList(0, documents.size() - maxDocumentsPerCollection).clear();
+            }
+        }
+    }
+
+    /**
+     * A find operation that is evaluated when its results are first requested, after sort and limit have been set.
+     */
+    private static final class Query {
+        private final List<Document> documents;
+        private final BsonDocument filter;
+        private BsonDocument sort;
+        private BsonDocument projection;
+        private int limit;
+
+        private Query(List<Document> documents, BsonDocument filter) {
+            this.documents = documents;
+            this.filter = filter;
+        }
+
+        private List<Document> results() {
+            List<Document> snapshot;
+            synchronized (documents) {
+                snapshot = new ArrayList<>(documents);
+            }
+            List<Document> results = new ArrayList<>();
+            for (Document document : snapshot) {
+                if (filter.isEmpty() || matches(toBson(document), filter)) {
+                    results.add(document);
+                }
+            }
+            if (sort != null && !sort.isEmpty()) {
+                results.sort(comparator(sort));
+            }
+            if (limit > 0 && results.size() > limit) {
+                results = new ArrayList<>(results.subList(0, limit));
+            }
+            if (projection != null && !projection.isEmpty()) {
+                results.replaceAll(document -> project(document, projection));
+            }
+            return results;
+        }
+
+        private Object proxy() {
+            return InMemoryMongo.proxy(FindIterable.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "sort":
+                        sort = args[0] == null ? null : toBson((Bson) args[0]);
+                        return proxy;
+                    case "limit":
+                        limit = (Integer) args[0];
+                        return proxy;
+                    case "projection":
+                        projection = args[0] == null ? null : toBson((Bson) args[0]);
+                        return proxy;
+                    case "first":
+                        List<Document> results = results();
+                        return results.isEmpty() ? null : results.get(0);
+                    case "iterator":
+                    case "cursor":
+                        return cursor(results().iterator());
+                    case "into":
+                        @SuppressWarnings("unchecked")
+                        Collection<Document> target = (Collection<Document>) args[0];
+                        target.addAll(results());
+                        return target;
+                    case "forEach":
+                        @SuppressWarnings("unchecked")
+                        Consumer<Document> action = (Consumer<Document>) args[0];
+                        results().forEach(action);
+                        return null;
+                    default:
+                        // Batch size, hints and similar options do not change the results here.
+                        return method.getReturnType().isInstance(proxy) ? proxy : unsupported(method);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies an inclusion or exclusion projection of top-level fields. "_id" is kept unless excluded.
+     */
+    private static Document project(Document document, BsonDocument projection) {
+        boolean inclusion = projection.entrySet().stream()
+                .anyMatch(field -> !field.getKey().equals("_id") && isTrue(field.getValue()));
+        Document projected = new Document();
+        for (Map.Entry<String, Object> field : document.entrySet()) {
+            BsonValue rule = projection.get(field.getKey());
+            boolean keep = rule != null ? isTrue(rule) : !inclusion || field.getKey().equals("_id");
+            if (keep) {
+                projected.put(field.getKey(), field.getValue());
+            }
+        }
+        return projected;
+    }
+
+    private static boolean isTrue(BsonValue value) {
+        return value.isBoolean() ? value.asBoolean().getValue() : value.isNumber() && value.asNumber().intValue() != 0;
+    }
+
+    /**
+     * Evaluates an aggregation pipeline of $match, $sort, $group, $replaceRoot with a field and $merge into a
+     * collection of the same database.
+     */
+    private List<Document> aggregate(MongoNamespace namespace, List<?> pipeline) {
+        List<Document> documents = documents(namespace.getDatabaseName(), namespace.getCollectionName());
+        List<Document> results;
+        synchronized (documents) {
+            results = new ArrayList<>(documents);
+        }
+        for (Object value : pipeline) {
+            BsonDocument stage = toBson((Bson) value);
+            String name = stage.getFirstKey();
+            switch (name) {
+                case "$match" -> results.removeIf(document -> !matches(toBson(document), stage.getDocument(name)));
+                case "$sort" -> results.sort(comparator(stage.getDocument(name)));
+                case "$group" -> results = group(results, stage.getDocument(name));
+                case "$replaceRoot" -> {
+                    BsonValue newRoot = stage.getDocument(name).get("newRoot");
+                    results.replaceAll(document -> (Document) expression(document, newRoot));
+                }
+                case "$merge" -> {
+                    merge(namespace.getDatabaseName(), results, stage.getDocument(name));
+                    results = new ArrayList<>();
+                }
+                default -> throw new UnsupportedOperationException("Aggregation stage " + name);
+            }
+        }
+        return results;
+    }
+
+    private static List<Document> group(List<Document> documents, BsonDocument spec) {
+        Map<Object, List<Document>> members = new LinkedHashMap<>();
+        for (Document document : documents) {
+            members.computeIfAbsent(expression(document, spec.get("_id")), id -> new ArrayList<>()).add(document);
+        }
+        List<Document> groups = new ArrayList<>(members.size());
+        for (Map.Entry<Object, List<Document>> member : members.entrySet()) {
+            Document group = new Document("_id", member.getKey());
+            for (Map.Entry<String, BsonValue> field : spec.entrySet()) {
+                if (field.getKey().equals("_id")) {
+                    continue;
+                }
+                BsonDocument accumulator = field.getValue().asDocument();
+                String operator = accumulator.getFirstKey();
+                List<Object> values = new ArrayList<>(member.getValue().size());
+                for (Document document : member.getValue()) {
+                    values.add(expression(document, accumulator.get(operator)));
+                }
+                group.put(field.getKey(), accumulate(operator, values));
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static Object accumulate(String operator, List<Object> values) {
+        switch (operator) {
+            case "$first":
+                return values.isEmpty() ? null : values.get(0);
+            case "$sum", "$avg": {
+                double sum = 0;
+                int count = 0;
+                boolean integral = true;
+                for (Object value : values) {
+                    if (value instanceof Number number) {
+                        sum += number.doubleValue();
+                        count++;
+                        integral &= value instanceof Integer || value instanceof Long;
+                    }
+                }
+                if (operator.equals("$avg")) {
+                    return count == 0 ? null : sum / count;
+                }
+                if (!integral) {
+                    return sum;
+                }
+                return sum == (int) sum ? (Object) (int) sum : (Object) (long) sum;
+            }
+            case "$min", "$max": {
+                Object best = null;
+                for (Object value : values) {
+                    if (value != null && (best == null || (compare(bsonValue(value), bsonValue(best)) < 0
+                            == operator.equals("$min")))) {
+                        best = value;
+                    }
+                }
+                return best;
+            }
+            default:
+                throw new UnsupportedOperationException("Accumulator " + operator);
+        }
+    }
+
+    /**
+     * Evaluates an aggregation expression: "$$ROOT", a "$field.path", a document of expressions, an operator or a
+     * constant.
+     */
+    private static Object expression(Document document, BsonValue expression) {
+        if (expression.isString()) {
+            String value = expression.asString().getValue();
+            if (value.equals("$$ROOT")) {
+                return document;
+            }
+            return value.startsWith("$") ? path(document, value.substring(1)) : value;
+        }
+        if (expression.isArray()) {
+            List<Object> values = new ArrayList<>();
+            for (BsonValue element : expression.asArray()) {
+                values.add(expression(document, element));
+            }
+            return values;
+        }
+        if (!expression.isDocument()) {
+            return toJava(expression);
+        }
+        BsonDocument spec = expression.asDocument();
+        if (spec.isEmpty() || !spec.getFirstKey().startsWith("$")) {
+            Document result = new Document();
+            for (Map.Entry<String, BsonValue> field : spec.entrySet()) {
+                result.put(field.getKey(), expression(document, field.getValue()));
+            }
+            return result;
+        }
+        String operator = spec.getFirstKey();
+        Object operand = expression(document, spec.get(operator));
+        List<?> operands = operand instanceof List<?> list ? list : List.of(operand);
+        return switch (operator) {
+            case "$toDate" -> operands.get(0) instanceof Date date ? date : new Date(number(operands.get(0)));
+            case "$toLong" -> operands.get(0) instanceof Date date ? date.getTime() : number(operands.get(0));
+            case "$subtract" -> number(operands.get(0)) - number(operands.get(1));
+            case "$mod" -> number(operands.get(0)) % number(operands.get(1));
+            case "$arrayElemAt" -> {
+                List<?> array = (List<?>) operands.get(0);
+                int index = ((Number) operands.get(1)).intValue();
+                yield array == null || index >= array.size() ? null : array.get(index);
+            }
+            default -> throw new UnsupportedOperationException("Aggregation operator " + operator);
+        };
+    }
+
+    private static long number(Object value) {
+        return ((Number) value).longValue();
+    }
+
+    private static Object path(Document document, String path) {
+        Object value = document;
+        for (String key : path.split("\\.")) {
+            if (!(value instanceof Document nested)) {
+                return null;
+            }
+            value = nested.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Writes aggregation results into a collection by "_id" as a $merge stage does, replacing or merging matched
+     * documents and inserting or discarding the others.
+     */
+    private void merge(String database, List<Document> results, BsonDocument spec) {
+        BsonValue into = spec.get("into");
+        List<Document> target = into.isString()
+                ? documents(database, into.asString().getValue())
+                : documents(into.asDocument().getString("db").getValue(),
+                        into.asDocument().getString("coll").getValue());
+        String whenMatched = spec.containsKey("whenMatched") ? spec.getString("whenMatched").getValue() : "merge";
+        String whenNotMatched = spec.containsKey("whenNotMatched")
+                ? spec.getString("whenNotMatched").getValue() : "insert";
+        synchronized (target) {
+            for (Document result : results) {
+                int index = -1;
+                for (int i = 0; i < target.size() && index < 0; i++) {
+                    if (Objects.equals(target.get(i).get("_id"), result.get("_id"))) {
+                        index = i;
+                    }
+                }
+                if (index < 0) {
+                    if (whenNotMatched.equals("insert")) {
+                        target.add(result);
+                    } else if (!whenNotMatched.equals("discard")) {
+                        throw new UnsupportedOperationException("$merge whenNotMatched " + whenNotMatched);
+                    }
+                    continue;
+                }
+                switch (whenMatched) {
+                    case "replace" -> target.set(index, result);
+                    case "merge" -> target.get(index).putAll(result);
+                    case "keepExisting" -> {
+                    }
+                    default -> throw new UnsupportedOperationException("$merge whenMatched " + whenMatched);
+                }
+            }
+        }
+    }
+
+    private static BsonValue bsonValue(Object value) {
+        return new Document("value", value).toBsonDocument(BsonDocument.class, CODECS).get("value");
+    }
+
+    private static Object toJava(BsonValue value) {
+        return switch (value.getBsonType()) {
+            case INT32 -> value.asInt32().getValue();
+            case INT64 -> value.asInt64().getValue();
+            case DOUBLE -> value.asDouble().getValue();
+            case BOOLEAN -> value.asBoolean().getValue();
+            case DATE_TIME -> new Date(value.asDateTime().getValue());
+            case NULL -> null;
+            default -> throw new UnsupportedOperationException("Aggregation constant " + value);
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MongoCursor<Document> cursor(Iterator<Document> iterator) {
+        return proxy(MongoCursor.class, (proxy, method, args) -> switch (method.getName()) {
+            case "hasNext" -> iterator.hasNext();
+            case "next" -> iterator.next();
+            case "tryNext" -> iterator.hasNext() ? iterator.next() : null;
+            case "close" -> null;
+            default -> unsupported(method);
+        });
+    }
+
+    private static Object iterable(Class<?> type, List<String> values) {
+        return proxy(type, (proxy, method, args) -> switch (method.getName()) {
+            case "iterator", "cursor" -> {
+                Iterator<String> iterator = values.iterator();
+                yield proxy(MongoCursor.class, (p, m, a) -> switch (m.getName()) {
+                    case "hasNext" -> iterator.hasNext();
+                    case "next" -> iterator.next();
+                    case "close" -> null;
+                    default -> unsupported(m);
+                });
+            }
+            case "first" -> values.isEmpty() ? null : values.get(0);
+            case "into" -> {
+                @SuppressWarnings("unchecked")
+                Collection<String> target = (Collection<String>) args[0];
+                target.addAll(values);
+                yield target;
+            }
+            default -> method.getReturnType().isInstance(proxy) ? proxy : unsupported(method);
+        });
+    }
+
+    /**
+     * Evaluates a filter document with equality, $gt, $gte, $lt, $lte, $in, $exists, $and and $or against a document.
+     */
+    private static boolean matches(BsonDocument document, BsonDocument filter) {
+        for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+            String field = condition.getKey();
+            if (field.equals("$or")) {
+                boolean any = false;
+                for (BsonValue clause : condition.getValue().asArray()) {
+                    any |= matches(document, clause.asDocument());
+                }
+                if (!any) {
+                    return false;
+                }
+                continue;
+            }
+            if (field.equals("$and")) {
+                for (BsonValue clause : condition.getValue().asArray()) {
+                    if (!matches(document, clause.asDocument())) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+            BsonValue actual = document.get(field);
+            BsonValue expected = condition.getValue();
+            if (expected.isDocument() && !expected.asDocument().isEmpty()
+                    && expected.asDocument().getFirstKey().startsWith("$")) {
+                for (Map.Entry<String, BsonValue> operator : expected.asDocument().entrySet()) {
+                    if (!evaluate(operator.getKey(), actual, operator.getValue())) {
+                        return false;
+                    }
+                }
+            } else if (actual == null || compare(actual, expected) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean evaluate(String operator, BsonValue actual, BsonValue operand) {
+        return switch (operator) {
+            case "$exists" -> (actual != null) == operand.asBoolean().getValue();
+            case "$gt" -> actual != null && compare(actual, operand) > 0;
+            case "$gte" -> actual != null && compare(actual, operand) >= 0;
+            case "$lt" -> actual != null && compare(actual, operand) < 0;
+            case "$lte" -> actual != null && compare(actual, operand) <= 0;
+            case "$in" -> {
+                BsonArray values = operand.asArray();
+                yield actual != null && values.stream().anyMatch(value -> compare(actual, value) == 0);
+            }
+            default -> throw new UnsupportedOperationException("Filter operator " + operator);
+        };
+    }
+
+    private static Comparator<Document> comparator(BsonDocument sort) {
+        return (left, right) -> {
+            BsonDocument a = toBson(left);
+            BsonDocument b = toBson(right);
+            for (Map.Entry<String, BsonValue> key : sort.entrySet()) {
+                BsonValue x = a.get(key.getKey());
+                BsonValue y = b.get(key.getKey());
+                int result = x == null ? (y == null ? 0 : -1) : (y == null ? 1 : compare(x, y));
+                if (result != 0) {
+                    return key.getValue().asNumber().intValue() < 0 ? -result : result;
+                }
+            }
+            return 0;
+        };
+    }
+
+    private static int compare(BsonValue a, BsonValue b) {
+        if (a.isNumber() && b.isNumber()) {
+            return Double.compare(a.asNumber().doubleValue(), b.asNumber().doubleValue());
+        }
+        if (a.isString() && b.isString()) {
+            return a.asString().getValue().compareTo(b.asString().getValue());
+        }
+        if (a.isObjectId() && b.isObjectId()) {
+            return a.asObjectId().getValue().compareTo(b.asObjectId().getValue());
+        }
+        if (a.isDateTime() && b.isDateTime()) {
+            return Long.compare(a.asDateTime().getValue(), b.asDateTime().getValue());
+        }
+        return a.equals(b) ? 0 : Integer.compare(a.getBsonType().getValue(), b.getBsonType().getValue());
+    }
+
+    private static BsonDocument toBson(Bson bson) {
+        return bson.toBsonDocument(Document.class, CODECS);
+    }
+
+    private static List<Document> castDocuments(List<?> values) {
+        List<Document> documents = new ArrayList<>(values.size());
+        for (Object value : values) {
+            documents.add((Document) value);
+        }
+        return documents;
+    }
+
+    private static Object unsupported(Method method) {
+        throw new UnsupportedOperationException("InMemoryMongo does not support " + method);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(InMemoryMongo.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return switch (method.getName()) {
+                            case "hashCode" -> System.identityHashCode(proxy);
+                            case "equals" -> proxy == args[0];
+                            default -> "InMemoryMongo proxy for " + type.getSimpleName();
+                        };
+                    }
+                    return handler.invoke(proxy, method, args);
+                });
+    }
+}
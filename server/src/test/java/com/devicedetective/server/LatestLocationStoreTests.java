@@ -0,0 +1,81 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LatestLocationStoreTests {
+
+	@Test
+	void servesLatestWriteAndCountsHits() {
+		LatestLocationStore store = new LatestLocationStore(10);
+		store.put("a", new Document("latitude", "1"));
+		store.put("a", new Document("latitude", "2"));
+
+		assertThat(store.get("a").getString("latitude")).isEqualTo("2");
+		assertThat(store.get("b")).isNull();
+		assertThat(store.getHits()).isEqualTo(1);
+		assertThat(store.getMisses()).isEqualTo(1);
+	}
+
+	@Test
+	void loadsOnMissOnlyOnce() {
+		LatestLocationStore store = new LatestLocationStore(10);
+		int[] loads = new int[1];
+
+		for (int i = 0; i < 3; i++) {
+			store.getOrLoad("a", clientId -> {
+				loads[0]++;
+				return new Document("clientId", clientId);
+			});
+		}
+
+		assertThat(loads[0]).isEqualTo(1);
+	}
+
+	@Test
+	void loadDoesNotReplaceRacingWrite() {
+		LatestLocationStore store = new LatestLocationStore(10);
+
+		Document loaded = store.getOrLoad("a", clientId -> {
+			// A report of the client is saved while its older location is being loaded.
+			store.put(clientId, new Document("latitude", "new"));
+			return new Document("latitude", "old");
+		});
+
+		assertThat(loaded.getString("latitude")).isEqualTo("new");
+		assertThat(store.get("a").getString("latitude")).isEqualTo("new");
+	}
+
+	@Test
+	void removedClientLeavesEvictionOrder() {
+		LatestLocationStore store = new LatestLocationStore(2);
+		store.put("a", new Document());
+		store.put("b", new Document());
+		store.remove("a");
+		store.put("a", new Document());
+		store.put("c", new Document());
+
+		assertThat(store.get("b")).isNull();
+		assertThat(store.get("a")).isNotNull();
+		assertThat(store.get("c")).isNotNull();
+		assertThat(store.getEvictions()).isEqualTo(1);
+	}
+
+	@Test
+	void evictsOldestInsertOnceFull() {
+		LatestLocationStore store = new LatestLocationStore(2);
+		store.put("a", new Document());
+		store.put("b", new Document());
+		store.put("a", new Document());
+		store.put("c", new Document());
+
+		assertThat(store.size()).isEqualTo(2);
+		assertThat(store.get("a")).isNull();
+		assertThat(store.get("b")).isNotNull();
+		assertThat(store.get("c")).isNotNull();
+		assertThat(store.getEvictions()).isEqualTo(1);
+	}
+
+}
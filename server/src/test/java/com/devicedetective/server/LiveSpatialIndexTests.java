@@ -0,0 +1,68 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class LiveSpatialIndexTests {
+
+	@Test
+	void findsDevicesWithinRadiusNearestFirst() {
+		LiveSpatialIndex index = new LiveSpatialIndex(0.01);
+		index.update("near", 40.2030, -77.2010);
+		index.update("far", 40.3000, -77.2000);
+		index.update("closest", 40.2027, -77.2008);
+
+		assertThat(index.findNearby(40.2027, -77.2008, 1000))
+				.extracting(LiveSpatialIndex.Match::clientId)
+				.containsExactly("closest", "near");
+	}
+
+	@Test
+	void movesDeviceBetweenCells() {
+		LiveSpatialIndex index = new LiveSpatialIndex(0.01);
+		index.update("a", 10.0, 10.0);
+		index.update("a", 20.0, 20.0);
+
+		assertThat(index.findNearby(10.0, 10.0, 5000)).isEmpty();
+		assertThat(index.findNearby(20.0, 20.0, 5000)).hasSize(1);
+		assertThat(index.size()).isEqualTo(1);
+	}
+
+	@Test
+	void findsDevicesAcrossThePole() {
+		LiveSpatialIndex index = new LiveSpatialIndex(1.0);
+		// About 280 km from the centre, over the pole.
+		index.update("far side", 89.5, 180);
+
+		assertThat(index.findNearby(88, 0, 300_000))
+				.extracting(LiveSpatialIndex.Match::clientId)
+				.containsExactly("far side");
+	}
+
+	@Test
+	void boundingBoxCrossingAntimeridian() {
+		LiveSpatialIndex index = new LiveSpatialIndex(1.0);
+		index.update("east", 0.5, 179.5);
+		index.update("west", 0.5, -179.5);
+		index.update("elsewhere", 0.5, 0.0);
+
+		assertThat(index.findWithin(0, 179, 1, -179))
+				.extracting(LiveSpatialIndex.Match::clientId)
+				.containsExactlyInAnyOrder("east", "west");
+	}
+
+	@Test
+	void rejectsInvalidQueries() {
+		LiveSpatialIndex index = new LiveSpatialIndex(1.0);
+
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findNearby(0, 0, -1));
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findNearby(0, 0, Double.NaN));
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findNearby(0, 0, Double.POSITIVE_INFINITY));
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findNearby(Double.NaN, 0, 10));
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findWithin(1, 0, 0, 1));
+		assertThatIllegalArgumentException().isThrownBy(() -> index.findWithin(0, Double.NaN, 1, 1));
+		assertThat(index.findNearby(0, 0, 0)).isEmpty();
+	}
+}
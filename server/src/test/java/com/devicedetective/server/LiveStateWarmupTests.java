@@ -0,0 +1,84 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LiveStateWarmupTests {
+
+	private final long now = System.currentTimeMillis();
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final LatestLocationStore store = new LatestLocationStore(100);
+	private final LiveSpatialIndex index = new LiveSpatialIndex(0.01);
+	private final ClientRegistry registry = new ClientRegistry(index, 30_000);
+	private final LocationService locationService = locationService();
+
+	@Test
+	void loadsLatestLocationOfRecentDevices() {
+		save("a", now - 20_000, 10.0);
+		save("a", now - 10_000, 11.0);
+		save("gone", now - 200_000, 12.0);
+
+		assertThat(warmup().warmUp()).isEqualTo(1);
+
+		assertThat(store.get("a").getDouble("latitude")).isEqualTo(11.0);
+		assertThat(store.get("gone")).isNull();
+		assertThat(registry.clientIds()).containsExactly("a");
+		assertThat(index.findNearby(11.0, 0.0, 100)).extracting(LiveSpatialIndex.Match::clientId).containsExactly("a");
+	}
+
+	@Test
+	void keepsNewerReportsReceivedDuringWarmup() {
+		save("a", now - 10_000, 10.0);
+		locationService.applyRemoteLocation(location("a", now, 20.0));
+
+		assertThat(warmup().warmUp()).isZero();
+
+		assertThat(store.get("a").getDouble("latitude")).isEqualTo(20.0);
+	}
+
+	@Test
+	void registersDevicesAsLastSeenAtTheirStoredTime() {
+		save("recent", now - 10_000, 10.0);
+		// Within the warm-up window but past the registry TTL of 30 seconds.
+		save("stale", now - 60_000, 10.0);
+
+		assertThat(warmup().warmUp()).isEqualTo(2);
+		registry.evictIdle();
+
+		assertThat(registry.clientIds()).containsExactly("recent");
+	}
+
+	private LiveStateWarmup warmup() {
+		return new LiveStateWarmup(mongo.client(), locationService, registry, true, 120_000);
+	}
+
+	private LocationService locationService() {
+		LocationMetrics metrics = new LocationMetrics(new SimpleMeterRegistry());
+		return new LocationService(mongo.client(), store,
+				new LocationWriteBehind(mongo.client(), metrics, false, 1, 1, 1, "block"),
+				new LocationJournal(mongo.client(), metrics, false, "collection", "journal", 1, 1, 1, 1),
+				index, metrics, new LoopbackLocationEventBus(UUID.randomUUID().toString()));
+	}
+
+	private void save(String clientId, long ts, double latitude) {
+		mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME)
+				.add(location(clientId, ts, latitude));
+	}
+
+	private static Document location(String clientId, long ts, double latitude) {
+		return new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(ts))
+				.append("latitude", latitude)
+				.append("longitude", 0.0)
+				.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(latitude, 0.0));
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class LocationBinaryCodecTests {
+
+	@Test
+	void roundTripsLocations() {
+		Location location = new Location();
+		location.setClientId("123e4567-e89b-12d3-a456-426614174000");
+		location.setGroupId("family");
+		location.setLatitude(40.2027123);
+		location.setLongitude(-77.2008);
+		location.setTimestamp(1700000000000L);
+
+		List<Location> decoded = LocationBinaryCodec.decode(LocationBinaryCodec.encode(List.of(location)));
+
+		assertThat(decoded).hasSize(1);
+		assertThat(decoded.get(0).getClientId()).isEqualTo(location.getClientId());
+		assertThat(decoded.get(0).getGroupId()).isEqualTo("family");
+		assertThat(decoded.get(0).getLatitude()).isEqualTo(40.2027123);
+		assertThat(decoded.get(0).getLongitude()).isEqualTo(-77.2008);
+		assertThat(decoded.get(0).getTimestamp()).isEqualTo(1700000000000L);
+	}
+
+	@Test
+	void keepsMissingCoordinatesAsNaN() {
+		Location location = new Location();
+		location.setClientId("a");
+
+		Location decoded = LocationBinaryCodec.decode(LocationBinaryCodec.encode(List.of(location))).get(0);
+
+		assertThat(decoded.getLatitude()).isNaN();
+		assertThat(decoded.getGroupId()).isNull();
+	}
+
+	@Test
+	void sendsOutOfRangeCoordinatesAsMissing() {
+		Location location = new Location();
+		location.setClientId("a");
+		location.setLatitude(1e9);
+		location.setLongitude(Double.NEGATIVE_INFINITY);
+
+		Location decoded = LocationBinaryCodec.decode(LocationBinaryCodec.encode(List.of(location))).get(0);
+
+		assertThat(decoded.getLatitude()).isNaN();
+		assertThat(decoded.getLongitude()).isNaN();
+	}
+
+	@Test
+	void rejectsTruncatedFrames() {
+		Location location = new Location();
+		location.setClientId("a");
+		byte[] frame = LocationBinaryCodec.encode(List.of(location));
+
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> LocationBinaryCodec.decode(Arrays.copyOf(frame, frame.length - 1)));
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationBroadcasterTests {
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final LocationService locationService = locationService();
+	private final TopicSubscriptionTracker subscriptionTracker = new TopicSubscriptionTracker();
+	private final LocationChangeLog changeLog = new LocationChangeLog(16);
+	private final List<Message<?>> sent = new ArrayList<>();
+	private final LocationBroadcaster broadcaster = broadcaster();
+
+	@Test
+	void coalescesUpdatesWithinOneTick() {
+		subscribe("s1", LocationBroadcaster.LOCATIONS_TOPIC);
+		update("a", 10.0, null);
+		update("b", 10.0, null);
+		update("a", 11.0, null);
+
+		broadcaster.tick();
+
+		assertThat(sent).singleElement().satisfies(frame -> {
+			assertThat(destination(frame)).isEqualTo(LocationBroadcaster.LOCATIONS_TOPIC);
+			assertThat(clientIds(frame)).containsExactlyInAnyOrder("a", "b");
+			assertThat(SimpMessageHeaderAccessor.wrap(frame).getFirstNativeHeader(LocationChangeLog.VERSION_HEADER))
+					.isEqualTo(changeLog.token(3));
+		});
+		assertThat(broadcaster.getPendingCount()).isZero();
+
+		// Nothing changed since.
+		broadcaster.tick();
+		assertThat(sent).hasSize(1);
+	}
+
+	@Test
+	void sendsOneFramePerSubscribedDestination() {
+		subscribe("s1", LocationBroadcaster.LOCATIONS_TOPIC);
+		subscribe("s2", LocationBroadcaster.LOCATIONS_TOPIC);
+		subscribe("s1", LocationBroadcaster.DEVICE_TOPIC_PREFIX + "a");
+		subscribe("s1", LocationBroadcaster.GROUP_TOPIC_PREFIX + "family");
+		subscribe("s1", LocationBroadcaster.BINARY_TOPIC_PREFIX + "locations");
+		update("a", 10.0, "family");
+		update("b", 10.0, "family");
+		update("c", 10.0, "work");
+
+		broadcaster.tick();
+
+		// Nobody watches "b", "c" or the "work" group on their own.
+		assertThat(sent).extracting(LocationBroadcasterTests::destination).containsExactlyInAnyOrder(
+				LocationBroadcaster.LOCATIONS_TOPIC,
+				LocationBroadcaster.DEVICE_TOPIC_PREFIX + "a",
+				LocationBroadcaster.GROUP_TOPIC_PREFIX + "family",
+				LocationBroadcaster.BINARY_TOPIC_PREFIX + "locations");
+		assertThat(sent).filteredOn(frame -> destination(frame).startsWith(LocationBroadcaster.GROUP_TOPIC_PREFIX))
+				.singleElement().satisfies(frame -> assertThat(clientIds(frame)).containsExactlyInAnyOrder("a", "b"));
+		assertThat(sent).filteredOn(frame -> destination(frame).startsWith(LocationBroadcaster.BINARY_TOPIC_PREFIX))
+				.singleElement().satisfies(frame -> assertThat(frame.getPayload()).isInstanceOf(byte[].class));
+	}
+
+	private void update(String clientId, double latitude, String groupId) {
+		Document location = new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append("groupId", groupId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date())
+				.append("latitude", latitude)
+				.append("longitude", 0.0);
+		assertThat(locationService.applyRemoteLocation(location)).isTrue();
+		broadcaster.markDirty(clientId);
+	}
+
+	private void subscribe(String sessionId, String destination) {
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+		headers.setSessionId(sessionId);
+		headers.setSubscriptionId(destination);
+		headers.setDestination(destination);
+		subscriptionTracker.onSubscribe(new SessionSubscribeEvent(this,
+				MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders())));
+	}
+
+	private LocationBroadcaster broadcaster() {
+		MessageChannel channel = (message, timeout) -> sent.add(message);
+		SimpMessagingTemplate template = new SimpMessagingTemplate(channel);
+		template.setMessageConverter(new CompositeMessageConverter(
+				List.of(new LocationBinaryMessageConverter(), new MappingJackson2MessageConverter())));
+		return new LocationBroadcaster(locationService, template, subscriptionTracker,
+				new LocationMetrics(new SimpleMeterRegistry()), new SlowConsumerGuard(64), changeLog, channel);
+	}
+
+	private LocationService locationService() {
+		LocationMetrics metrics = new LocationMetrics(new SimpleMeterRegistry());
+		return new LocationService(mongo.client(), new LatestLocationStore(100),
+				new LocationWriteBehind(mongo.client(), metrics, false, 1, 1, 1, "block"),
+				new LocationJournal(mongo.client(), metrics, false, "collection", "journal", 1, 1, 1, 1),
+				new LiveSpatialIndex(0.01), metrics, new LoopbackLocationEventBus(UUID.randomUUID().toString()));
+	}
+
+	private static String destination(Message<?> frame) {
+		return SimpMessageHeaderAccessor.getDestination(frame.getHeaders());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> clientIds(Message<?> frame) {
+		return (List<String>) frame.getHeaders().get(SlowConsumerGuard.CLIENT_IDS_HEADER);
+	}
+}
@@ -0,0 +1,60 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationChangeLogTests {
+
+	@Test
+	void returnsEachChangedClientOnce() {
+		LocationChangeLog log = new LocationChangeLog(8);
+		log.record("a");
+		String version = log.token(log.current());
+		log.record("b");
+		log.record("c");
+		log.record("b");
+
+		LocationChangeLog.Changes changes = log.changesSince(version);
+		assertThat(changes.version()).isEqualTo(4);
+		assertThat(changes.clientIds()).containsExactlyInAnyOrder("b", "c");
+		assertThat(log.changesSince(log.token(4)).clientIds()).isEmpty();
+	}
+
+	@Test
+	void readsAcrossTheEndOfTheRing() {
+		LocationChangeLog log = new LocationChangeLog(4);
+		for (int i = 1; i <= 6; i++) {
+			log.record("client" + i);
+		}
+
+		assertThat(log.changesSince(log.token(2)).clientIds())
+				.containsExactlyInAnyOrder("client3", "client4", "client5", "client6");
+	}
+
+	@Test
+	void needsSnapshotForOverwrittenOrUnknownVersions() {
+		LocationChangeLog log = new LocationChangeLog(4);
+		for (int i = 1; i <= 6; i++) {
+			log.record("client" + i);
+		}
+
+		assertThat(log.changesSince(log.token(1))).isNull();
+		assertThat(log.changesSince(log.token(7))).isNull();
+		assertThat(log.changesSince(null)).isNull();
+		assertThat(log.changesSince("garbage")).isNull();
+		// Versions of another instance, or of this one before a restart, are not comparable.
+		assertThat(log.changesSince(new LocationChangeLog(4).token(5))).isNull();
+	}
+
+	@Test
+	void roundsSizeUpToPowerOfTwo() {
+		LocationChangeLog log = new LocationChangeLog(3);
+		for (int i = 1; i <= 5; i++) {
+			log.record("client" + i);
+		}
+
+		assertThat(log.changesSince(log.token(1)).clientIds()).hasSize(4);
+		assertThat(log.changesSince(log.token(0))).isNull();
+	}
+}
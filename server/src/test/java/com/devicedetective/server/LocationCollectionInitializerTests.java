@@ -0,0 +1,70 @@
+package com.devicedetective.server;
+
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.TimeSeriesOptions;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationCollectionInitializerTests {
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+
+	@Test
+	void createsQueryIndexesWithoutRetention() {
+		new LocationCollectionInitializer(mongo.client(), "collection", 0, false).createIndexes();
+
+		assertThat(indexes()).containsOnlyKeys("clientId_ts", "clientId_ts_id", "location_2dsphere");
+		assertThat(indexes().get("clientId_ts_id"))
+				.isEqualTo(BsonDocument.parse("{clientId: 1, ts: 1, _id: 1}"));
+		assertThat(mongo.collectionOptions(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME)).isNull();
+	}
+
+	@Test
+	void createsTtlIndexWithRetention() {
+		new LocationCollectionInitializer(mongo.client(), "collection", 30, true).createIndexes();
+
+		// The TTL index on "ts" also serves the rollup.
+		assertThat(indexes()).containsOnlyKeys("clientId_ts", "clientId_ts_id", "location_2dsphere", "ts_ttl");
+	}
+
+	@Test
+	void createsTimeIndexForRollupWithoutRetention() {
+		new LocationCollectionInitializer(mongo.client(), "collection", 0, true).createIndexes();
+
+		assertThat(indexes()).containsOnlyKeys("clientId_ts", "clientId_ts_id", "location_2dsphere", "ts");
+		assertThat(indexes().get("ts")).isEqualTo(BsonDocument.parse("{ts: 1}"));
+	}
+
+	@Test
+	void createsTimeSeriesCollection() {
+		new LocationCollectionInitializer(mongo.client(), "timeseries", 30, true).createIndexes();
+
+		CreateCollectionOptions options = mongo.collectionOptions(LocationService.DATABASE_NAME,
+				LocationService.COLLECTION_NAME);
+		TimeSeriesOptions timeSeries = options.getTimeSeriesOptions();
+		assertThat(timeSeries.getTimeField()).isEqualTo(LocationService.TIMESTAMP_FIELD);
+		assertThat(timeSeries.getMetaField()).isEqualTo("clientId");
+		assertThat(options.getExpireAfter(TimeUnit.DAYS)).isEqualTo(30);
+		assertThat(indexes()).containsOnlyKeys("clientId_ts", "location_2dsphere");
+	}
+
+	@Test
+	void keepsExistingCollectionInTimeSeriesMode() {
+		mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME).add(new Document("clientId", "a"));
+
+		new LocationCollectionInitializer(mongo.client(), "timeseries", 0, false).createIndexes();
+
+		assertThat(mongo.collectionOptions(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME)).isNull();
+		assertThat(indexes()).containsOnlyKeys("clientId_ts", "location_2dsphere");
+	}
+
+	private Map<String, BsonDocument> indexes() {
+		return mongo.indexes(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	}
+}
@@ -0,0 +1,85 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationImportReaderTests {
+
+	@Test
+	void normalizesNdjsonRecords() throws IOException {
+		LocationImportReader reader = reader(LocationImportReader.Format.NDJSON, """
+				{"clientId": "a", "timestamp": 1000, "latitude": 40.2, "longitude": -77.2}
+
+				{"clientId": "b", "ts": {"$date": "2024-01-01T00:00:00Z"}, "latitude": 1, "longitude": 2}
+				""");
+
+		LocationImportReader.Record first = reader.next();
+		assertThat(first.line()).isEqualTo(1);
+		assertThat(first.document().get(LocationService.TIMESTAMP_FIELD)).isEqualTo(new Date(1000));
+		assertThat(first.document().get(LocationService.GEO_FIELD, Document.class).get("coordinates"))
+				.asList().containsExactly(-77.2, 40.2);
+
+		// The blank line is skipped but counted.
+		LocationImportReader.Record second = reader.next();
+		assertThat(second.line()).isEqualTo(3);
+		assertThat(second.document().get(LocationService.TIMESTAMP_FIELD)).isEqualTo(new Date(1704067200000L));
+		assertThat(reader.next()).isNull();
+	}
+
+	@Test
+	void readsCsvWithHeaderAndNumbers() throws IOException {
+		LocationImportReader reader = reader(LocationImportReader.Format.CSV, """
+				clientId,groupId,ts,latitude,longitude,name
+				a,001,2024-01-01T00:00:00Z,40.5,-77,"Smith, ""Bob""\"
+				""");
+
+		Document document = reader.next().document();
+		assertThat(document.get("groupId")).isEqualTo("001");
+		assertThat(document.get(LocationService.TIMESTAMP_FIELD)).isEqualTo(new Date(1704067200000L));
+		assertThat(document.get("latitude")).isEqualTo(40.5);
+		assertThat(document.get("longitude")).isEqualTo(-77L);
+		assertThat(document.get("name")).isEqualTo("Smith, \"Bob\"");
+		assertThat(document).containsKey(LocationService.GEO_FIELD);
+	}
+
+	@Test
+	void reportsBadLinesAndContinues() throws IOException {
+		LocationImportReader reader = reader(LocationImportReader.Format.NDJSON, """
+				{"timestamp": 1000}
+				{"clientId": "a"
+				{"clientId": "a", "ts": 5}
+				""");
+
+		assertThat(reader.next().error()).isEqualTo("Missing clientId");
+		LocationImportReader.Record broken = reader.next();
+		assertThat(broken.line()).isEqualTo(2);
+		assertThat(broken.document()).isNull();
+		assertThat(reader.next().document().get(LocationService.TIMESTAMP_FIELD)).isEqualTo(new Date(5));
+	}
+
+	@Test
+	void rejectsCsvRecordsWithWrongFieldCount() throws IOException {
+		LocationImportReader reader = reader(LocationImportReader.Format.CSV, """
+				clientId,ts
+				a,1,2
+				""");
+
+		assertThat(reader.next().error()).isEqualTo("Expected 2 fields but got 3");
+	}
+
+	@Test
+	void splitsQuotedCsvFields() {
+		assertThat(LocationImportReader.splitCsv("a, \"b,c\" ,,\"\"\"\""))
+				.containsExactly("a", "b,c", "", "\"");
+	}
+
+	private static LocationImportReader reader(LocationImportReader.Format format, String input) {
+		return new LocationImportReader(new StringReader(input), format);
+	}
+}
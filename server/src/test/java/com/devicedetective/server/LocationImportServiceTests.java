@@ -0,0 +1,93 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationImportServiceTests {
+
+	private static final String NDJSON = """
+			{"clientId": "a", "ts": 1000, "latitude": 1, "longitude": 2}
+			not json
+			{"clientId": "b", "ts": 2000, "latitude": 1, "longitude": 2}
+
+			{"clientId": "c", "ts": 3000, "latitude": 1, "longitude": 2}
+			{"clientId": "d", "ts": 4000, "latitude": 1, "longitude": 2}
+			""";
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final LocationImportService importService = new LocationImportService(mongo.client(), 2);
+
+	@Test
+	void reportsRejectedDocumentsAtTheirLine() throws IOException {
+		mongo.beforeInsert(documents -> documents.stream()
+				.filter(document -> document.getString("clientId").equals("c"))
+				.toList());
+
+		Document report = importService.importLocations(plain(NDJSON), LocationImportReader.Format.NDJSON);
+
+		assertThat(report.get("inserted")).isEqualTo(3L);
+		assertThat(report.get("failed")).isEqualTo(2L);
+		assertThat(report.getInteger("batches")).isEqualTo(2);
+		List<Document> errors = report.getList("errors", Document.class);
+		assertThat(errors).hasSize(2);
+		// The unreadable line never reaches a batch.
+		assertThat(errors.get(0).getInteger("line")).isEqualTo(2);
+		assertThat(errors.get(0).containsKey("batch")).isFalse();
+		// "c" is the first document of the second batch, and its line counts the blank one before it.
+		assertThat(errors.get(1).getInteger("batch")).isEqualTo(2);
+		assertThat(errors.get(1).getInteger("line")).isEqualTo(5);
+		assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a", "b", "d");
+	}
+
+	@Test
+	void reportsFailedBatchOnceAtItsFirstLine() throws IOException {
+		mongo.beforeInsert(documents -> {
+			if (documents.get(0).getString("clientId").equals("c")) {
+				throw new MongoException("Unreachable");
+			}
+			return List.of();
+		});
+
+		Document report = importService.importLocations(plain(NDJSON), LocationImportReader.Format.NDJSON);
+
+		assertThat(report.get("inserted")).isEqualTo(2L);
+		assertThat(report.get("failed")).isEqualTo(3L);
+		assertThat(report.getList("errors", Document.class)).extracting(error -> error.getInteger("line"))
+				.containsExactly(2, 5);
+	}
+
+	@Test
+	void readsGzipCompressedAndPlainBodies() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(NDJSON.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Document report = importService.importLocations(new ByteArrayInputStream(compressed.toByteArray()),
+				LocationImportReader.Format.NDJSON);
+		assertThat(report.get("inserted")).isEqualTo(4L);
+
+		report = importService.importLocations(plain(NDJSON), LocationImportReader.Format.NDJSON);
+		assertThat(report.get("inserted")).isEqualTo(4L);
+		assertThat(stored()).hasSize(8);
+	}
+
+	private List<Document> stored() {
+		return mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	}
+
+	private static InputStream plain(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
+}
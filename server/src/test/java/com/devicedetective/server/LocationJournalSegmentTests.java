@@ -0,0 +1,95 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationJournalSegmentTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void readsBackAppendedDocuments() throws IOException {
+		LocationJournalSegment segment = LocationJournalSegment.create(directory.resolve("a.seg"), 1, 2);
+		Document located = document("a", "group", 40.2, -77.2, 1000);
+		Document unlocated = document("b", null, Double.NaN, Double.NaN, 0);
+
+		assertThat(segment.append(located)).isTrue();
+		assertThat(segment.append(unlocated)).isTrue();
+		assertThat(segment.append(located)).isFalse();
+		assertThat(segment.isFull()).isTrue();
+		assertThat(segment.readPending(2)).containsExactly(located, unlocated);
+	}
+
+	@Test
+	void recoversWriteAndReplayIndexes() throws IOException {
+		Path path = directory.resolve("a.seg");
+		LocationJournalSegment segment = LocationJournalSegment.create(path, 7, 4);
+		for (int i = 0; i < 3; i++) {
+			segment.append(document("client" + i, null, 1, 2, 0));
+		}
+		segment.markReplayed(1);
+
+		LocationJournalSegment recovered = LocationJournalSegment.open(path);
+		assertThat(recovered.getSequence()).isEqualTo(7);
+		assertThat(recovered.getWriteIndex()).isEqualTo(3);
+		assertThat(recovered.getReplayIndex()).isEqualTo(1);
+		assertThat(recovered.readPending(3)).extracting(document -> document.getString("clientId"))
+				.containsExactly("client1", "client2");
+	}
+
+	@Test
+	void stopsRecoveryAtTornRecord() throws IOException {
+		Path path = directory.resolve("a.seg");
+		LocationJournalSegment segment = LocationJournalSegment.create(path, 1, 4);
+		segment.append(document("a", null, 1, 2, 0));
+		segment.append(document("b", null, 1, 2, 0));
+		// Overwrite a byte of the second record, as if the crash happened while it was written.
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {42}),
+					LocationJournalSegment.HEADER_SIZE + LocationJournalSegment.RECORD_SIZE + 20);
+		}
+
+		assertThat(LocationJournalSegment.open(path).getWriteIndex()).isEqualTo(1);
+	}
+
+	@Test
+	void rejectsIdsLongerThanRecord() {
+		assertThat(LocationJournalSegment.fits(document("x".repeat(64), null, 1, 2, 0))).isTrue();
+		assertThat(LocationJournalSegment.fits(document("x".repeat(65), null, 1, 2, 0))).isFalse();
+		assertThat(LocationJournalSegment.fits(document("a", "x".repeat(65), 1, 2, 0))).isFalse();
+	}
+
+	/**
+	 * Builds a document the way LocationService.saveLocation does.
+	 */
+	private static Document document(String clientId, String groupId, double latitude, double longitude,
+									 long timestamp) {
+		Document document = new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(1_700_000_000_000L))
+				.append("latitude", latitude)
+				.append("longitude", longitude);
+		if (timestamp > 0) {
+			document.append("timestamp", timestamp);
+		}
+		if (groupId != null) {
+			document.append("groupId", groupId);
+		}
+		if (Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180) {
+			document.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(latitude, longitude));
+		}
+		return document;
+	}
+}
@@ -0,0 +1,164 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationJournalTests {
+
+	@TempDir
+	Path directory;
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private LocationJournal journal;
+
+	@AfterEach
+	void stopJournal() throws InterruptedException {
+		if (journal != null) {
+			journal.stop();
+		}
+	}
+
+	@Test
+	void skipsRecordsReplayedBeforeARestart() throws IOException, InterruptedException {
+		mongo.uniqueIds(true);
+		// The previous run inserted "a" and "b" but stopped before marking them as replayed.
+		LocationJournalSegment segment = LocationJournalSegment.create(
+				directory.resolve("journal-0000000000000000003.seg"), 3, 4);
+		Document a = location("a");
+		Document b = location("b");
+		Document c = location("c");
+		for (Document document : List.of(a, b, c)) {
+			segment.append(document);
+		}
+		segment.force();
+		stored().addAll(List.of(new Document(a), new Document(b)));
+
+		journal = start(4, 4);
+
+		awaitTrue(() -> journal.getPending() == 0);
+		assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a", "b", "c");
+		assertThat(journal.getReplayed()).isEqualTo(3);
+		assertThat(journal.getDiscarded()).isZero();
+		// The recovered segment is reclaimed, only the new one remains.
+		awaitTrue(() -> segmentFiles() == 1);
+	}
+
+	@Test
+	void discardsRecordsMongoRejects() throws IOException, InterruptedException {
+		mongo.beforeInsert(documents -> documents.stream()
+				.filter(document -> document.getString("clientId").equals("bad"))
+				.toList());
+		journal = start(4, 4);
+
+		assertThat(journal.append(location("bad"))).isTrue();
+		assertThat(journal.append(location("good"))).isTrue();
+
+		awaitTrue(() -> journal.getPending() == 0);
+		assertThat(journal.getDiscarded()).isEqualTo(1);
+		assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("good");
+	}
+
+	@Test
+	void retriesWhileMongoFails() throws IOException, InterruptedException {
+		AtomicBoolean down = new AtomicBoolean(true);
+		mongo.beforeInsert(documents -> {
+			if (down.get()) {
+				throw new MongoException("Unreachable");
+			}
+			return List.of();
+		});
+		journal = start(4, 4);
+
+		assertThat(journal.append(location("a"))).isTrue();
+		awaitTrue(() -> journal.getFailedReplays() >= 2);
+		assertThat(journal.getPending()).isEqualTo(1);
+		assertThat(stored()).isEmpty();
+
+		down.set(false);
+		awaitTrue(() -> journal.getPending() == 0);
+		assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a");
+	}
+
+	@Test
+	void rollsOverAndReclaimsSegments() throws IOException, InterruptedException {
+		AtomicBoolean down = new AtomicBoolean(true);
+		mongo.beforeInsert(documents -> {
+			if (down.get()) {
+				throw new MongoException("Unreachable");
+			}
+			return List.of();
+		});
+		journal = start(2, 2);
+
+		for (int i = 0; i < 4; i++) {
+			assertThat(journal.append(location("client" + i))).isTrue();
+		}
+		// Both segments are full, so the journal pushes back to direct writes.
+		assertThat(journal.getSegmentCount()).isEqualTo(2);
+		assertThat(journal.append(location("overflow"))).isFalse();
+		assertThat(journal.getRejected()).isEqualTo(1);
+
+		down.set(false);
+		awaitTrue(() -> journal.getSegmentCount() == 0);
+		// Files are deleted right after their segment is dropped.
+		awaitTrue(() -> segmentFiles() == 0);
+		assertThat(stored()).hasSize(4);
+
+		assertThat(journal.append(location("again"))).isTrue();
+		assertThat(journal.getSegmentCount()).isEqualTo(1);
+		awaitTrue(() -> stored().size() == 5);
+	}
+
+	private LocationJournal start(int segmentRecords, int maxSegments) throws IOException {
+		LocationJournal started = new LocationJournal(mongo.client(), new LocationMetrics(new SimpleMeterRegistry()),
+				true, "collection", directory.toString(), segmentRecords, maxSegments, 10, 10);
+		started.start();
+		return started;
+	}
+
+	private List<Document> stored() {
+		return mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	}
+
+	private long segmentFiles() {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(path -> path.getFileName().toString().endsWith(".seg")).count();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Document location(String clientId) {
+		return new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(1_700_000_000_000L))
+				.append("latitude", 1.0)
+				.append("longitude", 2.0);
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(condition.getAsBoolean()).isTrue();
+	}
+}
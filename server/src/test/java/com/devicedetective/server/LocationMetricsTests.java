@@ -0,0 +1,47 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final LocationMetrics metrics = new LocationMetrics(registry);
+
+	@Test
+	void timesEachDestinationSeparately() {
+		metrics.recordHandler("/app/sendLocation", 1_000);
+		metrics.recordHandler("/app/sendLocation", 3_000);
+		metrics.recordHandler("/app/heartbeat", 1_000);
+
+		Timer timer = handlerTimer("/app/sendLocation");
+		assertThat(timer.count()).isEqualTo(2);
+		assertThat(timer.totalTime(TimeUnit.NANOSECONDS)).isEqualTo(4_000);
+		assertThat(handlerTimer("/app/heartbeat").count()).isEqualTo(1);
+	}
+
+	@Test
+	void sharesOneTagBeyondTheDestinationLimit() {
+		for (int i = 0; i < 40; i++) {
+			metrics.recordHandler("/app/destination" + i, 1_000);
+		}
+		// Destinations seen before the limit keep their own timer.
+		metrics.recordHandler("/app/destination0", 1_000);
+
+		assertThat(registry.find("devicedetective.stomp.handler").timers()).hasSize(33);
+		assertThat(handlerTimer("/app/destination0").count()).isEqualTo(2);
+		assertThat(handlerTimer("/app/destination31").count()).isEqualTo(1);
+		assertThat(registry.find("devicedetective.stomp.handler").tag("destination", "/app/destination32").timer())
+				.isNull();
+		assertThat(handlerTimer("other").count()).isEqualTo(8);
+	}
+
+	private Timer handlerTimer(String destination) {
+		return registry.get("devicedetective.stomp.handler").tag("destination", destination).timer();
+	}
+}
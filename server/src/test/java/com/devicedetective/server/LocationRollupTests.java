@@ -0,0 +1,86 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationRollupTests {
+
+	private static final long BUCKET = TimeUnit.MINUTES.toMillis(15);
+	private static final long T0 = 1_700_000_100_000L - Math.floorMod(1_700_000_100_000L, BUCKET);
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final List<Document> raw = mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	private final List<Document> rollups = mongo.documents(LocationService.DATABASE_NAME,
+			LocationRollup.ROLLUP_COLLECTION_NAME);
+	private final LocationRollup rollup = new LocationRollup(mongo.client(), true, 1, 15, 3_600_000, 30);
+
+	@Test
+	void averagesPointsIntoAlignedBuckets() {
+		store("a", T0 + 1_000, 10.0, 20.0);
+		store("a", T0 + BUCKET - 1, 12.0, 22.0);
+		store("a", T0 + BUCKET, 50.0, 60.0);
+		store("b", T0 + 5_000, 30.0, 40.0);
+		// Outside the window, or without a position.
+		store("a", T0 - 1, 0.0, 0.0);
+		store("a", T0 + 2 * BUCKET, 0.0, 0.0);
+		raw.add(new Document("clientId", "a").append(LocationService.TIMESTAMP_FIELD, new Date(T0 + 2_000)));
+
+		rollup.rollup(new Date(T0), new Date(T0 + 2 * BUCKET));
+
+		assertThat(rollups).hasSize(3);
+		Document first = bucket("a", T0);
+		assertThat(first.getInteger("count")).isEqualTo(2);
+		assertThat(first.getDouble("latitude")).isEqualTo(11.0);
+		assertThat(first.getDouble("longitude")).isEqualTo(21.0);
+		assertThat(first.getDate("firstTs")).isEqualTo(new Date(T0 + 1_000));
+		assertThat(first.getDate("lastTs")).isEqualTo(new Date(T0 + BUCKET - 1));
+		assertThat(bucket("a", T0 + BUCKET).getInteger("count")).isEqualTo(1);
+		assertThat(bucket("b", T0).getDouble("latitude")).isEqualTo(30.0);
+	}
+
+	@Test
+	void replacesBucketsOnRerun() {
+		store("a", T0 + 1_000, 10.0, 20.0);
+		rollup.rollup(new Date(T0), new Date(T0 + BUCKET));
+		store("a", T0 + 2_000, 20.0, 30.0);
+
+		rollup.rollup(new Date(T0), new Date(T0 + BUCKET));
+
+		assertThat(rollups).singleElement().satisfies(document -> {
+			assertThat(document.getInteger("count")).isEqualTo(2);
+			assertThat(document.getDouble("latitude")).isEqualTo(15.0);
+		});
+	}
+
+	@Test
+	void scheduledRunRollsUpOnlyWholeBucketsPastTheAge() {
+		long now = System.currentTimeMillis();
+		store("a", now - TimeUnit.MINUTES.toMillis(90), 10.0, 20.0);
+		store("b", now - TimeUnit.MINUTES.toMillis(10), 10.0, 20.0);
+
+		rollup.scheduledRollup();
+
+		assertThat(rollups).singleElement().satisfies(document -> {
+			Document id = document.get("_id", Document.class);
+			assertThat(id.getString("clientId")).isEqualTo("a");
+			assertThat(Math.floorMod(id.getDate("bucket").getTime(), BUCKET)).isZero();
+		});
+	}
+
+	private void store(String clientId, long ts, double latitude, double longitude) {
+		raw.add(new Document("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(ts))
+				.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(latitude, longitude)));
+	}
+
+	private Document bucket(String clientId, long start) {
+		Document id = new Document("clientId", clientId).append("bucket", new Date(start));
+		return rollups.stream().filter(document -> document.get("_id").equals(id)).findFirst().orElseThrow();
+	}
+}
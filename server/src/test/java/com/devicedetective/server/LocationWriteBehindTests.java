@@ -0,0 +1,149 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoTimeoutException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocationWriteBehindTests {
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+
+	@Test
+	void flushesOnceBatchIsFull() throws InterruptedException {
+		// The linger is far longer than the wait for the first flush, so only the full batch can trigger it.
+		LocationWriteBehind writeBehind = writeBehind(100, 2, 2_000, "block");
+		writeBehind.start();
+		try {
+			writeBehind.enqueue(location("a"));
+			writeBehind.enqueue(location("b"));
+			writeBehind.enqueue(location("c"));
+
+			awaitTrue(() -> writeBehind.getWritten() == 2);
+			assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a", "b");
+			assertThat(writeBehind.getQueueDepth()).isZero();
+		} finally {
+			writeBehind.stop();
+		}
+		// Stopping flushes the partial batch.
+		assertThat(writeBehind.getWritten()).isEqualTo(3);
+		assertThat(writeBehind.getBacklog()).isZero();
+	}
+
+	@Test
+	void dropsWhenFullWithDropPolicy() throws InterruptedException {
+		CountDownLatch flushing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		mongo.beforeInsert(documents -> {
+			flushing.countDown();
+			awaitQuietly(release);
+			return List.of();
+		});
+		LocationWriteBehind writeBehind = writeBehind(1, 1, 0, "drop");
+		writeBehind.start();
+		try {
+			writeBehind.enqueue(location("a"));
+			assertThat(flushing.await(5, TimeUnit.SECONDS)).isTrue();
+
+			// The writer is stuck on "a", so "b" fills the queue and "c" is dropped.
+			assertThat(writeBehind.enqueue(location("b"))).isTrue();
+			assertThat(writeBehind.enqueue(location("c"))).isFalse();
+			assertThat(writeBehind.getDropped()).isEqualTo(1);
+			// "a" is being flushed and "b" is queued.
+			assertThat(writeBehind.getBacklog()).isEqualTo(2);
+		} finally {
+			release.countDown();
+			writeBehind.stop();
+		}
+		assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a", "b");
+	}
+
+	@Test
+	void countsRejectedDocumentsOfPartialBatchAsFailed() throws InterruptedException {
+		mongo.beforeInsert(documents -> documents.stream()
+				.filter(document -> document.getString("clientId").equals("bad"))
+				.toList());
+		LocationWriteBehind writeBehind = writeBehind(100, 3, 2_000, "block");
+		writeBehind.start();
+		try {
+			writeBehind.enqueue(location("a"));
+			writeBehind.enqueue(location("bad"));
+			writeBehind.enqueue(location("b"));
+
+			awaitTrue(() -> writeBehind.getWritten() + writeBehind.getFailed() == 3);
+			assertThat(writeBehind.getWritten()).isEqualTo(2);
+			assertThat(writeBehind.getFailed()).isEqualTo(1);
+			assertThat(stored()).extracting(document -> document.getString("clientId")).containsExactly("a", "b");
+		} finally {
+			writeBehind.stop();
+		}
+	}
+
+	@Test
+	void countsWholeBatchAsFailedWhenMongoIsDown() throws InterruptedException {
+		mongo.beforeInsert(documents -> {
+			throw new MongoTimeoutException("No server available");
+		});
+		LocationWriteBehind writeBehind = writeBehind(100, 2, 2_000, "block");
+		writeBehind.start();
+		try {
+			writeBehind.enqueue(location("a"));
+			writeBehind.enqueue(location("b"));
+
+			awaitTrue(() -> writeBehind.getFailed() == 2);
+			assertThat(writeBehind.getWritten()).isZero();
+		} finally {
+			writeBehind.stop();
+		}
+	}
+
+	@Test
+	void writesDirectlyOnceStopped() throws InterruptedException {
+		LocationWriteBehind writeBehind = writeBehind(100, 10, 2_000, "block");
+		writeBehind.start();
+		writeBehind.stop();
+
+		assertThat(writeBehind.enqueue(location("a"))).isTrue();
+
+		assertThat(stored()).hasSize(1);
+		assertThat(writeBehind.getWritten()).isEqualTo(1);
+		assertThat(writeBehind.getQueueDepth()).isZero();
+	}
+
+	private LocationWriteBehind writeBehind(int capacity, int batchSize, long lingerMillis, String overflow) {
+		return new LocationWriteBehind(mongo.client(), new LocationMetrics(new SimpleMeterRegistry()), true,
+				capacity, batchSize, lingerMillis, overflow);
+	}
+
+	private List<Document> stored() {
+		return mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	}
+
+	private static Document location(String clientId) {
+		return new Document("clientId", clientId).append("latitude", 40.2).append("longitude", -77.2);
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(condition.getAsBoolean()).isTrue();
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
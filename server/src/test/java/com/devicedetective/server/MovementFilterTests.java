@@ -0,0 +1,55 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MovementFilterTests {
+
+	@Test
+	void suppressesJitterAroundLastKeptPosition() {
+		MovementFilter filter = new MovementFilter(true, 5, 30_000);
+
+		assertThat(filter.accept(location(40.20000, -77.20000), 0)).isTrue();
+		// About 1 m away.
+		assertThat(filter.accept(location(40.20001, -77.20000), 1_000)).isFalse();
+		assertThat(filter.getSuppressed()).isEqualTo(1);
+	}
+
+	@Test
+	void keepsSlowDriftOnceItAddsUpToMinDistance() {
+		MovementFilter filter = new MovementFilter(true, 5, 30_000);
+		filter.accept(location(40.20000, -77.20000), 0);
+
+		// Steps of about 2 m, each measured from the first point.
+		assertThat(filter.accept(location(40.20002, -77.20000), 1_000)).isFalse();
+		assertThat(filter.accept(location(40.20004, -77.20000), 2_000)).isFalse();
+		assertThat(filter.accept(location(40.20006, -77.20000), 3_000)).isTrue();
+	}
+
+	@Test
+	void keepsStationaryDeviceOncePerHeartbeat() {
+		MovementFilter filter = new MovementFilter(true, 5, 30_000);
+		filter.accept(location(40.2, -77.2), 0);
+
+		assertThat(filter.accept(location(40.2, -77.2), 29_999)).isFalse();
+		assertThat(filter.accept(location(40.2, -77.2), 30_000)).isTrue();
+	}
+
+	@Test
+	void passesEverythingWhenDisabled() {
+		MovementFilter filter = new MovementFilter(false, 5, 30_000);
+		filter.accept(location(40.2, -77.2), 0);
+
+		assertThat(filter.accept(location(40.2, -77.2), 1)).isTrue();
+	}
+
+	private static Location location(double latitude, double longitude) {
+		Location location = new Location();
+		location.setClientId("device");
+		location.setLatitude(latitude);
+		location.setLongitude(longitude);
+		return location;
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SlowConsumerGuardTests {
+
+	@Test
+	void coalescesDroppedFramesUntilSessionCatchesUp() {
+		SlowConsumerGuard guard = new SlowConsumerGuard(2);
+		Message<?> first = frame("s1", List.of("a"));
+		Message<?> second = frame("s1", List.of("b"));
+
+		assertThat(guard.preSend(first, null)).isNotNull();
+		assertThat(guard.preSend(second, null)).isNotNull();
+		assertThat(guard.preSend(frame("s1", List.of("a", "c")), null)).isNull();
+		assertThat(guard.preSend(frame("s1", List.of("c")), null)).isNull();
+		assertThat(guard.getDroppedFrames()).isEqualTo(2);
+
+		guard.afterMessageHandled(first, null, null, null);
+		// Still one frame queued.
+		assertThat(guard.drainCaughtUp()).isEmpty();
+
+		guard.afterMessageHandled(second, null, null, null);
+		List<SlowConsumerGuard.Resync> resyncs = guard.drainCaughtUp();
+		assertThat(resyncs).hasSize(1);
+		assertThat(resyncs.get(0).subscriptionId()).isEqualTo("sub");
+		assertThat(resyncs.get(0).destination()).isEqualTo(LocationBroadcaster.LOCATIONS_TOPIC);
+		assertThat(resyncs.get(0).clientIds()).containsExactlyInAnyOrder("a", "c");
+		assertThat(guard.drainCaughtUp()).isEmpty();
+	}
+
+	@Test
+	void neverDropsOtherFrames() {
+		SlowConsumerGuard guard = new SlowConsumerGuard(1);
+		guard.preSend(frame("s1", List.of("a")), null);
+
+		assertThat(guard.preSend(frame("s1", null), null)).isNotNull();
+		assertThat(guard.preSend(frame("s2", List.of("a")), null)).isNotNull();
+	}
+
+	@Test
+	void withholdsVersionsUntilResyncIsDelivered() {
+		SlowConsumerGuard guard = new SlowConsumerGuard(1);
+		Message<?> queued = guard.preSend(frame("s1", List.of("a")), null);
+		assertThat(guard.preSend(frame("s1", List.of("b")), null)).isNull();
+		guard.afterMessageHandled(queued, null, null, null);
+
+		// Gets through, but must not claim the dropped "b" was delivered.
+		Message<?> passed = guard.preSend(frame("s1", List.of("c")), null);
+		assertThat(version(passed)).isNull();
+		guard.afterMessageHandled(passed, null, null, null);
+
+		SlowConsumerGuard.Resync resync = guard.drainCaughtUp().get(0);
+		Message<?> resent = guard.preSend(resyncFrame(resync), null);
+		assertThat(version(guard.preSend(frame("s1", List.of("d")), null))).isNull();
+
+		guard.afterMessageHandled(resent, null, null, null);
+		assertThat(version(guard.preSend(frame("s2", List.of("d")), null))).isEqualTo("v");
+	}
+
+	@Test
+	void resendsResyncThatWasDroppedAgain() {
+		SlowConsumerGuard guard = new SlowConsumerGuard(1);
+		Message<?> queued = guard.preSend(frame("s1", List.of("a")), null);
+		guard.preSend(frame("s1", List.of("b")), null);
+		guard.afterMessageHandled(queued, null, null, null);
+		SlowConsumerGuard.Resync resync = guard.drainCaughtUp().get(0);
+
+		queued = guard.preSend(frame("s1", List.of("c")), null);
+		assertThat(guard.preSend(resyncFrame(resync), null)).isNull();
+		guard.afterMessageHandled(queued, null, null, null);
+
+		assertThat(guard.drainCaughtUp()).singleElement()
+				.satisfies(again -> assertThat(again.clientIds()).containsExactly("b"));
+	}
+
+	private static Message<?> resyncFrame(SlowConsumerGuard.Resync resync) {
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(frame(resync.sessionId(),
+				List.copyOf(resync.clientIds())));
+		headers.removeNativeHeader(LocationChangeLog.VERSION_HEADER);
+		headers.setHeader(SlowConsumerGuard.RESYNC_FRAME_HEADER, true);
+		return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+	}
+
+	private static String version(Message<?> message) {
+		return SimpMessageHeaderAccessor.wrap(message).getFirstNativeHeader(LocationChangeLog.VERSION_HEADER);
+	}
+
+	private static Message<?> frame(String sessionId, List<String> clientIds) {
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+		headers.setNativeHeader(LocationChangeLog.VERSION_HEADER, "v");
+		headers.setSessionId(sessionId);
+		headers.setSubscriptionId("sub");
+		headers.setDestination(LocationBroadcaster.LOCATIONS_TOPIC);
+		if (clientIds != null) {
+			headers.setHeader(SlowConsumerGuard.CLIENT_IDS_HEADER, clientIds);
+		}
+		return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+	}
+}
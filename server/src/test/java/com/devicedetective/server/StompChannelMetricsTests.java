@@ -0,0 +1,98 @@
+package com.devicedetective.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StompChannelMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final ClientRegistry clientRegistry = new ClientRegistry(new LiveSpatialIndex(0.01), 60_000);
+
+	@Test
+	void reportsQueueDepthOfPooledChannelExecutors() throws InterruptedException {
+		ThreadPoolTaskExecutor inbound = new ThreadPoolTaskExecutor();
+		inbound.setCorePoolSize(1);
+		inbound.setMaxPoolSize(1);
+		inbound.initialize();
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			CountDownLatch running = new CountDownLatch(1);
+			inbound.execute(() -> {
+				running.countDown();
+				awaitQuietly(release);
+			});
+			assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+			inbound.execute(() -> {
+			});
+			inbound.execute(() -> {
+			});
+
+			bind(inbound);
+
+			assertThat(registry.get("devicedetective.stomp.queue").tag("channel", "inbound").gauge().value())
+					.isEqualTo(2);
+			assertThat(registry.get("devicedetective.stomp.active").tag("channel", "inbound").gauge().value())
+					.isEqualTo(1);
+			// The outbound executor is not a pool, so it has nothing to report.
+			assertThat(registry.find("devicedetective.stomp.queue").tag("channel", "outbound").gauge()).isNull();
+		} finally {
+			release.countDown();
+			inbound.shutdown();
+		}
+	}
+
+	@Test
+	void reportsNoQueueBeforeThePoolStarts() {
+		bind(new ThreadPoolTaskExecutor());
+
+		assertThat(registry.get("devicedetective.stomp.queue").tag("channel", "inbound").gauge().value()).isZero();
+	}
+
+	@Test
+	void reportsOpenSessions() {
+		bind(new ThreadPoolTaskExecutor());
+
+		clientRegistry.onConnect(new SessionConnectEvent(this, connect("s1")));
+		clientRegistry.onConnect(new SessionConnectEvent(this, connect("s2")));
+		assertThat(registry.get("devicedetective.sessions").gauge().value()).isEqualTo(2);
+
+		clientRegistry.onDisconnect(new SessionDisconnectEvent(this, connect("s1"), "s1", CloseStatus.NORMAL));
+		assertThat(registry.get("devicedetective.sessions").gauge().value()).isEqualTo(1);
+	}
+
+	/**
+	 * Binds the metrics with only the collaborators under test, the meters of the others read NaN.
+	 */
+	private void bind(ThreadPoolTaskExecutor inbound) {
+		new StompChannelMetrics(inbound, new SyncTaskExecutor(), clientRegistry, null, null, null, null, null, null,
+				null, null, null).bindTo(registry);
+	}
+
+	private static Message<byte[]> connect(String sessionId) {
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+		headers.setSessionId(sessionId);
+		return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.devicedetective.server;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class TcpLocationEventBusTests {
+
+	@Test
+	void roundTripsSavedDocuments() {
+		List<Document> batch = List.of(location("a"), location("b"));
+
+		assertThat(TcpLocationEventBus.decode(TcpLocationEventBus.encode(batch))).isEqualTo(batch);
+	}
+
+	@Test
+	void rejectsTruncatedFrame() {
+		byte[] frame = TcpLocationEventBus.encode(List.of(location("a")));
+		byte[] truncated = Arrays.copyOf(frame, frame.length - 1);
+
+		assertThatIllegalArgumentException().isThrownBy(() -> TcpLocationEventBus.decode(truncated));
+	}
+
+	@Test
+	void deliversBatchesToPeerOnLocalhost() throws Exception {
+		TcpLocationEventBus receiver = bus("", "secret");
+		receiver.start();
+		TcpLocationEventBus sender = bus("localhost:" + receiver.getPort(), "secret");
+		sender.start();
+		List<Document> received = new CopyOnWriteArrayList<>();
+		receiver.subscribe(received::addAll);
+		try {
+			sender.publish(location("a"));
+			sender.publish(location("b"));
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (received.size() < 2 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(received).extracting(document -> document.getString("clientId")).containsExactly("a", "b");
+		} finally {
+			sender.stop();
+			receiver.stop();
+		}
+	}
+
+	@Test
+	void rejectsPeerWithWrongSecret() throws Exception {
+		TcpLocationEventBus receiver = bus("", "secret");
+		receiver.start();
+		TcpLocationEventBus sender = bus("localhost:" + receiver.getPort(), "guess");
+		sender.start();
+		List<Document> received = new CopyOnWriteArrayList<>();
+		receiver.subscribe(received::addAll);
+		try {
+			sender.publish(location("a"));
+
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+			while (sender.getSent() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			assertThat(sender.getSent()).isEqualTo(1);
+			assertThat(received).isEmpty();
+		} finally {
+			sender.stop();
+			receiver.stop();
+		}
+	}
+
+	@Test
+	void requiresSecret() {
+		assertThatIllegalArgumentException().isThrownBy(() -> bus("", " "));
+	}
+
+	private static TcpLocationEventBus bus(String peers, String secret) {
+		return new TcpLocationEventBus(0, "127.0.0.1", peers, secret, 20, 1000, 100);
+	}
+
+	private static Document location(String clientId) {
+		return new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(1_700_000_000_000L))
+				.append("latitude", 40.2)
+				.append("longitude", -77.2)
+				.append(LocationService.GEO_FIELD, LocationService.toGeoJsonPoint(40.2, -77.2));
+	}
+
+}
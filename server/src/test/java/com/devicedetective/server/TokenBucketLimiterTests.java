@@ -0,0 +1,48 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketLimiterTests {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void allowsBurstThenRefillsAtRate() {
+		TokenBucketLimiter limiter = new TokenBucketLimiter(2, 3);
+
+		assertThat(limiter.tryAcquire("a", 0)).isTrue();
+		assertThat(limiter.tryAcquire("a", 0)).isTrue();
+		assertThat(limiter.tryAcquire("a", 0)).isTrue();
+		assertThat(limiter.tryAcquire("a", 0)).isFalse();
+		// Half a second refills one token at two per second.
+		assertThat(limiter.tryAcquire("a", SECOND / 2)).isTrue();
+		assertThat(limiter.tryAcquire("a", SECOND / 2)).isFalse();
+	}
+
+	@Test
+	void limitsKeysIndependently() {
+		TokenBucketLimiter limiter = new TokenBucketLimiter(1, 1);
+
+		assertThat(limiter.tryAcquire("a", 0)).isTrue();
+		assertThat(limiter.tryAcquire("a", 0)).isFalse();
+		assertThat(limiter.tryAcquire("b", 0)).isTrue();
+	}
+
+	@Test
+	void evictsOnlyRefilledBuckets() {
+		TokenBucketLimiter limiter = new TokenBucketLimiter(1, 2);
+		limiter.tryAcquire("idle", 0);
+		limiter.tryAcquire("busy", 0);
+		limiter.tryAcquire("busy", 0);
+
+		limiter.evictIdle(SECOND);
+
+		assertThat(limiter.size()).isEqualTo(1);
+		assertThat(limiter.tryAcquire("busy", SECOND)).isTrue();
+		assertThat(limiter.tryAcquire("busy", SECOND)).isFalse();
+	}
+}
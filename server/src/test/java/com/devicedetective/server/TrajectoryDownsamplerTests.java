@@ -0,0 +1,57 @@
+package com.devicedetective.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TrajectoryDownsamplerTests {
+
+	@Test
+	void returnsShortTrackUnchanged() {
+		TrajectoryDownsampler downsampler = new TrajectoryDownsampler(0, 1_000, 5);
+		for (int i = 0; i < 5; i++) {
+			downsampler.add(i * 100, 40.0 + i, -77.0);
+		}
+
+		assertThat(downsampler.finish()).extracting(TrajectoryDownsampler.Point::time)
+				.containsExactly(0L, 100L, 200L, 300L, 400L);
+	}
+
+	@Test
+	void keepsAtMostTargetPointsIncludingFirstAndLast() {
+		TrajectoryDownsampler downsampler = new TrajectoryDownsampler(0, 10_000, 50);
+		for (int i = 0; i < 10_000; i++) {
+			downsampler.add(i, Math.sin(i / 100.0), i / 10_000.0);
+		}
+
+		List<TrajectoryDownsampler.Point> points = downsampler.finish();
+		assertThat(downsampler.getCount()).isEqualTo(10_000);
+		assertThat(points).hasSizeLessThanOrEqualTo(50).hasSizeGreaterThan(40);
+		assertThat(points.get(0).time()).isZero();
+		assertThat(points.get(points.size() - 1).time()).isEqualTo(9_999);
+		assertThat(points).isSortedAccordingTo((a, b) -> Long.compare(a.time(), b.time()));
+	}
+
+	@Test
+	void keepsCornerOfTrack() {
+		// North for 100 ms, then east for 100 ms.
+		TrajectoryDownsampler downsampler = new TrajectoryDownsampler(0, 200, 10);
+		for (int i = 0; i < 200; i++) {
+			if (i <= 100) {
+				downsampler.add(i, i / 100.0, 0);
+			} else {
+				downsampler.add(i, 1, (i - 100) / 100.0);
+			}
+		}
+
+		assertThat(downsampler.finish()).contains(new TrajectoryDownsampler.Point(100, 1, 0));
+	}
+
+	@Test
+	void rejectsTargetBelowThree() {
+		assertThatThrownBy(() -> new TrajectoryDownsampler(0, 1, 2)).isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,168 @@
+package com.devicedetective.server;
+
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TrajectoryServiceTests {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	@TempDir
+	Path directory;
+
+	private final InMemoryMongo mongo = new InMemoryMongo();
+	private final LocationMetrics metrics = new LocationMetrics(new SimpleMeterRegistry());
+	private final LocationWriteBehind idleWriteBehind = new LocationWriteBehind(mongo.client(), metrics, false,
+			100, 100, 0, "block");
+	private final LocationJournal idleJournal = new LocationJournal(mongo.client(), metrics, false, "collection",
+			"journal", 4, 4, 10, 10);
+	private final long now = System.currentTimeMillis();
+
+	@Test
+	void cachesSettledWindows() {
+		TrajectoryService service = service(idleWriteBehind, idleJournal, 10, 60_000);
+		store("a", now - 2 * HOUR + 1_000);
+
+		Document track = service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+		// Served from the cache, so the late point is not seen.
+		store("a", now - 2 * HOUR + 2_000);
+
+		assertThat(service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10)).isSameAs(track);
+		assertThat(track.get("sourcePoints")).isEqualTo(1L);
+		assertThat(service.getHits()).isEqualTo(1);
+		assertThat(service.getMisses()).isEqualTo(1);
+	}
+
+	@Test
+	void computesWindowsReachingIntoTheLastMinute() {
+		TrajectoryService service = service(idleWriteBehind, idleJournal, 10, 60_000);
+		store("a", now - 30_000);
+
+		service.getTrajectory("a", now - HOUR, now - 10_000, 10);
+		store("a", now - 20_000);
+
+		assertThat(service.getTrajectory("a", now - HOUR, now - 10_000, 10).get("sourcePoints")).isEqualTo(2L);
+		assertThat(service.getHits()).isZero();
+	}
+
+	@Test
+	void computesWhileWriteBehindHoldsLocations() throws InterruptedException {
+		// The insert is held up, so the location stays in the write-behind's backlog.
+		CountDownLatch flushing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		mongo.beforeInsert(documents -> {
+			flushing.countDown();
+			awaitQuietly(release);
+			return List.of();
+		});
+		LocationWriteBehind writeBehind = new LocationWriteBehind(mongo.client(), metrics, true, 100, 1, 0, "block");
+		writeBehind.start();
+		try {
+			writeBehind.enqueue(location("a", now - 2 * HOUR + 1_000));
+			assertThat(flushing.await(5, TimeUnit.SECONDS)).isTrue();
+			TrajectoryService service = service(writeBehind, idleJournal, 10, 60_000);
+
+			service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+			service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+
+			assertThat(service.getHits()).isZero();
+			assertThat(service.getMisses()).isEqualTo(2);
+		} finally {
+			release.countDown();
+			writeBehind.stop();
+		}
+	}
+
+	@Test
+	void computesWhileJournalHoldsLocations() throws IOException, InterruptedException {
+		mongo.beforeInsert(documents -> {
+			throw new MongoException("Unreachable");
+		});
+		LocationJournal journal = new LocationJournal(mongo.client(), metrics, true, "collection",
+				directory.toString(), 4, 4, 10, 10);
+		journal.start();
+		try {
+			assertThat(journal.append(location("a", now - 2 * HOUR + 1_000))).isTrue();
+			TrajectoryService service = service(idleWriteBehind, journal, 10, 60_000);
+
+			service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+			service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+
+			assertThat(journal.getPending()).isEqualTo(1);
+			assertThat(service.getHits()).isZero();
+		} finally {
+			journal.stop();
+		}
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedTrack() {
+		TrajectoryService service = service(idleWriteBehind, idleJournal, 2, 60_000);
+
+		service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+		service.getTrajectory("b", now - 2 * HOUR, now - HOUR, 10);
+		// Using "a" again makes "b" the least recently used track, which "c" then evicts.
+		service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+		service.getTrajectory("c", now - 2 * HOUR, now - HOUR, 10);
+		assertThat(service.getHits()).isEqualTo(1);
+
+		service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+		assertThat(service.getHits()).isEqualTo(2);
+		service.getTrajectory("b", now - 2 * HOUR, now - HOUR, 10);
+		assertThat(service.getHits()).isEqualTo(2);
+		assertThat(service.getMisses()).isEqualTo(4);
+	}
+
+	@Test
+	void expiresTracksAfterTheTtl() {
+		TrajectoryService service = service(idleWriteBehind, idleJournal, 10, 0);
+
+		service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+		service.getTrajectory("a", now - 2 * HOUR, now - HOUR, 10);
+
+		assertThat(service.getHits()).isZero();
+		assertThat(service.getMisses()).isEqualTo(2);
+	}
+
+	private TrajectoryService service(LocationWriteBehind writeBehind, LocationJournal journal, int cacheSize,
+									  long cacheTtlMillis) {
+		return new TrajectoryService(mongo.client(), writeBehind, journal, cacheSize, cacheTtlMillis);
+	}
+
+	private void store(String clientId, long ts) {
+		stored().add(location(clientId, ts));
+	}
+
+	private List<Document> stored() {
+		return mongo.documents(LocationService.DATABASE_NAME, LocationService.COLLECTION_NAME);
+	}
+
+	private static Document location(String clientId, long ts) {
+		return new Document("_id", new ObjectId())
+				.append("clientId", clientId)
+				.append(LocationService.TIMESTAMP_FIELD, new Date(ts))
+				.append("latitude", 40.2)
+				.append("longitude", -77.2);
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}